@@ -20,6 +20,10 @@ COGNOME: ZANOLLI
  *
  *    Questo avverrà fino al raggiungimento delle foglie.
  *
+ *    Nell'implementazione attuale la ricorsione è sostituita da una pila esplicita (Tree.subtreeEquals()):
+ *    i nodi del secondo albero vengono indicizzati per valore e per ogni nodo del primo si cerca il
+ *    corrispondente tramite il valore, così anche alberi molto profondi non esauriscono lo stack.
+ *
  *    E' stato fatto override anche del metodo hashCode() in modo che restituisca il valore del nodo stesso.
  *
  * ---ANALISI COSTO COMPUTAZIONALE---
@@ -55,9 +59,27 @@ COGNOME: ZANOLLI
  *
  */
 
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
 
 
 
@@ -73,9 +95,26 @@ public class Esercizio1 {
     public static class Tree {
         public Node root;
 
+        private static final long FINGERPRINT_SALT = 0x632BE59BD9B4E019L;
+
+        /*
+         * Funzione di mescolamento a 64 bit (finalizzatore di MurmurHash3).
+         */
+        static long mix(long z) {
+            z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+            z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+            return z ^ (z >>> 33);
+        }
+
         public static class Node {
             public final int value;
-            public final HashSet<Node> children;
+            // Modificabile solo tramite addChild() / removeChild(), che tengono aggiornata l'impronta
+            private final HashSet<Node> children;
+            private Node parent;
+
+            // Impronta strutturale del sottoalbero, valida finché fingerprintValid è vero
+            private long fingerprint;
+            private boolean fingerprintValid;
 
             public Node(int value) {
                 this.value = value;
@@ -90,25 +129,96 @@ public class Esercizio1 {
                 return value;
             }
             /*
-             * Restituisce l'insieme dei figli.
+             * Restituisce l'insieme dei figli in sola lettura: le modifiche passano da addChild() e
+             * removeChild(), altrimenti l'impronta memorizzata resterebbe quella vecchia.
+             */
+            public Set<Node> getChildren() {
+                return Collections.unmodifiableSet(children);
+            }
+            /*
+             * Restituisce il padre (null per la radice).
              */
-            public HashSet<Node> getChildren() {
-                return children;
+            public Node getParent() {
+                return parent;
             }
+
             /*
              * Aggiunge un nodo all'insieme dei figli del nodo padre.
+             * Le impronte di questo nodo e dei suoi antenati non sono più valide e vengono invalidate
+             * risalendo i padri fino alla radice. Ci si può fermare al primo antenato già invalido: un'impronta
+             * viene calcolata solo dopo quelle di tutto il sottoalbero, quindi sopra un nodo invalido
+             * sono tutti invalidi.
              */
             public void addChild(Node child) {
-                children.add(child);
+                if (children.add(child)) {
+                    child.parent = this;
+                    for (Node node = this; node != null && node.fingerprintValid; node = node.parent) {
+                        node.fingerprintValid = false;
+                    }
+                }
+            }
+
+            /*
+             * Rimuove un figlio; come per addChild() le impronte degli antenati vengono invalidate.
+             */
+            public void removeChild(Node child) {
+                if (children.remove(child)) {
+                    child.parent = null;
+                    for (Node node = this; node != null && node.fingerprintValid; node = node.parent) {
+                        node.fingerprintValid = false;
+                    }
+                }
+            }
+
+            /*
+             * Impronta strutturale del sottoalbero radicato in questo nodo, indipendente dall'ordine dei figli:
+             *
+             *    h(x) = mix(valore(x) * K + somma sui figli c di mix(h(c) + SALE))
+             *
+             * La somma è commutativa, quindi due sottoalberi uguali secondo equals() hanno la stessa impronta;
+             * sottoalberi diversi hanno la stessa impronta solo in caso di collisione (probabilità circa 2^-64).
+             *
+             * Le impronte vengono calcolate una sola volta in O(n) con una visita iterativa in post-ordine
+             * (i sottoalberi già calcolati vengono saltati) e restano memorizzate nei nodi.
+             */
+            public long fingerprint() {
+                if (fingerprintValid) {
+                    return fingerprint;
+                }
+                // Ordine di visita in pre-ordine dei soli nodi da ricalcolare; percorso al contrario
+                // garantisce che i figli vengano calcolati prima dei padri.
+                ArrayList<Node> order = new ArrayList<>();
+                ArrayDeque<Node> stack = new ArrayDeque<>();
+                stack.push(this);
+                while (!stack.isEmpty()) {
+                    Node node = stack.pop();
+                    order.add(node);
+                    for (Node child : node.children) {
+                        if (!child.fingerprintValid) {
+                            stack.push(child);
+                        }
+                    }
+                }
+                for (int i = order.size() - 1; i >= 0; i--) {
+                    Node node = order.get(i);
+                    long sum = 0;
+                    for (Node child : node.children) {
+                        sum += mix(child.fingerprint + FINGERPRINT_SALT);
+                    }
+                    node.fingerprint = mix(node.value * 0x9E3779B97F4A7C15L + sum);
+                    node.fingerprintValid = true;
+                }
+                return fingerprint;
             }
 
             /*
              * Viene fatto override del metodo equals di Node:
              * 2 nodi sono da considerarsi uguali se  hanno lo stesso valore e se i 2 set di figli
-             * sono uguali secondo il metodo equals() del set.
-             * Non è richiesto effettuare controlli sulla dimensione dei figli perchè già
-             * il metodo equals di Set effettua il controllo prima di verificare che gli
-             * elementi contenuti siano uguali.
+             * sono uguali, cioè contengono figli con gli stessi valori a loro volta uguali.
+             * Si confrontano prima valore e impronte (memorizzate dopo il primo calcolo, quindi O(1) sui
+             * confronti successivi): se differiscono i nodi sono diversi senza visitare i sottoalberi.
+             * Solo se coincidono il confronto completo, svolto in modo iterativo da subtreeEquals(),
+             * esclude le collisioni.
              */
             @Override
             public boolean equals(Object obj) {
@@ -116,8 +226,10 @@ public class Esercizio1 {
 
                 if (!(obj instanceof Node)) return false;
 
-                Node otherNode = (Node) obj;
-                return this.value == otherNode.value && this.children.equals(otherNode.children);
+                Node other = (Node) obj;
+                if (value != other.value || fingerprint() != other.fingerprint()) return false;
+
+                return subtreeEquals(this, other);
             }
 
             /*
@@ -140,6 +252,68 @@ public class Esercizio1 {
             return root;
         }
 
+        /*
+         * Impronta dell'intero albero (0 per l'albero vuoto).
+         */
+        public long fingerprint() {
+            return root == null ? 0 : root.fingerprint();
+        }
+
+        /*
+         * Confronto iterativo dei sottoalberi radicati in a e b.
+         *
+         * Prima i nodi del sottoalbero di b vengono indicizzati per valore (i valori sono univoci), poi il
+         * sottoalbero di a viene visitato con una pila esplicita: al nodo x corrisponde in b il nodo y con
+         * lo stesso valore, e per ogni figlio di x si verifica tramite l'indice che il nodo con lo stesso
+         * valore esista e sia figlio di y. Costo O(n) senza ricorsione, indipendente dalla profondità.
+         */
+        static boolean subtreeEquals(Node a, Node b) {
+            if (a == b) return true;
+            if (a == null || b == null || a.value != b.value) return false;
+            // Se entrambe le impronte sono note e diverse i sottoalberi sono sicuramente diversi
+            if (a.fingerprintValid && b.fingerprintValid && a.fingerprint != b.fingerprint) return false;
+            if (a.children.size() != b.children.size()) return false;
+
+            IntIntMap index = new IntIntMap(16);
+            Node[] nodes = new Node[16];
+            int count = 0;
+            Node[] stack = new Node[16];
+            int top = 0;
+            stack[top++] = b;
+            while (top > 0) {
+                Node node = stack[--top];
+                if (count == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, count * 2);
+                }
+                nodes[count] = node;
+                index.putIfAbsent(node.value, count++);
+                stack = ensureCapacity(stack, top + node.children.size());
+                for (Node child : node.children) {
+                    stack[top++] = child;
+                }
+            }
+
+            stack[top++] = a;
+            while (top > 0) {
+                Node x = stack[--top];
+                Node y = nodes[index.get(x.value)];
+                if (x.children.size() != y.children.size()) return false;
+                if (x.fingerprintValid && y.fingerprintValid && x.fingerprint != y.fingerprint) return false;
+                stack = ensureCapacity(stack, top + x.children.size());
+                for (Node child : x.children) {
+                    int j = index.get(child.value);
+                    // Il puntatore al padre evita quasi sempre la ricerca nell'HashSet
+                    if (j == -1 || (nodes[j].parent != y && !y.children.contains(nodes[j]))) return false;
+                    stack[top++] = child;
+                }
+            }
+            return true;
+        }
+
+        private static Node[] ensureCapacity(Node[] stack, int capacity) {
+            return capacity <= stack.length ? stack : Arrays.copyOf(stack, Math.max(capacity, stack.length * 2));
+        }
+
         /*
          * Invoca il metodo visit() facendolo partire dalla radice.
          */
@@ -152,194 +326,2629 @@ public class Esercizio1 {
          */
         public String visit(Node node, int depth) {
             StringBuilder s = new StringBuilder();
-            if (node != null) {
+            try {
+                visit(node, depth, s);
+            } catch (IOException e) {
+                // StringBuilder non solleva IOException
+                throw new UncheckedIOException(e);
+            }
+            return s.toString();
+        }
+
+        /*
+         * Scrive la visita dell'intero albero su out.
+         */
+        public void visit(Appendable out) throws IOException {
+            visit(root, 0, out);
+        }
+
+        /*
+         * Visita in pre-ordine con pila esplicita che scrive direttamente su out, senza stringhe intermedie
+         * per ogni nodo. I figli vengono inseriti nella pila in ordine inverso così da essere stampati
+         * nello stesso ordine di iterazione dell'HashSet della versione ricorsiva.
+         */
+        public void visit(Node node, int depth, Appendable out) throws IOException {
+            if (node == null) {
+                return;
+            }
+            Node[] stack = new Node[16];
+            int[] depths = new int[16];
+            Node[] children = new Node[16];
+            int top = 0;
+            stack[top] = node;
+            depths[top++] = depth;
+            while (top > 0) {
+                Node current = stack[--top];
+                int d = depths[top];
+                appendIndent(out, d);
+                out.append(Integer.toString(current.getValue())).append('\n');
+
+                int k = current.children.size();
+                if (top + k > stack.length) {
+                    stack = ensureCapacity(stack, top + k);
+                    depths = Arrays.copyOf(depths, stack.length);
+                }
+                children = ensureCapacity(children, k);
+                int c = 0;
+                for (Node child : current.children) {
+                    children[c++] = child;
+                }
+                while (c > 0) {
+                    stack[top] = children[--c];
+                    depths[top++] = d + 1;
+                }
+            }
+        }
+    }
+
+    // Indentazioni già costruite: quella di profondità d è il prefisso di 2*d caratteri
+    private static volatile String indentCache = "                                ";
+
+    /*
+     * Scrive su out l'indentazione di profondità depth (due spazi per livello) senza costruire nuove stringhe,
+     * salvo raddoppiare la cache quando la profondità supera quella massima vista finora.
+     */
+    static void appendIndent(Appendable out, int depth) throws IOException {
+        String cache = indentCache;
+        if (cache.length() < 2 * depth) {
+            cache = " ".repeat(Math.max(2 * depth, 2 * cache.length()));
+            indentCache = cache;
+        }
+        out.append(cache, 0, 2 * depth);
+    }
+
+    /*
+     * Mappa hash int -> int ad indirizzamento aperto (scansione lineare) senza oggetti per elemento:
+     * due array paralleli keys[] e slots[], dove slots[i] = valore + 1 (0 indica la cella vuota).
+     * I valori devono essere >= 0. La capacità resta una potenza di 2 con fattore di carico <= 0.5.
+     */
+    public static class IntIntMap {
+        private int[] keys;
+        private int[] slots;
+        private int size;
+        private int mask;
+
+        public IntIntMap(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1;
+            keys = new int[capacity];
+            slots = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        private static int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        /*
+         * Valore associato a key, -1 se assente.
+         */
+        public int get(int key) {
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                int slot = slots[i];
+                if (slot == 0) {
+                    return -1;
+                }
+                if (keys[i] == key) {
+                    return slot - 1;
+                }
+            }
+        }
+
+        /*
+         * Associa value a key se key è assente e restituisce il valore associato a key.
+         */
+        public int putIfAbsent(int key, int value) {
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                int slot = slots[i];
+                if (slot == 0) {
+                    keys[i] = key;
+                    slots[i] = value + 1;
+                    if (++size * 2 > keys.length) {
+                        grow();
+                    }
+                    return value;
+                }
+                if (keys[i] == key) {
+                    return slot - 1;
+                }
+            }
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long memoryBytes() {
+            return 2 * (16L + 4L * keys.length);
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            int[] oldSlots = slots;
+            keys = new int[oldKeys.length * 2];
+            slots = new int[oldKeys.length * 2];
+            mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldSlots[j] != 0) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (slots[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    slots[i] = oldSlots[j];
+                }
+            }
+        }
+    }
+
+    /*
+     * Rappresentazione compatta dell'albero con array paralleli di interi, senza un oggetto per nodo.
+     *
+     * Il nodo i ha valore values[i], padre parent[i] (-1 per la radice) e figli raggiungibili come lista
+     * firstChild[i] -> nextSibling[...] -> ... -> -1. index associa ad ogni valore l'indice del suo nodo:
+     * come in buildFromPairs() i valori sono univoci e identificano il nodo.
+     * Occupa circa 16 byte per nodo più la mappa (al più 16 byte per nodo), contro le centinaia di byte
+     * di Tree.Node con il suo HashSet.
+     */
+    public static class FlatTree {
+        public int size;
+        public int root = -1;
+        public int[] values;
+        public int[] parent;
+        public int[] firstChild;
+        public int[] nextSibling;
+        private final IntIntMap index;
+
+        public FlatTree(int expectedNodes) {
+            int capacity = Math.max(expectedNodes, 4);
+            values = new int[capacity];
+            parent = new int[capacity];
+            firstChild = new int[capacity];
+            nextSibling = new int[capacity];
+            index = new IntIntMap(capacity);
+        }
+
+        /*
+         * Indice del nodo con valore value, -1 se non esiste.
+         */
+        public int indexOf(int value) {
+            return index.get(value);
+        }
 
-                StringBuilder indent = new StringBuilder();
-                for (int i = 0; i < depth; i++) {
-                    indent.append("  ");
+        /*
+         * Restituisce l'indice del nodo con valore value, creandolo se non esiste.
+         */
+        public int node(int value) {
+            int i = index.putIfAbsent(value, size);
+            if (i == size) {
+                if (size == values.length) {
+                    int capacity = size + (size >> 1) + 1;
+                    values = Arrays.copyOf(values, capacity);
+                    parent = Arrays.copyOf(parent, capacity);
+                    firstChild = Arrays.copyOf(firstChild, capacity);
+                    nextSibling = Arrays.copyOf(nextSibling, capacity);
                 }
+                values[size] = value;
+                parent[size] = -1;
+                firstChild[size] = -1;
+                nextSibling[size] = -1;
+                size++;
+            }
+            return i;
+        }
+
+        /*
+         * Collega il nodo child come figlio di p (in testa alla lista dei figli).
+         */
+        public void link(int p, int child) {
+            parent[child] = p;
+            nextSibling[child] = firstChild[p];
+            firstChild[p] = child;
+        }
 
-                s = new StringBuilder(indent.toString() + node.getValue() + "\n");
+        /*
+         * Riduce gli array al numero effettivo di nodi, a costruzione terminata.
+         */
+        public void trim() {
+            if (values.length > size) {
+                values = Arrays.copyOf(values, size);
+                parent = Arrays.copyOf(parent, size);
+                firstChild = Arrays.copyOf(firstChild, size);
+                nextSibling = Arrays.copyOf(nextSibling, size);
+            }
+        }
 
-                // Chiamata ricorsiva per ciascun figlio con profondità incrementata
-                for (Node child : node.getChildren()) {
-                    s.append(visit(child, depth + 1));
+        /*
+         * Cerca la radice come unico nodo senza padre.
+         */
+        public void findRoot() {
+            root = -1;
+            for (int i = 0; i < size; i++) {
+                if (parent[i] == -1) {
+                    root = i;
+                    break;
                 }
             }
+        }
+
+        /*
+         * Stessa stampa di Tree.visit(): un nodo per riga, indentato di due spazi per livello.
+         */
+        public String visit() {
+            StringBuilder s = new StringBuilder();
+            try {
+                visit(s);
+            } catch (IOException e) {
+                // StringBuilder non solleva IOException
+                throw new UncheckedIOException(e);
+            }
             return s.toString();
         }
+
+        /*
+         * Scrive la visita su out usando una pila esplicita di indici e le indentazioni in cache.
+         */
+        public void visit(Appendable out) throws IOException {
+            if (root == -1) {
+                return;
+            }
+            int[] stack = new int[16];
+            int[] depth = new int[16];
+            int top = 0;
+            stack[top] = root;
+            depth[top++] = 0;
+            while (top > 0) {
+                int node = stack[--top];
+                int d = depth[top];
+                appendIndent(out, d);
+                out.append(Integer.toString(values[node])).append('\n');
+                for (int c = firstChild[node]; c != -1; c = nextSibling[c]) {
+                    if (top == stack.length) {
+                        stack = Arrays.copyOf(stack, top * 2);
+                        depth = Arrays.copyOf(depth, top * 2);
+                    }
+                    stack[top] = c;
+                    depth[top++] = d + 1;
+                }
+            }
+        }
+
+        /*
+         * Byte occupati (array dimensionati sulla capacità corrente più la mappa dei valori).
+         */
+        public long memoryBytes() {
+            return 4 * (16L + 4L * values.length) + index.memoryBytes();
+        }
     }
 
     /*
      * Verifica se alberi con radici root1 e root2 sono uguali.
      * Due alberi sono considerati uguali se hanno la stessa struttura e gli stessi valori in tutti i nodi.
-     * Il confronto tra gli alberi viene effettuato direttamente invocando il metodo equals()
-     * implementato nella classe Node (invocandolo sulle radici).
+     *
+     * Prima vengono confrontate le impronte delle radici (calcolate una volta in O(n) e poi memorizzate):
+     * se sono diverse gli alberi sono sicuramente diversi e la risposta arriva in O(1).
+     * Se coincidono si esegue comunque il confronto completo con il metodo equals() implementato nella
+     * classe Node (invocandolo sulle radici), per escludere le collisioni.
      */
     public static boolean areEqual(Tree tree1, Tree tree2) {
         if(tree1 == null && tree2 == null)
             return true;
         else if(tree1 == null || tree2 == null)
             return false;
-        else   
+        else if (tree1.getRoot() == null || tree2.getRoot() == null)
+            return tree1.getRoot() == tree2.getRoot();
+        else if (tree1.fingerprint() != tree2.fingerprint())
+            return false;
+        else
             return tree1.getRoot().equals(tree2.getRoot());
 
     }
 
+    /*
+     * Confronto tra alberi in forma compatta. Poiché i valori sono univoci, due alberi sono uguali se e
+     * solo se hanno gli stessi nodi e ogni nodo ha lo stesso padre: per ogni nodo del primo albero si
+     * cerca il nodo con lo stesso valore nel secondo tramite la mappa dei valori e si confrontano
+     * i valori dei padri. Costo O(n), senza ricorsione.
+     */
+    public static boolean areEqual(FlatTree tree1, FlatTree tree2) {
+        if (tree1 == null || tree2 == null)
+            return tree1 == tree2;
+        if (tree1.size != tree2.size)
+            return false;
+        if (tree1.root == -1 || tree2.root == -1)
+            return tree1.root == tree2.root;
+        if (tree1.values[tree1.root] != tree2.values[tree2.root])
+            return false;
+        for (int i = 0; i < tree1.size; i++) {
+            int j = tree2.indexOf(tree1.values[i]);
+            if (j == -1) {
+                return false;
+            }
+            int p1 = tree1.parent[i];
+            int p2 = tree2.parent[j];
+            if (p1 == -1 || p2 == -1) {
+                if (p1 != p2) {
+                    return false;
+                }
+            } else if (tree1.values[p1] != tree2.values[p2]) {
+                return false;
+            }
+        }
+        return true;
+    }
 
     /*
-     * Costruisce un albero a partire da un file contenente coppie di valori padre-figlio.
-     * Ogni riga del file rappresenta una relazione padre-figlio, con i valori separati da una virgola.
-     * Il metodo costruisce i nodi dell'albero, li collega e individua il nodo radice per costruire
-     * un oggetto Tree.
+     * Confronto di alberi in parallelo su un ForkJoinPool.
+     *
+     * Ogni task confronta coppie di nodi (x, y) con una pila esplicita: controlla valore e numero di figli,
+     * ordina per valore i figli di entrambi e accoppia i figli nelle stesse posizioni (costo O(k log k)
+     * per un nodo con k figli). Le coppie di figli da confrontare restano nella pila del task finché
+     * qualche worker è inattivo: in quel caso la coppia più in basso nella pila, cioè quella più vicina
+     * alla radice e quindi con il sottoalbero presumibilmente più grande, viene ceduta ad un nuovo task.
+     * La soglia sequenziale è il numero minimo di coppie che un task confronta prima di poter cedere
+     * lavoro, così i sottoalberi piccoli non pagano il costo della creazione dei task.
+     *
+     * Alla prima differenza il task alza un flag condiviso; tutti i task lo controllano periodicamente
+     * e terminano senza proseguire il confronto.
      */
-    public static Tree buildFromPairs(String file) throws IOException {
+    public static class ParallelComparator implements AutoCloseable {
+        public static final int DEFAULT_CUTOFF = 4096;
+        private static final int CANCEL_CHECK = 256;
+        private static final Comparator<Tree.Node> BY_VALUE = Comparator.comparingInt(Tree.Node::getValue);
 
-        Map<Integer, Tree.Node> nodeMap = new HashMap<>();
-        Set<Integer> childrenSet = new HashSet<>();
-        Scanner scanner = new Scanner(new File(file));
+        private final ForkJoinPool pool;
+        private final int cutoff;
 
-        //Controlla se i nodi esistono già nella mappa (usando il valore come
-        // chiave), se no, li crea e li aggiunge.
+        public ParallelComparator(int parallelism) {
+            this(parallelism, DEFAULT_CUTOFF);
+        }
 
-        while (scanner.hasNextLine()) {
-            String line = scanner.nextLine().replaceAll(" ", "");
-            String[] parts = line.split(",");
-            int parentVal = Integer.parseInt(parts[0]);
-            int childVal = Integer.parseInt(parts[1]);
+        public ParallelComparator(int parallelism, int cutoff) {
+            this.pool = new ForkJoinPool(parallelism);
+            this.cutoff = Math.max(cutoff, 1);
+        }
 
-            Tree.Node parent = nodeMap.get(parentVal);
-            if (parent == null) {
-                parent = new Tree.Node(parentVal);
-                nodeMap.put(parentVal, parent);
+        /*
+         * Stesso risultato di areEqual(tree1, tree2), senza usare le impronte.
+         */
+        public boolean areEqual(Tree tree1, Tree tree2) {
+            if (tree1 == null || tree2 == null)
+                return tree1 == tree2;
+            if (tree1.getRoot() == null || tree2.getRoot() == null)
+                return tree1.getRoot() == tree2.getRoot();
+            AtomicBoolean mismatch = new AtomicBoolean();
+            pool.invoke(new CompareTask(tree1.getRoot(), tree2.getRoot(), mismatch));
+            return !mismatch.get();
+        }
+
+        private class CompareTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final ArrayDeque<Tree.Node> left = new ArrayDeque<>();
+            private final ArrayDeque<Tree.Node> right = new ArrayDeque<>();
+            private final AtomicBoolean mismatch;
+            private Tree.Node[] xs = new Tree.Node[16];
+            private Tree.Node[] ys = new Tree.Node[16];
+
+            CompareTask(Tree.Node x, Tree.Node y, AtomicBoolean mismatch) {
+                left.push(x);
+                right.push(y);
+                this.mismatch = mismatch;
             }
 
-            Tree.Node child = nodeMap.get(childVal);
-            if (child == null) {
-                child = new Tree.Node(childVal);
-                nodeMap.put(childVal, child);
+            @Override
+            protected void compute() {
+                ArrayList<CompareTask> forked = new ArrayList<>();
+                long compared = 0;
+                while (!left.isEmpty()) {
+                    if (compared % CANCEL_CHECK == 0 && mismatch.get()) {
+                        break;
+                    }
+                    // Cede la coppia più vicina alla radice se ci sono worker senza lavoro
+                    if (compared >= cutoff && left.size() > 1 && getSurplusQueuedTaskCount() == 0) {
+                        CompareTask task = new CompareTask(left.pollLast(), right.pollLast(), mismatch);
+                        task.fork();
+                        forked.add(task);
+                    }
+                    Tree.Node x = left.pop();
+                    Tree.Node y = right.pop();
+                    compared++;
+                    if (!matchChildren(x, y)) {
+                        mismatch.set(true);
+                        break;
+                    }
+                }
+                for (CompareTask task : forked) {
+                    task.join();
+                }
             }
-            //Collegamento padre-figlio
-            parent.addChild(child);
-            childrenSet.add(childVal);
-        }
-        scanner.close();
 
-        // Cerco nodo il cui valore non è contenuto nel set dei nodi figli --> questo nodo
-        // non è figlio di nessuno quindi è radice.
-        Tree tree = new Tree();
-        for (int key : nodeMap.keySet()) {
-            if (!childrenSet.contains(key)) {
-                tree = new Tree(nodeMap.get(key));
-                break;
+            /*
+             * Confronta x e y e inserisce nella pila le coppie di figli corrispondenti.
+             */
+            private boolean matchChildren(Tree.Node x, Tree.Node y) {
+                if (x.value != y.value) return false;
+                int k = x.children.size();
+                if (k != y.children.size()) return false;
+                if (k == 0) return true;
+                if (k == 1) {
+                    left.push(x.children.iterator().next());
+                    right.push(y.children.iterator().next());
+                    return true;
+                }
+                if (xs.length < k) {
+                    xs = new Tree.Node[Math.max(k, xs.length * 2)];
+                    ys = new Tree.Node[xs.length];
+                }
+                x.children.toArray(xs);
+                y.children.toArray(ys);
+                Arrays.sort(xs, 0, k, BY_VALUE);
+                Arrays.sort(ys, 0, k, BY_VALUE);
+                for (int i = 0; i < k; i++) {
+                    left.push(xs[i]);
+                    right.push(ys[i]);
+                }
+                return true;
             }
         }
-        return tree;
+
+        @Override
+        public void close() {
+            pool.shutdown();
+        }
     }
 
     /*
-     * Costruisce un albero a partire da un file contenente una stringa rappresentante delle liste
-     * annidate.
-     *
-     * I caratteri ‘[‘ e ‘]’ vengono usati per delimitare una lista e gli elementi all’interno
-     * della lista sono separati dal carattere ‘,’.
-     * Viene usato uno stack per memorizzare la gerarchia dei nodi, i nodi che vengono creati
-     * sono figli dell'ultimo nodo in cima.
+     * Differenza trovata da diff(): il tipo, il percorso (valori dalla radice al nodo in cui si trova,
+     * radice compresa, con i valori del primo albero) e i valori coinvolti.
      *
-     * Viene usato un oggetto StringBuilder invece che String perchè ha prestazioni migliori 
-     * quando deve essere modificato.
+     *    VALUE_MISMATCH: al percorso path il primo albero ha expected e il secondo actual
+     *                    (le radici hanno valori diversi, oppure un figlio è stato sostituito)
+     *    MISSING_CHILD:  il nodo al percorso path ha nel primo albero il figlio expected che manca nel secondo
+     *    EXTRA_CHILD:    il nodo al percorso path ha nel secondo albero il figlio actual che manca nel primo
      */
-    public static Tree buildFromNestedList(String file) throws IOException {
-        Scanner scanner = new Scanner(new File(file));
-        String nested = scanner.nextLine().replaceAll(" ", "");
-        scanner.close();
-
-        Stack<Tree.Node> nodeStack = new Stack<>();
-        Tree.Node root = null;
-        StringBuilder number = new StringBuilder();
+    public static class Mismatch {
+        public enum Kind { VALUE_MISMATCH, MISSING_CHILD, EXTRA_CHILD }
 
+        public final Kind kind;
+        public final int[] path;
+        public final int expected;
+        public final int actual;
 
-        for (int i = 0; i < nested.length(); i++) {
-            char ch = nested.charAt(i);
+        public Mismatch(Kind kind, int[] path, int expected, int actual) {
+            this.kind = kind;
+            this.path = path;
+            this.expected = expected;
+            this.actual = actual;
+        }
 
-            // Se il carattere è una cifra numerica la aggiungo  number (potrebbe non essere finito).
-            if (Character.isDigit(ch)) {
-                number.append(ch);
+        @Override
+        public String toString() {
+            switch (kind) {
+                case MISSING_CHILD:
+                    return kind + " " + Arrays.toString(path) + ": " + expected;
+                case EXTRA_CHILD:
+                    return kind + " " + Arrays.toString(path) + ": " + actual;
+                default:
+                    return kind + " " + Arrays.toString(path) + ": " + expected + " -> " + actual;
             }
+        }
+    }
 
-            // Se il carattere è '[' vuol dire che sta per iniziare una lista di nodi quindi
-            // si controlla se number conteneva un numero e se si viene creato un nodo con quel valore.
-            // Se la stack NON è vuota questo nodo è figlio di quello in cima.Infine il nodo viene inserito
-            // in cima alla pila.
-            else if (ch == '[') {
-                if (!number.isEmpty()) {
-                    Tree.Node node = new Tree.Node(Integer.parseInt(number.toString()));
-                    if (!nodeStack.isEmpty()) {
-                        nodeStack.peek().addChild(node);
-                    }
-                    nodeStack.push(node);
+    /*
+     * Restituisce come Stream pigro le differenze tra tree1 e tree2, in pre-ordine e con i figli in ordine
+     * di valore. Le differenze vengono cercate solo quando lo stream le richiede, quindi ad esempio
+     * diff(a, b).limit(k) si ferma dopo le prime k e diff(a, b).findFirst() dopo la prima; in memoria
+     * c'è solo la pila della visita, mai l'elenco completo.
+     *
+     * Le impronte (calcolate una volta in O(n) e poi memorizzate) permettono di saltare i sottoalberi
+     * uguali: con alberi quasi identici vengono visitati solo i percorsi che portano alle differenze.
+     * Come in areEqual() sottoalberi diversi con la stessa impronta (probabilità circa 2^-64) verrebbero
+     * considerati uguali.
+     */
+    public static Stream<Mismatch> diff(Tree tree1, Tree tree2) {
+        return StreamSupport.stream(new TreeDiff(tree1, tree2), false);
+    }
 
-                    number.setLength(0);
-                }
+    /*
+     * Spliterator sequenziale alla base di diff(). Per ogni coppia di nodi corrispondenti (x, y) con
+     * impronte diverse ordina per valore i figli di entrambi e li scorre insieme come in un merge:
+     * i figli con lo stesso valore formano una nuova coppia da visitare, gli altri sono MISSING_CHILD
+     * o EXTRA_CHILD. Se ad x manca esattamente un figlio di y e viceversa, i due figli vengono considerati
+     * lo stesso nodo con valore cambiato (VALUE_MISMATCH) e il confronto prosegue nei loro sottoalberi.
+     * I percorsi riportano i valori del primo albero. Le differenze tra i figli di uno stesso nodo
+     * vengono prodotte insieme, quindi la memoria occupata è limitata dal grado massimo e dalla profondità.
+     */
+    static class TreeDiff implements Spliterator<Mismatch> {
+        private static final Comparator<Tree.Node> BY_VALUE = Comparator.comparingInt(Tree.Node::getValue);
+
+        // Percorso condiviso tra i discendenti: ogni elemento conosce il valore e il proprio padre
+        private static final class PathLink {
+            final int value;
+            final PathLink parent;
+            final int depth;
 
+            PathLink(int value, PathLink parent) {
+                this.value = value;
+                this.parent = parent;
+                this.depth = parent == null ? 1 : parent.depth + 1;
             }
 
-            // Se il carattere è ']' vuol dire che il numero è finito e che è finita
-            // una lista di nodi quindi si controlla se la stringa number conteneva un numero e se si
-            // viene creato un nodo con quel valore.
-            // Se la stack NON è vuota questo nodo è figlio di quello in cima.Il nodo viene poi inserito in cima.
-            // Infine se stack non è vuota viene rimosso l'elemento in cima.
-            else if (ch == ']') {
-                if (!number.isEmpty()) {
-                    Tree.Node node = new Tree.Node(Integer.parseInt(number.toString()));
-                    if (!nodeStack.isEmpty()) {
-                        nodeStack.peek().addChild(node);
-                    }
-                    nodeStack.push(node);
-                    if (root == null) {
-                        root = node;
-                    }
-                    number.setLength(0);
-                }
-                if (!nodeStack.isEmpty()) {
-                    nodeStack.pop();
-                }
-            }
-            // Considerando un input corretto se non è ne una cifra ne '[', ne ']' è ','.
-            // Se il carattere è ',' vuol dire che il numero è finito ma che non è finita
-            // la lista di nodi quindi si controlla se la stringa number conteneva un numero e se si
-            // viene creato un nodo con quel valore.
-            // Se la stack NON è vuota questo nodo è figlio di quello in cima
-            // e poi viene a sua volta inserito in cima.
-            else {
-                if (!number.isEmpty()) {
-                    Tree.Node node = new Tree.Node(Integer.parseInt(number.toString()));
-                    if (!nodeStack.isEmpty()) {
-                        nodeStack.peek().addChild(node);
-                    }
-                    nodeStack.push(node);
-                    number.setLength(0);
-                    if (root == null) {
-                        root = node;
-                    }
+            int[] toArray() {
+                int[] path = new int[depth];
+                for (PathLink link = this; link != null; link = link.parent) {
+                    path[link.depth - 1] = link.value;
                 }
+                return path;
             }
         }
-        return new Tree(root);
-    }
 
+        private static final int[] ROOT_PATH = new int[0];
 
-    public static void main(String[] args) throws IOException {
+        private final ArrayDeque<Tree.Node> left = new ArrayDeque<>();
+        private final ArrayDeque<Tree.Node> right = new ArrayDeque<>();
+        private final ArrayDeque<PathLink> paths = new ArrayDeque<>();
+        private final ArrayDeque<Mismatch> ready = new ArrayDeque<>();
+        private Tree.Node[] xs = new Tree.Node[16];
+        private Tree.Node[] ys = new Tree.Node[16];
+        private Tree.Node[] px = new Tree.Node[16];
+        private Tree.Node[] py = new Tree.Node[16];
 
-        if (args.length != 2) {
-            System.err.println("Errore, utilizza il formato: java Esercizio1 <file1.txt> <file2.txt>");
-            return;
+        TreeDiff(Tree tree1, Tree tree2) {
+            Tree.Node root1 = tree1 == null ? null : tree1.getRoot();
+            Tree.Node root2 = tree2 == null ? null : tree2.getRoot();
+            if (root1 == null && root2 != null) {
+                ready.add(new Mismatch(Mismatch.Kind.EXTRA_CHILD, ROOT_PATH, 0, root2.value));
+            } else if (root1 != null && root2 == null) {
+                ready.add(new Mismatch(Mismatch.Kind.MISSING_CHILD, ROOT_PATH, root1.value, 0));
+            } else if (root1 != null) {
+                if (root1.value != root2.value) {
+                    ready.add(new Mismatch(Mismatch.Kind.VALUE_MISMATCH, new int[]{root1.value}, root1.value, root2.value));
+                }
+                push(root1, root2, new PathLink(root1.value, null));
+            }
         }
-        String pairsFile = args[0];
-        String nestedListFile = args[1];
 
-        Tree tree1 = buildFromPairs(pairsFile);
-        Tree tree2 = buildFromNestedList(nestedListFile);
+        private void push(Tree.Node x, Tree.Node y, PathLink path) {
+            if (x.fingerprint() != y.fingerprint() || x.value != y.value) {
+                left.push(x);
+                right.push(y);
+                paths.push(path);
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Mismatch> action) {
+            while (ready.isEmpty() && !left.isEmpty()) {
+                expand(left.pop(), right.pop(), paths.pop());
+            }
+            Mismatch next = ready.poll();
+            if (next == null) {
+                return false;
+            }
+            action.accept(next);
+            return true;
+        }
+
+        /*
+         * Confronta i figli di x e y: accoda le differenze trovate e inserisce nella pila le coppie di figli
+         * da visitare (in ordine inverso, così vengono estratte in ordine di valore).
+         */
+        private void expand(Tree.Node x, Tree.Node y, PathLink path) {
+            int kx = x.children.size();
+            int ky = y.children.size();
+            if (xs.length < kx) {
+                xs = new Tree.Node[Math.max(kx, xs.length * 2)];
+            }
+            if (ys.length < ky) {
+                ys = new Tree.Node[Math.max(ky, ys.length * 2)];
+            }
+            x.children.toArray(xs);
+            y.children.toArray(ys);
+            Arrays.sort(xs, 0, kx, BY_VALUE);
+            Arrays.sort(ys, 0, ky, BY_VALUE);
+
+            // Merge dei figli ordinati: coppie con lo stesso valore e figli presenti da una sola parte
+            int pairs = 0;
+            int missing = 0;
+            int extra = 0;
+            int lastMissing = -1;
+            int lastExtra = -1;
+            if (px.length < Math.min(kx, ky) + 1) {
+                px = new Tree.Node[Math.max(Math.min(kx, ky) + 1, px.length * 2)];
+                py = new Tree.Node[px.length];
+            }
+            for (int i = 0, j = 0; i < kx || j < ky; ) {
+                if (j == ky || (i < kx && xs[i].value < ys[j].value)) {
+                    missing++;
+                    lastMissing = i++;
+                } else if (i == kx || ys[j].value < xs[i].value) {
+                    extra++;
+                    lastExtra = j++;
+                } else {
+                    px[pairs] = xs[i++];
+                    py[pairs++] = ys[j++];
+                }
+            }
+
+            if (missing == 1 && extra == 1) {
+                Tree.Node from = xs[lastMissing];
+                Tree.Node to = ys[lastExtra];
+                PathLink link = new PathLink(from.value, path);
+                ready.add(new Mismatch(Mismatch.Kind.VALUE_MISMATCH, link.toArray(), from.value, to.value));
+                px[pairs] = from;
+                py[pairs++] = to;
+            } else if (missing + extra > 0) {
+                int[] here = path.toArray();
+                for (int i = 0, j = 0; i < kx || j < ky; ) {
+                    if (j == ky || (i < kx && xs[i].value < ys[j].value)) {
+                        ready.add(new Mismatch(Mismatch.Kind.MISSING_CHILD, here, xs[i++].value, 0));
+                    } else if (i == kx || ys[j].value < xs[i].value) {
+                        ready.add(new Mismatch(Mismatch.Kind.EXTRA_CHILD, here, 0, ys[j++].value));
+                    } else {
+                        i++;
+                        j++;
+                    }
+                }
+            }
+
+            // Inserite al contrario così vengono estratte in ordine di valore
+            for (int p = pairs - 1; p >= 0; p--) {
+                push(px[p], py[p], new PathLink(px[p].value, path));
+            }
+            Arrays.fill(xs, 0, kx, null);
+            Arrays.fill(ys, 0, ky, null);
+            Arrays.fill(px, 0, pairs, null);
+            Arrays.fill(py, 0, pairs, null);
+        }
+
+        @Override
+        public Spliterator<Mismatch> trySplit() {
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+    }
+
+    /*
+     * Indice di alberi per classi di uguaglianza (la stessa di areEqual() e Node.equals()).
+     *
+     * Le classi sono raggruppate in una HashMap per impronta dell'albero: per sapere se esiste già un albero
+     * uguale a quello cercato si calcola la sua impronta (O(n), poi memorizzata nei nodi), si legge il
+     * gruppo con la stessa impronta in O(1) atteso e si conferma con un confronto completo contro il
+     * rappresentante della classe, per escludere le collisioni. Due classi diverse finiscono nello stesso
+     * gruppo solo in caso di collisione dell'impronta; i confronti completi falliti vengono contati.
+     *
+     * E' thread-safe (la mappa è protetta dal lock dell'indice). Gli alberi inseriti non devono essere
+     * modificati: le impronte memorizzate non sarebbero più quelle con cui sono stati indicizzati.
+     */
+    public static class TreeIndex {
+        private static final int LEAF_ITEMS = 4;
+
+        /*
+         * Classe di equivalenza: il primo albero inserito e tutti quelli uguali ad esso.
+         */
+        public static class TreeClass {
+            public final Tree representative;
+            public final ArrayList<Tree> members = new ArrayList<>();
+
+            TreeClass(Tree representative) {
+                this.representative = representative;
+                members.add(representative);
+            }
+        }
+
+        private final HashMap<Long, ArrayList<TreeClass>> buckets = new HashMap<>();
+        private final ArrayList<TreeClass> classes = new ArrayList<>();
+        private int trees;
+        private final LongAdder lookups = new LongAdder();
+        private final LongAdder deepChecks = new LongAdder();
+        private final LongAdder collisions = new LongAdder();
+
+        /*
+         * Rappresentante di una classe uguale a tree, null se non c'è.
+         */
+        public Tree find(Tree tree) {
+            long fingerprint = tree.fingerprint();
+            lookups.increment();
+            synchronized (this) {
+                TreeClass match = match(buckets.get(fingerprint), tree);
+                return match == null ? null : match.representative;
+            }
+        }
+
+        /*
+         * Inserisce tree nella sua classe, creandola se necessario, e restituisce il rappresentante
+         * della classe (tree stesso se è il primo della sua classe).
+         */
+        public Tree add(Tree tree) {
+            long fingerprint = tree.fingerprint();
+            lookups.increment();
+            synchronized (this) {
+                ArrayList<TreeClass> bucket = buckets.computeIfAbsent(fingerprint, key -> new ArrayList<>(1));
+                TreeClass match = match(bucket, tree);
+                if (match == null) {
+                    match = new TreeClass(tree);
+                    bucket.add(match);
+                    classes.add(match);
+                } else {
+                    match.members.add(tree);
+                }
+                trees++;
+                return match.representative;
+            }
+        }
+
+        private TreeClass match(ArrayList<TreeClass> bucket, Tree tree) {
+            if (bucket == null) {
+                return null;
+            }
+            for (TreeClass candidate : bucket) {
+                deepChecks.increment();
+                if (areEqual(candidate.representative, tree)) {
+                    return candidate;
+                }
+                collisions.increment();
+            }
+            return null;
+        }
+
+        /*
+         * Inserisce un intero corpus usando parallelism thread: prima le impronte di tutti gli alberi
+         * in parallelo, poi il raggruppamento per impronta e infine, di nuovo in parallelo sui gruppi,
+         * la suddivisione di ogni gruppo in classi con i confronti completi. Il risultato è lo stesso che
+         * si avrebbe chiamando add() su ogni albero nell'ordine del corpus.
+         */
+        public synchronized void addAll(List<Tree> corpus, int parallelism) {
+            Tree[] items = corpus.toArray(new Tree[0]);
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new ForEachTask(0, items.length, i -> items[i].fingerprint()));
+
+                // Gruppi di alberi (posizioni nel corpus) con la stessa impronta, in ordine di apparizione
+                LinkedHashMap<Long, ArrayList<Integer>> groups = new LinkedHashMap<>();
+                for (int i = 0; i < items.length; i++) {
+                    groups.computeIfAbsent(items[i].fingerprint(), key -> new ArrayList<>(1)).add(i);
+                }
+                long[] keys = new long[groups.size()];
+                @SuppressWarnings({"unchecked", "rawtypes"})
+                ArrayList<Integer>[] members = new ArrayList[groups.size()];
+                int g = 0;
+                for (Map.Entry<Long, ArrayList<Integer>> entry : groups.entrySet()) {
+                    keys[g] = entry.getKey();
+                    members[g++] = entry.getValue();
+                }
+
+                // Ogni gruppo viene diviso in classi indipendentemente dagli altri; i worker leggono soltanto
+                // buckets, che viene modificato solo dopo
+                @SuppressWarnings({"unchecked", "rawtypes"})
+                ArrayList<TreeClass>[] results = new ArrayList[keys.length];
+                pool.invoke(new ForEachTask(0, keys.length, k -> {
+                    ArrayList<TreeClass> existing = buckets.get(keys[k]);
+                    ArrayList<TreeClass> bucket = existing == null ? new ArrayList<>(1) : new ArrayList<>(existing);
+                    ArrayList<TreeClass> created = new ArrayList<>(1);
+                    for (int i : members[k]) {
+                        TreeClass match = match(bucket, items[i]);
+                        if (match == null) {
+                            match = new TreeClass(items[i]);
+                            bucket.add(match);
+                            created.add(match);
+                        } else {
+                            match.members.add(items[i]);
+                        }
+                    }
+                    results[k] = created;
+                }));
+
+                for (int k = 0; k < keys.length; k++) {
+                    if (!results[k].isEmpty()) {
+                        buckets.computeIfAbsent(keys[k], key -> new ArrayList<>(1)).addAll(results[k]);
+                    }
+                }
+                // Nuove classi ordinate per primo membro, come con add() in sequenza
+                ArrayList<TreeClass> created = new ArrayList<>();
+                for (ArrayList<TreeClass> result : results) {
+                    created.addAll(result);
+                }
+                IdentityHashMap<Tree, Integer> position = new IdentityHashMap<>();
+                for (int i = 0; i < items.length; i++) {
+                    position.putIfAbsent(items[i], i);
+                }
+                created.sort(Comparator.comparingInt(c -> position.get(c.representative)));
+                classes.addAll(created);
+                trees += items.length;
+                lookups.add(items.length);
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        /*
+         * Esegue action(i) per ogni i in [from, to), dividendo l'intervallo tra i worker.
+         */
+        private static class ForEachTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final int from;
+            private final int to;
+            private final IntConsumer action;
+
+            ForEachTask(int from, int to, IntConsumer action) {
+                this.from = from;
+                this.to = to;
+                this.action = action;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= LEAF_ITEMS) {
+                    for (int i = from; i < to; i++) {
+                        action.accept(i);
+                    }
+                    return;
+                }
+                int mid = (from + to) >>> 1;
+                invokeAll(new ForEachTask(from, mid, action), new ForEachTask(mid, to, action));
+            }
+        }
+
+        /*
+         * Classi di equivalenza nell'ordine in cui è stato inserito il loro primo albero.
+         */
+        public synchronized List<TreeClass> classes() {
+            return new ArrayList<>(classes);
+        }
+
+        public synchronized int size() {
+            return classes.size();
+        }
+
+        public synchronized int trees() {
+            return trees;
+        }
+
+        public synchronized int buckets() {
+            return buckets.size();
+        }
+
+        public long deepChecks() {
+            return deepChecks.sum();
+        }
+
+        /*
+         * Confronti completi falliti nonostante l'impronta uguale (collisioni dell'impronta).
+         */
+        public long collisions() {
+            return collisions.sum();
+        }
+
+        /*
+         * Stima dei byte occupati dall'indice, esclusi gli alberi: voci della HashMap (nodo 32 B,
+         * Long 16 B, cella della tabella 4 B), liste dei gruppi e classi con le loro liste di membri.
+         */
+        public synchronized long memoryBytes() {
+            long bytes = 48 + 16 + 4L * Integer.highestOneBit(Math.max(1, buckets.size() * 4 / 3) * 2 - 1);
+            bytes += (32 + 16 + 24 + 16 + 4) * (long) buckets.size();
+            bytes += (16 + 24 + 16) * (long) classes.size() + 4L * (classes.size() + trees);
+            return bytes;
+        }
+
+        public synchronized String statistics() {
+            return String.format("alberi=%d classi=%d gruppi=%d ricerche=%d confronti completi=%d collisioni=%d memoria=%d B",
+                    trees, classes.size(), buckets.size(), lookups.sum(), deepChecks.sum(), collisions.sum(), memoryBytes());
+        }
+    }
+
+    /*
+     * Nodo immutabile e condiviso prodotto da SubtreeInterner: valore, figli ordinati per valore
+     * e impronta (la stessa di Tree.Node.fingerprint() per un sottoalbero uguale).
+     *
+     * All'interno di uno stesso SubtreeInterner due sottoalberi uguali sono la stessa istanza, quindi
+     * equals() confronta soltanto il valore e i riferimenti dei figli (costo O(k), senza ricorsione):
+     * è l'uguaglianza usata dalla tabella dell'interner. Per confrontare nodi di interner diversi
+     * si usa areEqual(SharedNode, SharedNode).
+     */
+    public static final class SharedNode {
+        private static final SharedNode[] NO_CHILDREN = new SharedNode[0];
+
+        public final int value;
+        private final SharedNode[] children;
+        public final long fingerprint;
+        // Numero di nodi del sottoalbero (contando le ripetizioni)
+        public final long size;
+
+        SharedNode(int value, SharedNode[] children) {
+            this.value = value;
+            this.children = children.length == 0 ? NO_CHILDREN : children;
+            long sum = 0;
+            long count = 1;
+            for (SharedNode child : children) {
+                sum += Tree.mix(child.fingerprint + Tree.FINGERPRINT_SALT);
+                count += child.size;
+            }
+            this.fingerprint = Tree.mix(value * 0x9E3779B97F4A7C15L + sum);
+            this.size = count;
+        }
+
+        public int childCount() {
+            return children.length;
+        }
+
+        /*
+         * i-esimo figlio in ordine di valore.
+         */
+        public SharedNode child(int i) {
+            return children[i];
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof SharedNode)) return false;
+            SharedNode other = (SharedNode) obj;
+            if (value != other.value || fingerprint != other.fingerprint || children.length != other.children.length) {
+                return false;
+            }
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] != other.children[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (fingerprint ^ (fingerprint >>> 32));
+        }
+    }
+
+    /*
+     * Confronto di sottoalberi condivisi anche provenienti da interner diversi: riferimento uguale,
+     * altrimenti impronta e poi struttura, con una pila esplicita. I figli sono già ordinati per valore
+     * e quindi si confrontano posizione per posizione; le coppie di sottoalberi condivisi (stesso
+     * riferimento) non vengono visitate.
+     */
+    public static boolean areEqual(SharedNode a, SharedNode b) {
+        if (a == b) return true;
+        if (a == null || b == null || a.fingerprint != b.fingerprint) return false;
+        ArrayDeque<SharedNode> left = new ArrayDeque<>();
+        ArrayDeque<SharedNode> right = new ArrayDeque<>();
+        left.push(a);
+        right.push(b);
+        while (!left.isEmpty()) {
+            SharedNode x = left.pop();
+            SharedNode y = right.pop();
+            if (x.value != y.value || x.children.length != y.children.length) {
+                return false;
+            }
+            for (int i = 0; i < x.children.length; i++) {
+                if (x.children[i] != y.children[i]) {
+                    left.push(x.children[i]);
+                    right.push(y.children[i]);
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Hash-consing dei sottoalberi: ogni sottoalbero viene costruito dopo i figli (post-ordine) e cercato
+     * in una HashMap di nodi già creati; se esiste un nodo con lo stesso valore e gli stessi figli
+     * (per riferimento) si riusa quello. La memoria cresce quindi con il numero di sottoalberi distinti
+     * e non con il numero totale di nodi di tutte le versioni, e due sottoalberi uguali costruiti con
+     * lo stesso interner sono lo stesso oggetto (uguaglianza per riferimento).
+     * I metodi sono synchronized: un interner può essere condiviso tra più thread.
+     */
+    public static class SubtreeInterner {
+        private static final Comparator<SharedNode> BY_VALUE = Comparator.comparingInt(node -> node.value);
+
+        private final HashMap<SharedNode, SharedNode> table = new HashMap<>();
+        private long lookups;
+        private long hits;
+        private long childSlots;
+
+        /*
+         * Nodo condiviso con valore value e i figli dati (già condivisi, in qualunque ordine).
+         */
+        public SharedNode intern(int value, SharedNode[] children) {
+            return internOwned(value, children.clone());
+        }
+
+        // Come intern() ma ordina e conserva direttamente l'array ricevuto
+        private synchronized SharedNode internOwned(int value, SharedNode[] sorted) {
+            Arrays.sort(sorted, BY_VALUE);
+            SharedNode candidate = new SharedNode(value, sorted);
+            lookups++;
+            SharedNode existing = table.putIfAbsent(candidate, candidate);
+            if (existing != null) {
+                hits++;
+                return existing;
+            }
+            childSlots += sorted.length;
+            return candidate;
+        }
+
+        /*
+         * Radice condivisa dell'albero tree (null se vuoto), costruita in post-ordine con una pila esplicita.
+         */
+        public SharedNode intern(FlatTree tree) {
+            if (tree.root == -1) {
+                return null;
+            }
+            int[] order = new int[tree.size];
+            int count = 0;
+            int[] stack = new int[16];
+            int top = 0;
+            stack[top++] = tree.root;
+            while (top > 0) {
+                int node = stack[--top];
+                order[count++] = node;
+                for (int c = tree.firstChild[node]; c != -1; c = tree.nextSibling[c]) {
+                    if (top == stack.length) {
+                        stack = Arrays.copyOf(stack, top * 2);
+                    }
+                    stack[top++] = c;
+                }
+            }
+            SharedNode[] shared = new SharedNode[tree.size];
+            SharedNode[] children = new SharedNode[16];
+            for (int i = count - 1; i >= 0; i--) {
+                int node = order[i];
+                int k = 0;
+                for (int c = tree.firstChild[node]; c != -1; c = tree.nextSibling[c]) {
+                    if (k == children.length) {
+                        children = Arrays.copyOf(children, k * 2);
+                    }
+                    children[k++] = shared[c];
+                }
+                shared[node] = internOwned(tree.values[node], Arrays.copyOf(children, k));
+                // I figli non servono più: la memoria temporanea resta proporzionale alla frontiera
+                for (int c = tree.firstChild[node]; c != -1; c = tree.nextSibling[c]) {
+                    shared[c] = null;
+                }
+            }
+            return shared[tree.root];
+        }
+
+        /*
+         * Numero di sottoalberi distinti memorizzati.
+         */
+        public synchronized int size() {
+            return table.size();
+        }
+
+        public synchronized long hits() {
+            return hits;
+        }
+
+        /*
+         * Stima dei byte occupati: nodo condiviso (32 B), array dei figli (16 B + 4 B per figlio),
+         * voce della HashMap (32 B) e cella della tabella (4 B, carico 0.75).
+         */
+        public synchronized long memoryBytes() {
+            long nodes = table.size();
+            return nodes * (32 + 16 + 32) + 4 * childSlots + 16 + 4L * Integer.highestOneBit((int) Math.max(1, nodes * 4 / 3) * 2 - 1);
+        }
+
+        public synchronized String statistics() {
+            return String.format("sottoalberi distinti=%d ricerche=%d riusati=%d (%.1f%%) memoria=%d B",
+                    table.size(), lookups, hits, 100.0 * hits / Math.max(lookups, 1), memoryBytes());
+        }
+    }
+
+    /*
+     * Stima dei byte occupati da un Tree (JVM a 64 bit con compressed oops): per ogni nodo il Node
+     * (40 B), il suo HashSet (16 B) con la HashMap interna (48 B), la tabella della HashMap quando
+     * ha almeno un figlio (16 B + 4 B per cella, capacità 16 raddoppiata oltre il 75% di carico)
+     * e una HashMap.Node da 32 B per ogni figlio.
+     */
+    public static long estimateMemoryBytes(Tree tree) {
+        if (tree == null || tree.getRoot() == null) {
+            return 0;
+        }
+        long bytes = 0;
+        ArrayDeque<Tree.Node> stack = new ArrayDeque<>();
+        stack.push(tree.getRoot());
+        while (!stack.isEmpty()) {
+            Tree.Node node = stack.pop();
+            int children = node.children.size();
+            bytes += 40 + 16 + 48 + 32L * children;
+            if (children > 0) {
+                int capacity = 16;
+                while (children > capacity * 3 / 4) {
+                    capacity *= 2;
+                }
+                bytes += 16 + 4L * capacity;
+            }
+            node.children.forEach(stack::push);
+        }
+        return bytes;
+    }
+
+    /*
+     * Genera un albero casuale di n nodi con valori 0..n-1: il padre del nodo i è scelto a caso tra
+     * i nodi precedenti (profondità attesa O(log n)). Con lo stesso seed si ottiene lo stesso albero,
+     * con i figli inseriti in ordine diverso se shuffle è vero.
+     */
+    static Tree randomTree(int n, long seed, boolean shuffle) {
+        Random random = new Random(seed);
+        int[] parent = new int[n];
+        for (int i = 1; i < n; i++) {
+            parent[i] = random.nextInt(i);
+        }
+        Integer[] order = new Integer[Math.max(n - 1, 0)];
+        for (int i = 1; i < n; i++) {
+            order[i - 1] = i;
+        }
+        if (shuffle) {
+            Collections.shuffle(Arrays.asList(order), new Random(seed + 1));
+        }
+        Tree.Node[] nodes = new Tree.Node[n];
+        for (int i = 0; i < n; i++) {
+            nodes[i] = new Tree.Node(i);
+        }
+        for (int i : order) {
+            nodes[parent[i]].addChild(nodes[i]);
+        }
+        return new Tree(n == 0 ? null : nodes[0]);
+    }
+
+    /*
+     * Confronta il vecchio areEqual (solo la visita completa di subtreeEquals() sulle radici, con le
+     * impronte non ancora calcolate) con quello basato sulle impronte, su due alberi uguali di n nodi e su una coppia che
+     * differisce per una foglia aggiunta in profondità.
+     */
+    public static void benchmarkAreEqual(int n, int runs) {
+        Tree a = randomTree(n, 1070505, false);
+        Tree b = randomTree(n, 1070505, true);
+        Tree c = randomTree(n, 1070505, true);
+        // c differisce da a per una foglia aggiunta all'ultimo nodo generato
+        Tree.Node deepest = c.getRoot();
+        ArrayDeque<Tree.Node> stack = new ArrayDeque<>();
+        stack.push(c.getRoot());
+        while (!stack.isEmpty()) {
+            Tree.Node node = stack.pop();
+            if (node.value == n - 1) {
+                deepest = node;
+            }
+            node.children.forEach(stack::push);
+        }
+        deepest.addChild(new Tree.Node(n));
+
+        for (Tree other : new Tree[]{b, c}) {
+            String label = other == b ? "alberi uguali" : "alberi diversi";
+            boolean result = false;
+            long t0 = System.nanoTime();
+            for (int r = 0; r < runs; r++) {
+                result = Tree.subtreeEquals(a.getRoot(), other.getRoot());
+            }
+            System.out.printf("%s, subtreeEquals senza impronte: %.3f ms (%b)%n", label, (System.nanoTime() - t0) / 1e6 / runs, result);
+        }
+
+        long t0 = System.nanoTime();
+        long fingerprints = a.fingerprint() ^ b.fingerprint() ^ c.fingerprint();
+        System.out.printf("Calcolo delle impronte (3 alberi da %d nodi): %.1f ms (%x)%n",
+                n, (System.nanoTime() - t0) / 1e6, fingerprints);
+
+        for (Tree other : new Tree[]{b, c}) {
+            String label = other == b ? "alberi uguali" : "alberi diversi";
+            boolean result = false;
+            t0 = System.nanoTime();
+            for (int r = 0; r < runs; r++) {
+                result = areEqual(a, other);
+            }
+            System.out.printf("%s, areEqual con impronte: %.3f ms (%b)%n", label, (System.nanoTime() - t0) / 1e6 / runs, result);
+        }
+    }
+
+    /*
+     * Archi letti da una porzione di un file di coppie padre-figlio, nell'ordine del file:
+     * parents[i] -> children[i] per i < size.
+     */
+    static final class PairChunk {
+        int[] parents = new int[1024];
+        int[] children = new int[1024];
+        int size;
+
+        void add(int parent, int child) {
+            if (size == parents.length) {
+                parents = Arrays.copyOf(parents, size * 2);
+                children = Arrays.copyOf(children, size * 2);
+            }
+            parents[size] = parent;
+            children[size++] = child;
+        }
+    }
+
+    private static final int MIN_CHUNK_BYTES = 1 << 20;
+
+    /*
+     * Legge in parallelo un file di coppie "padre, figlio" (una per riga).
+     *
+     * Il file viene diviso in parallelism * 4 porzioni di byte (almeno 1 MB ciascuna) analizzate da un
+     * ForkJoinPool: ogni porzione contiene le righe che iniziano al suo interno, quindi salta l'eventuale
+     * riga iniziata nella porzione precedente e completa l'ultima anche oltre il proprio limite.
+     * Le righe vengono lette a blocchi con letture posizionali sul FileChannel e interpretate byte per
+     * byte, senza creare stringhe; gli spazi vengono ignorati e le righe vuote saltate.
+     * Le porzioni vengono restituite nell'ordine del file.
+     */
+    static PairChunk[] readPairs(String file, int parallelism) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int chunks = (int) Math.max(1, Math.min((long) parallelism * 4, size / MIN_CHUNK_BYTES));
+            PairChunk[] result = new PairChunk[chunks];
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new PairChunkTask(channel, size, chunks, 0, chunks, result));
+            } finally {
+                pool.shutdown();
+            }
+            return result;
+        }
+    }
+
+    private static final class PairChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long fileSize;
+        private final int chunks;
+        private final int from;
+        private final int to;
+        private final PairChunk[] result;
+
+        PairChunkTask(FileChannel channel, long fileSize, int chunks, int from, int to, PairChunk[] result) {
+            this.channel = channel;
+            this.fileSize = fileSize;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+            this.result = result;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                try {
+                    result[from] = new PairParser(channel, fileSize * from / chunks, fileSize * (from + 1) / chunks).parse();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new PairChunkTask(channel, fileSize, chunks, from, mid, result),
+                    new PairChunkTask(channel, fileSize, chunks, mid, to, result));
+        }
+    }
+
+    /*
+     * Analizza le righe che iniziano nell'intervallo di byte [start, end) del file.
+     */
+    private static final class PairParser {
+        private final FileChannel channel;
+        private final long end;
+        private final byte[] bytes = new byte[1 << 16];
+        private final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        // Posizione nel file del primo byte del buffer
+        private long bufferStart;
+        private int position;
+        private int limit;
+
+        PairParser(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.end = end;
+            this.bufferStart = start;
+        }
+
+        private int read() throws IOException {
+            if (position == limit) {
+                bufferStart += limit;
+                buffer.clear();
+                int r = channel.read(buffer, bufferStart);
+                if (r <= 0) {
+                    return -1;
+                }
+                position = 0;
+                limit = r;
+            }
+            return bytes[position++];
+        }
+
+        private long offset() {
+            return bufferStart + position;
+        }
+
+        PairChunk parse() throws IOException {
+            PairChunk chunk = new PairChunk();
+            // La riga che attraversa l'inizio della porzione appartiene alla porzione precedente
+            if (bufferStart > 0) {
+                bufferStart--;
+                int c;
+                do {
+                    c = read();
+                } while (c != '\n' && c != -1);
+            }
+            while (offset() < end) {
+                int c = skipBlanks(read());
+                if (c == '\n') {
+                    continue;
+                }
+                if (c == -1) {
+                    break;
+                }
+                long parent = parseNumber(c);
+                c = skipBlanks(lastByte);
+                if (c != ',') {
+                    throw new NumberFormatException("Atteso ',' alla posizione " + (offset() - 1));
+                }
+                long child = parseNumber(skipBlanks(read()));
+                c = skipBlanks(lastByte);
+                if (c != '\n' && c != -1) {
+                    throw new NumberFormatException("Carattere inatteso '" + (char) c + "' alla posizione " + (offset() - 1));
+                }
+                chunk.add((int) parent, (int) child);
+                if (c == -1) {
+                    break;
+                }
+            }
+            return chunk;
+        }
+
+        // Primo byte dopo l'ultimo numero letto
+        private int lastByte;
+
+        private int skipBlanks(int c) throws IOException {
+            while (c == ' ' || c == '\t' || c == '\r') {
+                c = read();
+            }
+            return c;
+        }
+
+        private long parseNumber(int c) throws IOException {
+            boolean negative = c == '-';
+            if (negative) {
+                c = read();
+            }
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("Numero atteso alla posizione " + (offset() - 1));
+            }
+            long value = 0;
+            while (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (value > Integer.MAX_VALUE + 1L) {
+                    throw new NumberFormatException("Valore troppo grande alla posizione " + (offset() - 1));
+                }
+                c = read();
+            }
+            lastByte = c;
+            value = negative ? -value : value;
+            if (value > Integer.MAX_VALUE) {
+                throw new NumberFormatException("Valore troppo grande alla posizione " + (offset() - 1));
+            }
+            return value;
+        }
+    }
+
+    /*
+     * Costruisce un albero a partire da un file contenente coppie di valori padre-figlio.
+     * Ogni riga del file rappresenta una relazione padre-figlio, con i valori separati da una virgola.
+     * Il file viene letto in parallelo con readPairs() usando tutti i processori disponibili.
+     */
+    public static Tree buildFromPairs(String file) throws IOException {
+        return buildFromPairs(file, Runtime.getRuntime().availableProcessors());
+    }
+
+    /*
+     * Come buildFromPairs(file) con parallelism thread per la lettura.
+     *
+     * Le porzioni lette vengono unite in sequenza, nell'ordine del file: una IntIntMap associa ad ogni
+     * valore la posizione del suo nodo nell'array nodes (senza boxing) e parentCount conta i padri di
+     * ciascun nodo. La radice è il primo nodo, in ordine di apparizione, senza padri.
+     */
+    public static Tree buildFromPairs(String file, int parallelism) throws IOException {
+        PairChunk[] chunks = readPairs(file, parallelism);
+        long edges = 0;
+        for (PairChunk chunk : chunks) {
+            edges += chunk.size;
+        }
+        int expected = (int) Math.min(edges + 1, 1 << 28);
+        IntIntMap index = new IntIntMap(expected);
+        Tree.Node[] nodes = new Tree.Node[expected];
+        int[] parentCount = new int[expected];
+        int count = 0;
+
+        for (PairChunk chunk : chunks) {
+            for (int i = 0; i < chunk.size; i++) {
+                int parentVal = chunk.parents[i];
+                int childVal = chunk.children[i];
+                // Controlla se i nodi esistono già (usando il valore come chiave), se no li crea
+                int parent = index.putIfAbsent(parentVal, count);
+                if (parent == count) {
+                    if (count == nodes.length) {
+                        nodes = Arrays.copyOf(nodes, count * 2);
+                        parentCount = Arrays.copyOf(parentCount, count * 2);
+                    }
+                    nodes[count++] = new Tree.Node(parentVal);
+                }
+                int child = index.putIfAbsent(childVal, count);
+                if (child == count) {
+                    if (count == nodes.length) {
+                        nodes = Arrays.copyOf(nodes, count * 2);
+                        parentCount = Arrays.copyOf(parentCount, count * 2);
+                    }
+                    nodes[count++] = new Tree.Node(childVal);
+                }
+                //Collegamento padre-figlio
+                nodes[parent].addChild(nodes[child]);
+                parentCount[child]++;
+            }
+        }
+
+        // Il nodo senza padri non è figlio di nessuno quindi è radice.
+        Tree tree = new Tree();
+        for (int i = 0; i < count; i++) {
+            if (parentCount[i] == 0) {
+                tree = new Tree(nodes[i]);
+                break;
+            }
+        }
+        // Le impronte vengono calcolate subito, così areEqual() può rispondere in O(1) se diverse
+        tree.fingerprint();
+        return tree;
+    }
+
+    /*
+     * Versione precedente di buildFromPairs() basata su Scanner, split() e mappe di Integer, mantenuta
+     * come termine di confronto per benchmarkPairsLoaders().
+     */
+    static Tree buildFromPairsScanner(String file) throws IOException {
+
+        Map<Integer, Tree.Node> nodeMap = new HashMap<>();
+        Set<Integer> childrenSet = new HashSet<>();
+        Scanner scanner = new Scanner(new File(file));
+
+        //Controlla se i nodi esistono già nella mappa (usando il valore come
+        // chiave), se no, li crea e li aggiunge.
+
+        while (scanner.hasNextLine()) {
+            String line = scanner.nextLine().replaceAll(" ", "");
+            String[] parts = line.split(",");
+            int parentVal = Integer.parseInt(parts[0]);
+            int childVal = Integer.parseInt(parts[1]);
+
+            Tree.Node parent = nodeMap.get(parentVal);
+            if (parent == null) {
+                parent = new Tree.Node(parentVal);
+                nodeMap.put(parentVal, parent);
+            }
+
+            Tree.Node child = nodeMap.get(childVal);
+            if (child == null) {
+                child = new Tree.Node(childVal);
+                nodeMap.put(childVal, child);
+            }
+            //Collegamento padre-figlio
+            parent.addChild(child);
+            childrenSet.add(childVal);
+        }
+        scanner.close();
+
+        // Cerco nodo il cui valore non è contenuto nel set dei nodi figli --> questo nodo
+        // non è figlio di nessuno quindi è radice.
+        Tree tree = new Tree();
+        for (int key : nodeMap.keySet()) {
+            if (!childrenSet.contains(key)) {
+                tree = new Tree(nodeMap.get(key));
+                break;
+            }
+        }
+        // Le impronte vengono calcolate subito, così areEqual() può rispondere in O(1) se diverse
+        tree.fingerprint();
+        return tree;
+    }
+
+    /*
+     * Destinatario degli eventi prodotti da parseNestedList(): ogni nodo letto viene creato con node(),
+     * che ne restituisce un identificativo intero, e collegato al padre con addChild().
+     */
+    public interface NestedListSink {
+        int node(int value);
+
+        void addChild(int parent, int child);
+    }
+
+    private static final int PARSE_BUFFER_SIZE = 1 << 20;
+
+    /*
+     * Lettura in un solo passaggio della lista annidata contenuta nella prima riga di file.
+     *
+     * I caratteri ‘[‘ e ‘]’ vengono usati per delimitare una lista e gli elementi all’interno
+     * della lista sono separati dal carattere ‘,’.
+     * Il file viene letto a blocchi da 1 MB con un FileChannel e scandito byte per byte, senza mai
+     * costruire la stringa completa: gli spazi vengono saltati, le cifre accumulate direttamente in un
+     * int e la gerarchia è tenuta in una pila di identificativi (array di int). La posizione nel file
+     * non è limitata a 2 GB perché il canale viene letto in sequenza.
+     *
+     * Quando un numero termina (con ‘[‘, ‘]’ o ‘,’) viene creato il nodo corrispondente, che diventa
+     * figlio di quello in cima alla pila (se la pila non è vuota) e viene a sua volta inserito in cima;
+     * ‘]’ chiude la lista togliendo l'elemento in cima. La radice è il primo nodo terminato da ‘]’ o ‘,’.
+     * Restituisce l'identificativo della radice, -1 se non ci sono nodi.
+     */
+    public static int parseNestedList(String file, NestedListSink sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            byte[] bytes = new byte[PARSE_BUFFER_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int[] stack = new int[64];
+            int top = 0;
+            int root = -1;
+            int number = 0;
+            boolean hasNumber = false;
+            int r;
+            parse:
+            while ((r = channel.read(buffer.clear())) >= 0) {
+                for (int i = 0; i < r; i++) {
+                    int c = bytes[i];
+                    if (c >= '0' && c <= '9') {
+                        if (number > (Integer.MAX_VALUE - (c - '0')) / 10) {
+                            throw new NumberFormatException("Valore troppo grande nella lista annidata");
+                        }
+                        number = number * 10 + (c - '0');
+                        hasNumber = true;
+                    } else if (c == ' ') {
+                        continue;
+                    } else if (c == '\n' || c == '\r') {
+                        // Come Scanner.nextLine() viene considerata solo la prima riga
+                        break parse;
+                    } else {
+                        if (hasNumber) {
+                            int node = sink.node(number);
+                            if (top > 0) {
+                                sink.addChild(stack[top - 1], node);
+                            }
+                            if (root == -1 && c != '[') {
+                                root = node;
+                            }
+                            if (top == stack.length) {
+                                stack = Arrays.copyOf(stack, top * 2);
+                            }
+                            stack[top++] = node;
+                            number = 0;
+                            hasNumber = false;
+                        }
+                        if (c == ']' && top > 0) {
+                            top--;
+                        }
+                    }
+                }
+            }
+            return root;
+        }
+    }
+
+    /*
+     * Costruisce un albero a partire da un file contenente una stringa rappresentante delle liste
+     * annidate, letto da parseNestedList(). Gli identificativi dei nodi sono le posizioni in una lista
+     * dei nodi creati.
+     */
+    public static Tree buildFromNestedList(String file) throws IOException {
+        ArrayList<Tree.Node> nodes = new ArrayList<>();
+        int root = parseNestedList(file, new NestedListSink() {
+            public int node(int value) {
+                nodes.add(new Tree.Node(value));
+                return nodes.size() - 1;
+            }
+
+            public void addChild(int parent, int child) {
+                nodes.get(parent).addChild(nodes.get(child));
+            }
+        });
+        Tree tree = new Tree(root == -1 ? null : nodes.get(root));
+        tree.fingerprint();
+        return tree;
+    }
+
+
+    /*
+     * Misura ParallelComparator.areEqual() con 1, 2, 4, ... worker fino al numero di processori
+     * (speedup rispetto ad un solo worker),
+     * su due alberi casuali uguali di n nodi (caso peggiore: va confrontato tutto) e su una coppia
+     * che differisce per una foglia in profondità (conta quanto rapidamente si ferma).
+     */
+    public static void benchmarkParallel(int n, int runs) {
+        Tree a = randomTree(n, 1070505, false);
+        Tree b = randomTree(n, 1070505, true);
+        Tree c = randomTree(n, 1070505, true);
+        Tree.Node deepest = c.getRoot();
+        ArrayDeque<Tree.Node> stack = new ArrayDeque<>();
+        stack.push(c.getRoot());
+        while (!stack.isEmpty()) {
+            Tree.Node node = stack.pop();
+            if (node.value == n - 1) {
+                deepest = node;
+            }
+            node.children.forEach(stack::push);
+        }
+        deepest.addChild(new Tree.Node(n));
+
+        boolean result = false;
+        long t0 = System.nanoTime();
+        for (int r = 0; r < runs; r++) {
+            result = Tree.subtreeEquals(a.getRoot(), b.getRoot());
+        }
+        System.out.printf("sequenziale (subtreeEquals): %.3f ms (%b)%n", (System.nanoTime() - t0) / 1e6 / runs, result);
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        double single = 0;
+        for (int p = 1; ; p = Math.min(p * 2, processors)) {
+            try (ParallelComparator comparator = new ParallelComparator(p)) {
+                comparator.areEqual(a, b);
+                t0 = System.nanoTime();
+                for (int r = 0; r < runs; r++) {
+                    result = comparator.areEqual(a, b);
+                }
+                double equal = (System.nanoTime() - t0) / 1e6 / runs;
+                if (p == 1) {
+                    single = equal;
+                }
+                boolean different = false;
+                t0 = System.nanoTime();
+                for (int r = 0; r < runs; r++) {
+                    different = !comparator.areEqual(a, c);
+                }
+                double mismatch = (System.nanoTime() - t0) / 1e6 / runs;
+                System.out.printf("%d worker: alberi uguali %.3f ms (%b, speedup %.2f), alberi diversi %.3f ms (%b)%n",
+                        p, equal, result, single / equal, mismatch, different);
+            }
+            if (p == processors) {
+                break;
+            }
+        }
+    }
+
+    /*
+     * Confronta con diff() due alberi casuali di n nodi, il secondo dei quali ha changes foglie
+     * sostituite da foglie con un valore nuovo: misura il tempo per la prima differenza, per le prime
+     * 10 e per tutte (sia con le impronte già calcolate sia includendo il loro calcolo).
+     */
+    public static void benchmarkDiff(int n, int changes) {
+        Tree a = randomTree(n, 1070505, false);
+        Tree b = randomTree(n, 1070505, true);
+        Tree.Node[] nodes = new Tree.Node[n];
+        ArrayDeque<Tree.Node> stack = new ArrayDeque<>();
+        stack.push(b.getRoot());
+        while (!stack.isEmpty()) {
+            Tree.Node node = stack.pop();
+            nodes[node.value] = node;
+            node.children.forEach(stack::push);
+        }
+        Random random = new Random(7);
+        int replaced = 0;
+        while (replaced < changes) {
+            Tree.Node leaf = nodes[1 + random.nextInt(n - 1)];
+            if (leaf != null && leaf.children.isEmpty()) {
+                Tree.Node parent = leaf.getParent();
+                parent.removeChild(leaf);
+                parent.addChild(new Tree.Node(n + replaced));
+                nodes[leaf.value] = null;
+                replaced++;
+            }
+        }
+
+        long t0 = System.nanoTime();
+        long fingerprints = a.fingerprint() ^ b.fingerprint();
+        System.out.printf("Impronte (2 alberi da %d nodi): %.1f ms (%x)%n", n, (System.nanoTime() - t0) / 1e6, fingerprints);
+
+        t0 = System.nanoTime();
+        Optional<Mismatch> first = diff(a, b).findFirst();
+        System.out.printf("Prima differenza: %.3f ms (%s)%n", (System.nanoTime() - t0) / 1e6, first.orElse(null));
+        t0 = System.nanoTime();
+        long ten = diff(a, b).limit(10).count();
+        System.out.printf("Prime %d differenze: %.3f ms%n", ten, (System.nanoTime() - t0) / 1e6);
+        t0 = System.nanoTime();
+        long all = diff(a, b).count();
+        System.out.printf("Tutte le differenze (%d, attese %d): %.3f ms%n", all, changes, (System.nanoTime() - t0) / 1e6);
+    }
+
+    /*
+     * Carica lo stesso file di coppie con buildFromPairsScanner() e con buildFromPairs(), stampa i byte al
+     * secondo di ciascuno (impronte comprese) e della sola lettura parallela, e controlla che i due
+     * alberi ottenuti siano uguali.
+     */
+    public static void benchmarkPairsLoaders(String file, int runs) throws IOException {
+        long size = new File(file).length();
+        int processors = Runtime.getRuntime().availableProcessors();
+        Tree expected = null;
+        Tree actual = null;
+
+        long t0 = System.nanoTime();
+        for (int r = 0; r < runs; r++) {
+            expected = buildFromPairsScanner(file);
+        }
+        double seconds = (System.nanoTime() - t0) / 1e9 / runs;
+        System.out.printf("Scanner:                  %.3f s, %.1f MB/s%n", seconds, size / seconds / 1e6);
+
+        t0 = System.nanoTime();
+        for (int r = 0; r < runs; r++) {
+            actual = buildFromPairs(file, processors);
+        }
+        seconds = (System.nanoTime() - t0) / 1e9 / runs;
+        System.out.printf("Lettura parallela (%d):    %.3f s, %.1f MB/s%n", processors, seconds, size / seconds / 1e6);
+
+        long pairs = 0;
+        t0 = System.nanoTime();
+        for (int r = 0; r < runs; r++) {
+            pairs = 0;
+            for (PairChunk chunk : readPairs(file, processors)) {
+                pairs += chunk.size;
+            }
+        }
+        seconds = (System.nanoTime() - t0) / 1e9 / runs;
+        System.out.printf("Solo readPairs():         %.3f s, %.1f MB/s, %.1f M coppie/s%n",
+                seconds, size / seconds / 1e6, pairs / seconds / 1e6);
+
+        System.out.println(areEqual(expected, actual) ? "Alberi uguali" : "ATTENZIONE: gli alberi letti sono diversi");
+    }
+
+    /*
+     * Corpus di count alberi casuali di n nodi con distinct classi distinte (l'albero i è uguale
+     * all'albero i % distinct, ma è un oggetto diverso).
+     */
+    static ArrayList<Tree> randomCorpus(int count, int n, int distinct) {
+        ArrayList<Tree> corpus = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            corpus.add(randomTree(n, 1000 + i % distinct, true));
+        }
+        return corpus;
+    }
+
+    /*
+     * Raggruppa un corpus di alberi casuali prima con una scansione lineare dei rappresentanti tramite
+     * areEqual() e poi con TreeIndex.addAll(), confronta i risultati e misura la ricerca di un albero
+     * nell'indice rispetto al confronto con tutti gli alberi del corpus.
+     */
+    public static void benchmarkIndex(int count, int n, int distinct) {
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        ArrayList<Tree> corpus = randomCorpus(count, n, distinct);
+        long t0 = System.nanoTime();
+        ArrayList<Tree> representatives = new ArrayList<>();
+        int[] linearClass = new int[count];
+        for (int i = 0; i < count; i++) {
+            int found = -1;
+            for (int r = 0; r < representatives.size() && found == -1; r++) {
+                if (areEqual(representatives.get(r), corpus.get(i))) {
+                    found = r;
+                }
+            }
+            if (found == -1) {
+                found = representatives.size();
+                representatives.add(corpus.get(i));
+            }
+            linearClass[i] = found;
+        }
+        System.out.printf("Scansione lineare con areEqual(): %d classi in %.1f ms%n",
+                representatives.size(), (System.nanoTime() - t0) / 1e6);
+
+        corpus = randomCorpus(count, n, distinct);
+        TreeIndex index = new TreeIndex();
+        t0 = System.nanoTime();
+        index.addAll(corpus, processors);
+        System.out.printf("TreeIndex.addAll() con %d worker: %d classi in %.1f ms%n",
+                processors, index.size(), (System.nanoTime() - t0) / 1e6);
+
+        // Stessa partizione: i membri di ogni classe dell'indice hanno la stessa classe nella scansione
+        IdentityHashMap<Tree, Integer> position = new IdentityHashMap<>();
+        for (int i = 0; i < count; i++) {
+            position.put(corpus.get(i), i);
+        }
+        boolean same = index.size() == representatives.size();
+        for (TreeIndex.TreeClass c : index.classes()) {
+            int expected = linearClass[position.get(c.representative)];
+            for (Tree member : c.members) {
+                same &= linearClass[position.get(member)] == expected;
+            }
+        }
+        System.out.println(same ? "Stesse classi" : "ATTENZIONE: classi diverse");
+
+        Tree probe = randomTree(n, 1000 + distinct - 1, true);
+        probe.fingerprint();
+        int runs = 1000;
+        Tree found = null;
+        t0 = System.nanoTime();
+        for (int r = 0; r < runs; r++) {
+            found = index.find(probe);
+        }
+        System.out.printf("find(): %.3f ms (%s)%n", (System.nanoTime() - t0) / 1e6 / runs, found != null ? "trovato" : "non trovato");
+        int matches = 0;
+        t0 = System.nanoTime();
+        for (int r = 0; r < runs / 100; r++) {
+            matches = 0;
+            for (Tree tree : corpus) {
+                if (areEqual(tree, probe)) {
+                    matches++;
+                }
+            }
+        }
+        System.out.printf("areEqual() su tutto il corpus: %.3f ms (%d uguali)%n", (System.nanoTime() - t0) / 1e6 / (runs / 100), matches);
+        System.out.println(index.statistics());
+    }
+
+    /*
+     * Corpus versionato: la versione 0 è un albero casuale di n nodi, ogni versione successiva cambia
+     * il valore di changes foglie della precedente. Tutte le versioni vengono costruite sia come Tree sia
+     * con un unico SubtreeInterner, confrontando memoria stimata e tempi; poi si confrontano due copie
+     * costruite separatamente della stessa versione con areEqual() sui Tree e sui nodi condivisi.
+     */
+    public static void benchmarkInterning(int n, int versions, int changes) {
+        Random random = new Random(1070505);
+        int[] parent = new int[n];
+        int[] value = new int[n];
+        int[] childCount = new int[n];
+        parent[0] = -1;
+        for (int i = 1; i < n; i++) {
+            parent[i] = random.nextInt(i);
+            childCount[parent[i]]++;
+        }
+        for (int i = 0; i < n; i++) {
+            value[i] = i;
+        }
+        int nextValue = n;
+
+        long treeBytes = 0;
+        long treeTime = 0;
+        long sharedTime = 0;
+        long totalNodes = 0;
+        SubtreeInterner interner = new SubtreeInterner();
+        Tree first = null;
+        SharedNode firstShared = null;
+        for (int v = 0; v < versions; v++) {
+            if (v > 0) {
+                for (int c = 0; c < changes; ) {
+                    int i = 1 + random.nextInt(n - 1);
+                    if (childCount[i] == 0) {
+                        value[i] = nextValue++;
+                        c++;
+                    }
+                }
+            }
+            long t0 = System.nanoTime();
+            Tree tree = treeFromArrays(parent, value);
+            tree.fingerprint();
+            treeTime += System.nanoTime() - t0;
+            treeBytes += estimateMemoryBytes(tree);
+            totalNodes += n;
+
+            t0 = System.nanoTime();
+            SharedNode root = interner.intern(flatFromArrays(parent, value));
+            sharedTime += System.nanoTime() - t0;
+            if (root.fingerprint != tree.fingerprint()) {
+                System.out.println("ATTENZIONE: impronte diverse nella versione " + v);
+            }
+            if (v == 0) {
+                first = tree;
+                firstShared = root;
+            }
+        }
+        System.out.printf("%d versioni da %d nodi, %d foglie cambiate per versione%n", versions, n, changes);
+        System.out.printf("Tree:            %d B (%.1f B/nodo), costruzione %.1f ms%n",
+                treeBytes, (double) treeBytes / totalNodes, treeTime / 1e6);
+        System.out.printf("SubtreeInterner: %d B (%.1f B/nodo), costruzione %.1f ms%n",
+                interner.memoryBytes(), (double) interner.memoryBytes() / totalNodes, sharedTime / 1e6);
+        System.out.println(interner.statistics());
+
+        // Seconda copia della versione 0 (ricostruita da capo con gli stessi valori)
+        Random again = new Random(1070505);
+        int[] value0 = new int[n];
+        for (int i = 0; i < n; i++) {
+            value0[i] = i;
+        }
+        int[] parent0 = new int[n];
+        parent0[0] = -1;
+        for (int i = 1; i < n; i++) {
+            parent0[i] = again.nextInt(i);
+        }
+        Tree copy = treeFromArrays(parent0, value0);
+        copy.fingerprint();
+        SharedNode copyShared = interner.intern(flatFromArrays(parent0, value0));
+        long t0 = System.nanoTime();
+        boolean equal = areEqual(first, copy);
+        System.out.printf("areEqual(Tree, Tree) sulla versione 0: %b in %.3f ms%n", equal, (System.nanoTime() - t0) / 1e6);
+        t0 = System.nanoTime();
+        equal = areEqual(firstShared, copyShared);
+        System.out.printf("areEqual(SharedNode, SharedNode): %b in %.3f ms (stesso oggetto: %b)%n",
+                equal, (System.nanoTime() - t0) / 1e6, firstShared == copyShared);
+    }
+
+    static Tree treeFromArrays(int[] parent, int[] value) {
+        Tree.Node[] nodes = new Tree.Node[value.length];
+        for (int i = 0; i < value.length; i++) {
+            nodes[i] = new Tree.Node(value[i]);
+        }
+        for (int i = 1; i < value.length; i++) {
+            nodes[parent[i]].addChild(nodes[i]);
+        }
+        return new Tree(nodes[0]);
+    }
+
+    static FlatTree flatFromArrays(int[] parent, int[] value) {
+        FlatTree tree = new FlatTree(value.length);
+        for (int i = 0; i < value.length; i++) {
+            tree.node(value[i]);
+        }
+        for (int i = 1; i < value.length; i++) {
+            tree.link(parent[i], i);
+        }
+        tree.root = 0;
+        return tree;
+    }
+
+    /*
+     * Albero degenere a catena 1 -> 2 -> ... -> n.
+     */
+    static Tree chain(int n) {
+        Tree.Node root = new Tree.Node(1);
+        Tree.Node last = root;
+        for (int v = 2; v <= n; v++) {
+            Tree.Node node = new Tree.Node(v);
+            last.addChild(node);
+            last = node;
+        }
+        return new Tree(root);
+    }
+
+    static FlatTree flatChain(int n) {
+        FlatTree tree = new FlatTree(n);
+        int last = tree.node(1);
+        tree.root = last;
+        for (int v = 2; v <= n; v++) {
+            int node = tree.node(v);
+            tree.link(last, node);
+            last = node;
+        }
+        return tree;
+    }
+
+    /*
+     * Come chainCheck() per la rappresentazione compatta, che richiede circa 45 byte per nodo
+     * invece di circa 200 e permette di arrivare a catene di decine di milioni di nodi.
+     */
+    public static void flatChainCheck(int n, int visitNodes) throws IOException {
+        long t0 = System.nanoTime();
+        FlatTree a = flatChain(n);
+        FlatTree b = flatChain(n);
+        System.out.printf("Costruzione di 2 catene compatte da %d nodi: %.1f ms%n", n, (System.nanoTime() - t0) / 1e6);
+
+        t0 = System.nanoTime();
+        boolean equal = areEqual(a, b);
+        System.out.printf("areEqual: %b in %.1f ms%n", equal, (System.nanoTime() - t0) / 1e6);
+
+        b.link(b.indexOf(n), b.node(n + 1));
+        t0 = System.nanoTime();
+        boolean different = !areEqual(a, b);
+        System.out.printf("Foglia aggiunta in fondo, alberi diversi: %b in %.1f ms%n", different, (System.nanoTime() - t0) / 1e6);
+
+        int m = Math.min(n, visitNodes);
+        CharCounter counter = new CharCounter();
+        t0 = System.nanoTime();
+        flatChain(m).visit(counter);
+        System.out.printf("visit() su catena compatta da %d nodi: %d caratteri (attesi %d) in %.1f ms%n",
+                m, counter.count, chainVisitLength(m), (System.nanoTime() - t0) / 1e6);
+    }
+
+    /*
+     * Appendable che conta soltanto i caratteri ricevuti.
+     */
+    static class CharCounter implements Appendable {
+        long count;
+
+        public Appendable append(CharSequence csq) {
+            count += csq.length();
+            return this;
+        }
+
+        public Appendable append(CharSequence csq, int start, int end) {
+            count += end - start;
+            return this;
+        }
+
+        public Appendable append(char c) {
+            count++;
+            return this;
+        }
+    }
+
+    /*
+     * Lunghezza della stampa di visit() sulla catena 1 -> ... -> m.
+     */
+    static long chainVisitLength(int m) {
+        long expected = 0;
+        for (int v = 1; v <= m; v++) {
+            expected += 2L * (v - 1) + Integer.toString(v).length() + 1;
+        }
+        return expected;
+    }
+
+    /*
+     * Verifica su catene di n nodi che impronte e confronto non dipendano dallo stack di chiamata.
+     * La stampa di visit() su una catena di profondità d è lunga O(d^2) caratteri, quindi la visita
+     * viene controllata su una catena di al più visitNodes nodi scrivendo su un Appendable che conta
+     * soltanto i caratteri.
+     */
+    public static void chainCheck(int n, int visitNodes) throws IOException {
+        long t0 = System.nanoTime();
+        Tree a = chain(n);
+        Tree b = chain(n);
+        System.out.printf("Costruzione di 2 catene da %d nodi: %.1f ms%n", n, (System.nanoTime() - t0) / 1e6);
+
+        t0 = System.nanoTime();
+        boolean equal = areEqual(a, b);
+        System.out.printf("areEqual (impronte + confronto): %b in %.1f ms%n", equal, (System.nanoTime() - t0) / 1e6);
+
+        // Foglia aggiunta in fondo alla seconda catena: la differenza è alla massima profondità
+        Tree.Node leaf = b.getRoot();
+        while (!leaf.children.isEmpty()) {
+            leaf = leaf.children.iterator().next();
+        }
+        leaf.addChild(new Tree.Node(n + 1));
+        t0 = System.nanoTime();
+        boolean different = !areEqual(a, b) && !a.getRoot().equals(b.getRoot());
+        System.out.printf("Foglia aggiunta in fondo, alberi diversi: %b in %.1f ms%n", different, (System.nanoTime() - t0) / 1e6);
+        a = null;
+        b = null;
+
+        int m = Math.min(n, visitNodes);
+        CharCounter counter = new CharCounter();
+        t0 = System.nanoTime();
+        chain(m).visit(counter);
+        System.out.printf("visit() su catena da %d nodi: %d caratteri (attesi %d) in %.1f ms%n",
+                m, counter.count, chainVisitLength(m), (System.nanoTime() - t0) / 1e6);
+    }
+
+    /*
+     * Come buildFromPairs() ma costruisce direttamente un FlatTree: nessun oggetto per nodo e nessun
+     * boxing dei valori.
+     */
+    public static FlatTree buildFlatFromPairs(String file) throws IOException {
+        PairChunk[] chunks = readPairs(file, Runtime.getRuntime().availableProcessors());
+        long edges = 0;
+        for (PairChunk chunk : chunks) {
+            edges += chunk.size;
+        }
+        FlatTree tree = new FlatTree((int) Math.min(edges + 1, 1 << 28));
+        for (PairChunk chunk : chunks) {
+            for (int i = 0; i < chunk.size; i++) {
+                tree.link(tree.node(chunk.parents[i]), tree.node(chunk.children[i]));
+            }
+        }
+        tree.findRoot();
+        tree.trim();
+        return tree;
+    }
+
+    /*
+     * Come buildFromNestedList() ma costruisce direttamente un FlatTree: gli identificativi prodotti
+     * da parseNestedList() sono gli indici dei nodi.
+     */
+    public static FlatTree buildFlatFromNestedList(String file) throws IOException {
+        FlatTree tree = new FlatTree(16);
+        tree.root = parseNestedList(file, new NestedListSink() {
+            public int node(int value) {
+                return tree.node(value);
+            }
+
+            public void addChild(int parent, int child) {
+                tree.link(parent, child);
+            }
+        });
+        tree.trim();
+        return tree;
+    }
+
+    /*
+     * Come buildFromPairs() ma con i sottoalberi condivisi tramite interner: sottoalberi uguali già
+     * costruiti con lo stesso interner (ad esempio in una versione precedente dell'albero) vengono riusati.
+     */
+    public static SharedNode buildFromPairs(String file, SubtreeInterner interner) throws IOException {
+        return interner.intern(buildFlatFromPairs(file));
+    }
+
+    /*
+     * Come buildFromNestedList() ma con i sottoalberi condivisi tramite interner.
+     */
+    public static SharedNode buildFromNestedList(String file, SubtreeInterner interner) throws IOException {
+        return interner.intern(buildFlatFromNestedList(file));
+    }
+
+    /*
+     * Formato binario compatto degli alberi, per ricaricare velocemente alberi di riferimento senza
+     * rileggere i file di testo.
+     *
+     * Intestazione di 32 byte (little endian):
+     *    0  "E1TREE\0" + versione (1 byte)
+     *    8  numero di nodi n (int)
+     *   12  flag (int): bit 0 = impronta presente
+     *   16  impronta dell'albero (long, 0 se assente)
+     *   24  CRC32 del contenuto che segue l'intestazione (long)
+     * Contenuto: per ogni nodo in pre-ordine il valore (zigzag + varint) e il numero di figli (varint);
+     * i figli di un nodo sono i sottoalberi che lo seguono. Un nodo occupa tipicamente 2-6 byte.
+     *
+     * La scrittura è una visita iterativa in O(n); la lettura decodifica direttamente la mappatura in
+     * memoria del file (a finestre di 1 GB), senza copiarne il contenuto in un buffer intermedio.
+     */
+    public static class TreeSnapshot {
+        private static final long MAGIC_PREFIX = 0x4531545245450000L; // "E1TREE\0"
+        private static final int VERSION = 1;
+        private static final int HEADER_SIZE = 32;
+        private static final int FLAG_FINGERPRINT = 1;
+        private static final int WINDOW = 1 << 30;
+
+        /*
+         * Intestazione di uno snapshot.
+         */
+        public static class Header {
+            public final int nodes;
+            public final boolean hasFingerprint;
+            public final long fingerprint;
+            final long checksum;
+
+            Header(int nodes, boolean hasFingerprint, long fingerprint, long checksum) {
+                this.nodes = nodes;
+                this.hasFingerprint = hasFingerprint;
+                this.fingerprint = fingerprint;
+                this.checksum = checksum;
+            }
+        }
+
+        /*
+         * Scrive tree su fileName; con withFingerprint l'impronta dell'albero viene salvata nell'intestazione.
+         */
+        public static void write(Tree tree, String fileName, boolean withFingerprint) throws IOException {
+            Tree.Node root = tree == null ? null : tree.getRoot();
+            try (Writer writer = new Writer(fileName)) {
+                if (root != null) {
+                    ArrayDeque<Tree.Node> stack = new ArrayDeque<>();
+                    stack.push(root);
+                    while (!stack.isEmpty()) {
+                        Tree.Node node = stack.pop();
+                        writer.node(node.value, node.children.size());
+                        for (Tree.Node child : node.children) {
+                            stack.push(child);
+                        }
+                    }
+                }
+                boolean fingerprint = withFingerprint && root != null;
+                writer.finish(fingerprint ? FLAG_FINGERPRINT : 0, fingerprint ? tree.fingerprint() : 0);
+            }
+        }
+
+        /*
+         * Scrive un FlatTree (senza impronta).
+         */
+        public static void write(FlatTree tree, String fileName) throws IOException {
+            try (Writer writer = new Writer(fileName)) {
+                if (tree.root != -1) {
+                    int[] stack = new int[16];
+                    int top = 0;
+                    stack[top++] = tree.root;
+                    while (top > 0) {
+                        int node = stack[--top];
+                        int children = 0;
+                        for (int c = tree.firstChild[node]; c != -1; c = tree.nextSibling[c]) {
+                            if (top == stack.length) {
+                                stack = Arrays.copyOf(stack, top * 2);
+                            }
+                            stack[top++] = c;
+                            children++;
+                        }
+                        writer.node(tree.values[node], children);
+                    }
+                }
+                writer.finish(0, 0);
+            }
+        }
+
+        private static final class Writer implements Closeable {
+            private final FileChannel channel;
+            private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            private final CRC32 crc = new CRC32();
+            private int nodes;
+
+            Writer(String fileName) throws IOException {
+                channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                channel.position(HEADER_SIZE);
+            }
+
+            void node(int value, int children) throws IOException {
+                if (buffer.remaining() < 10) {
+                    flush();
+                }
+                putVarint((value << 1) ^ (value >> 31));
+                putVarint(children);
+                nodes++;
+            }
+
+            private void putVarint(int v) {
+                while ((v & ~0x7F) != 0) {
+                    buffer.put((byte) ((v & 0x7F) | 0x80));
+                    v >>>= 7;
+                }
+                buffer.put((byte) v);
+            }
+
+            private void flush() throws IOException {
+                buffer.flip();
+                crc.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+            }
+
+            void finish(int flags, long fingerprint) throws IOException {
+                flush();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putLong(MAGIC_PREFIX | VERSION).putInt(nodes).putInt(flags)
+                        .putLong(fingerprint).putLong(crc.getValue()).flip();
+                channel.position(0);
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        }
+
+        /*
+         * Vero se il file inizia con l'intestazione di uno snapshot di albero (di qualunque versione).
+         */
+        public static boolean isSnapshot(String fileName) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                while (header.hasRemaining() && channel.read(header) >= 0) {
+                }
+                return !header.hasRemaining() && (header.getLong(0) & ~0xFFL) == MAGIC_PREFIX;
+            }
+        }
+
+        /*
+         * Legge solo l'intestazione: permette ad esempio di confrontare le impronte di due snapshot
+         * senza caricarli.
+         */
+        public static Header readHeader(String fileName) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+                return readHeader(channel, fileName);
+            }
+        }
+
+        private static Header readHeader(FileChannel channel, String fileName) throws IOException {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(fileName + ": file troppo corto per uno snapshot");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long magic = header.getLong(0);
+            if ((magic & ~0xFFL) != MAGIC_PREFIX) {
+                throw new IOException(fileName + ": non è uno snapshot di albero");
+            }
+            if ((int) (magic & 0xFF) != VERSION) {
+                throw new IOException(fileName + ": versione " + (magic & 0xFF) + " non supportata (attesa " + VERSION + ")");
+            }
+            int nodes = header.getInt(8);
+            if (nodes < 0) {
+                throw new IOException(fileName + ": numero di nodi non valido");
+            }
+            int flags = header.getInt(12);
+            return new Header(nodes, (flags & FLAG_FINGERPRINT) != 0, header.getLong(16), header.getLong(24));
+        }
+
+        /*
+         * Carica uno snapshot come Tree. Se l'intestazione contiene l'impronta viene confrontata con
+         * quella ricalcolata (che serve comunque ad areEqual()).
+         */
+        public static Tree read(String fileName, boolean verifyChecksum) throws IOException {
+            ArrayList<Tree.Node> nodes = new ArrayList<>();
+            Header header = decode(fileName, verifyChecksum, new NestedListSink() {
+                public int node(int value) {
+                    nodes.add(new Tree.Node(value));
+                    return nodes.size() - 1;
+                }
+
+                public void addChild(int parent, int child) {
+                    nodes.get(parent).addChild(nodes.get(child));
+                }
+            });
+            Tree tree = new Tree(nodes.isEmpty() ? null : nodes.get(0));
+            long fingerprint = tree.fingerprint();
+            if (header.hasFingerprint && fingerprint != header.fingerprint) {
+                throw new IOException(fileName + ": l'impronta dell'albero letto non corrisponde a quella salvata");
+            }
+            return tree;
+        }
+
+        /*
+         * Carica uno snapshot come FlatTree.
+         */
+        public static FlatTree readFlat(String fileName, boolean verifyChecksum) throws IOException {
+            FlatTree[] tree = new FlatTree[1];
+            decode(fileName, verifyChecksum, new NestedListSink() {
+                public int node(int value) {
+                    return tree[0].node(value);
+                }
+
+                public void addChild(int parent, int child) {
+                    tree[0].link(parent, child);
+                }
+            }, nodes -> tree[0] = new FlatTree(nodes));
+            tree[0].root = tree[0].size == 0 ? -1 : 0;
+            return tree[0];
+        }
+
+        private static Header decode(String fileName, boolean verifyChecksum, NestedListSink sink) throws IOException {
+            return decode(fileName, verifyChecksum, sink, nodes -> { });
+        }
+
+        /*
+         * Decodifica il contenuto passando i nodi a sink in pre-ordine (la radice ha identificativo
+         * restituito dalla prima chiamata di node()); onHeader riceve il numero di nodi prima della lettura.
+         */
+        private static Header decode(String fileName, boolean verifyChecksum, NestedListSink sink,
+                                     IntConsumer onHeader) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+                Header header = readHeader(channel, fileName);
+                long size = channel.size();
+                if (verifyChecksum) {
+                    CRC32 crc = new CRC32();
+                    for (long pos = HEADER_SIZE; pos < size; pos += WINDOW) {
+                        crc.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW, size - pos)));
+                    }
+                    if (crc.getValue() != header.checksum) {
+                        throw new IOException(fileName + ": checksum errato, snapshot danneggiato");
+                    }
+                }
+                onHeader.accept(header.nodes);
+                if (header.nodes == 0) {
+                    if (size != HEADER_SIZE) {
+                        throw new IOException(fileName + ": dati presenti in uno snapshot vuoto");
+                    }
+                    return header;
+                }
+
+                Reader in = new Reader(channel, size);
+                int[] stack = new int[64];
+                int[] remaining = new int[64];
+                int top = 0;
+                for (int i = 0; i < header.nodes; i++) {
+                    int zigzag = in.varint();
+                    int value = (zigzag >>> 1) ^ -(zigzag & 1);
+                    int children = in.varint();
+                    int node = sink.node(value);
+                    if (top > 0) {
+                        sink.addChild(stack[top - 1], node);
+                        if (--remaining[top - 1] == 0) {
+                            top--;
+                        }
+                    } else if (i > 0) {
+                        throw new IOException(fileName + ": più di una radice nello snapshot");
+                    }
+                    if (children > 0) {
+                        if (top == stack.length) {
+                            stack = Arrays.copyOf(stack, top * 2);
+                            remaining = Arrays.copyOf(remaining, top * 2);
+                        }
+                        stack[top] = node;
+                        remaining[top++] = children;
+                    }
+                }
+                if (top != 0 || in.position() != size) {
+                    throw new IOException(fileName + ": contenuto incoerente con n=" + header.nodes);
+                }
+                return header;
+            }
+        }
+
+        /*
+         * Lettura dei varint dalla mappatura del file; la finestra viene spostata quando ne restano
+         * meno di 5 byte, così un varint non è mai diviso tra due finestre.
+         */
+        private static final class Reader {
+            private final FileChannel channel;
+            private final long size;
+            private MappedByteBuffer window;
+            private long windowStart;
+
+            Reader(FileChannel channel, long size) throws IOException {
+                this.channel = channel;
+                this.size = size;
+                map(HEADER_SIZE);
+            }
+
+            private void map(long position) throws IOException {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+            }
+
+            long position() {
+                return windowStart + window.position();
+            }
+
+            int varint() throws IOException {
+                if (window.remaining() < 5 && position() + window.remaining() < size) {
+                    map(position());
+                }
+                int value = 0;
+                for (int shift = 0; shift < 35; shift += 7) {
+                    if (!window.hasRemaining()) {
+                        throw new EOFException("Snapshot troncato");
+                    }
+                    int b = window.get();
+                    value |= (b & 0x7F) << shift;
+                    if (b >= 0) {
+                        return value;
+                    }
+                }
+                throw new IOException("Varint non valido alla posizione " + position());
+            }
+        }
+    }
+
+    /*
+     * Verifica dello snapshot binario: costruisce gli alberi dai due file di testo, li salva in formato
+     * binario (prefix-coppie.bin e prefix-lista.bin), li ricarica sia come Tree sia come FlatTree e
+     * controlla che siano uguali agli originali, stampando tempi e dimensioni.
+     */
+    public static void snapshotCheck(String pairsFile, String nestedListFile, String prefix) throws IOException {
+        String[] sources = {pairsFile, nestedListFile};
+        String[] names = {prefix + "-coppie.bin", prefix + "-lista.bin"};
+        boolean ok = true;
+        for (int i = 0; i < 2; i++) {
+            long t0 = System.nanoTime();
+            Tree original = i == 0 ? buildFromPairs(sources[i]) : buildFromNestedList(sources[i]);
+            FlatTree flat = i == 0 ? buildFlatFromPairs(sources[i]) : buildFlatFromNestedList(sources[i]);
+            double text = (System.nanoTime() - t0) / 1e6;
+
+            t0 = System.nanoTime();
+            TreeSnapshot.write(original, names[i], true);
+            double write = (System.nanoTime() - t0) / 1e6;
+
+            t0 = System.nanoTime();
+            Tree reloaded = TreeSnapshot.read(names[i], true);
+            double read = (System.nanoTime() - t0) / 1e6;
+            t0 = System.nanoTime();
+            FlatTree reloadedFlat = TreeSnapshot.readFlat(names[i], true);
+            double readFlat = (System.nanoTime() - t0) / 1e6;
+
+            boolean same = areEqual(original, reloaded) && areEqual(flat, reloadedFlat)
+                    && TreeSnapshot.readHeader(names[i]).fingerprint == original.fingerprint();
+            ok &= same;
+            System.out.printf("%s -> %s: %d nodi, %d byte; testo %.1f ms, scrittura %.1f ms, "
+                            + "lettura Tree %.1f ms, lettura FlatTree %.1f ms, %s%n",
+                    sources[i], names[i], reloadedFlat.size, new File(names[i]).length(),
+                    text, write, read, readFlat, same ? "uguali" : "DIVERSI");
+        }
+
+        // Anche il FlatTree scritto direttamente deve ricaricarsi uguale all'albero della lista annidata
+        TreeSnapshot.write(buildFlatFromNestedList(nestedListFile), names[1]);
+        ok &= areEqual(buildFromNestedList(nestedListFile), TreeSnapshot.read(names[1], true));
+        System.out.println(ok ? "Verifica superata" : "ATTENZIONE: verifica fallita");
+    }
+
+    /*
+     * Costruisce gli alberi dei due file in entrambe le rappresentazioni e confronta la memoria occupata.
+     */
+    public static void memoryReport(String pairsFile, String nestedListFile) throws IOException {
+        Tree tree1 = buildFromPairs(pairsFile);
+        Tree tree2 = buildFromNestedList(nestedListFile);
+        FlatTree flat1 = buildFlatFromPairs(pairsFile);
+        FlatTree flat2 = buildFlatFromNestedList(nestedListFile);
+        System.out.println("Uguali (Tree): " + areEqual(tree1, tree2) + ", uguali (FlatTree): " + areEqual(flat1, flat2));
+        for (int i = 0; i < 2; i++) {
+            Tree tree = i == 0 ? tree1 : tree2;
+            FlatTree flat = i == 0 ? flat1 : flat2;
+            long nodeBytes = estimateMemoryBytes(tree);
+            long flatBytes = flat.memoryBytes();
+            System.out.printf("Albero %d (%d nodi): Tree %d B (%.1f B/nodo), FlatTree %d B (%.1f B/nodo), risparmio %.1f B/nodo%n",
+                    i + 1, flat.size, nodeBytes, (double) nodeBytes / Math.max(flat.size, 1),
+                    flatBytes, (double) flatBytes / Math.max(flat.size, 1),
+                    (double) (nodeBytes - flatBytes) / Math.max(flat.size, 1));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length == 3 && args[0].equals("--memoria")) {
+            memoryReport(args[1], args[2]);
+            return;
+        }
+
+        if (args.length == 2 && args[0].equals("--catena")) {
+            chainCheck(Integer.parseInt(args[1]), 20000);
+            return;
+        }
+
+        if (args.length == 2 && args[0].equals("--catena-piatta")) {
+            flatChainCheck(Integer.parseInt(args[1]), 20000);
+            return;
+        }
+
+        if (args.length == 3 && args[0].equals("--benchmark-parallelo")) {
+            benchmarkParallel(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+
+        if ((args.length == 3 || args.length == 4) && args[0].equals("--diff")) {
+            Stream<Mismatch> differences = diff(buildFromPairs(args[1]), buildFromNestedList(args[2]));
+            if (args.length == 4) {
+                differences = differences.limit(Long.parseLong(args[3]));
+            }
+            differences.forEach(System.out::println);
+            return;
+        }
+
+        if (args.length == 3 && args[0].equals("--benchmark-diff")) {
+            benchmarkDiff(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+
+        if (args.length == 3 && args[0].equals("--benchmark-lettura")) {
+            benchmarkPairsLoaders(args[1], Integer.parseInt(args[2]));
+            return;
+        }
+
+        if (args.length == 4 && args[0].equals("--snapshot")) {
+            snapshotCheck(args[1], args[2], args[3]);
+            return;
+        }
+
+        if (args.length == 4 && args[0].equals("--benchmark-indice")) {
+            benchmarkIndex(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+
+        if (args.length == 4 && args[0].equals("--benchmark-condivisione")) {
+            benchmarkInterning(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+
+        if (args.length == 3 && args[0].equals("--benchmark-uguaglianza")) {
+            benchmarkAreEqual(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+
+        if (args.length != 2) {
+            System.err.println("Errore, utilizza il formato: java Esercizio1 <file1.txt> <file2.txt>");
+            System.err.println("oppure: java Esercizio1 --benchmark-uguaglianza <nodi> <ripetizioni>");
+            System.err.println("oppure: java Esercizio1 --benchmark-parallelo <nodi> <ripetizioni>");
+            System.err.println("oppure: java Esercizio1 --diff <file1.txt> <file2.txt> [massimo differenze]");
+            System.err.println("oppure: java Esercizio1 --benchmark-diff <nodi> <differenze>");
+            System.err.println("oppure: java Esercizio1 --benchmark-lettura <file1.txt> <ripetizioni>");
+            System.err.println("oppure: java Esercizio1 --snapshot <file1.txt> <file2.txt> <prefisso>");
+            System.err.println("oppure: java Esercizio1 --benchmark-indice <alberi> <nodi> <classi>");
+            System.err.println("oppure: java Esercizio1 --benchmark-condivisione <nodi> <versioni> <foglie cambiate>");
+            System.err.println("oppure: java Esercizio1 --memoria <file1.txt> <file2.txt>");
+            System.err.println("oppure: java Esercizio1 --catena <nodi>");
+            System.err.println("oppure: java Esercizio1 --catena-piatta <nodi>");
+            return;
+        }
+        String pairsFile = args[0];
+        String nestedListFile = args[1];
+
+        // Al posto dei file di testo si possono passare snapshot binari (vedi TreeSnapshot)
+        Tree tree1 = TreeSnapshot.isSnapshot(pairsFile) ? TreeSnapshot.read(pairsFile, true) : buildFromPairs(pairsFile);
+        Tree tree2 = TreeSnapshot.isSnapshot(nestedListFile) ? TreeSnapshot.read(nestedListFile, true) : buildFromNestedList(nestedListFile);
 
         //Prova di visita
         System.out.println(tree1.visit());
@@ -3,12 +3,43 @@ NOME: ROBERTO
 COGNOME: ZANOLLI
 */
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjIntConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class Esercizio2 {
     /*
@@ -28,6 +59,198 @@ public class Esercizio2 {
         return cipher;
     }
 
+    /*
+     * Automa di Aho-Corasick sull'alfabeto {0, 1} costruito da una tabella di cifratura qualsiasi
+     * (codici binari non vuoti di qualunque lunghezza, non necessariamente liberi da prefissi).
+     *
+     * Gli stati sono i nodi del trie dei codici; le transizioni sono complete (calcolate con i link di
+     * fallimento), quindi ogni carattere costa un accesso ad array. Lo stato raggiunto dopo i caratteri
+     * code[0..i) corrisponde al più lungo suffisso di code[0..i) che è prefisso di un codice, e i codici
+     * che terminano in posizione i si ottengono scorrendo i link di dizionario dallo stato corrente,
+     * dal più lungo al più corto:
+     *
+     *    for (int m = automaton.firstMatch(state); m != -1; m = automaton.nextMatch(m)) { ... }
+     *
+     * Un carattere diverso da '0' e '1' riporta l'automa nella radice: nessun codice lo attraversa.
+     * L'automa è immutabile e può essere condiviso tra thread.
+     */
+    public static class CipherAutomaton {
+        public static final int ROOT = 0;
+
+        private int[] next0;
+        private int[] next1;
+        // Lunghezza e carattere del codice che termina nello stato (lunghezza 0 se nessuno)
+        private int[] length;
+        private char[] symbol;
+        // Stato terminale più vicino lungo la catena dei fallimenti (-1 se nessuno)
+        private int[] dictionary;
+        private int states;
+        private final int maxLength;
+
+        public CipherAutomaton(Map<String, Character> cipher) {
+            int capacity = 1;
+            for (String key : cipher.keySet()) {
+                capacity += key.length();
+            }
+            next0 = new int[capacity];
+            next1 = new int[capacity];
+            length = new int[capacity];
+            symbol = new char[capacity];
+            dictionary = new int[capacity];
+            Arrays.fill(next0, -1);
+            Arrays.fill(next1, -1);
+            states = 1;
+
+            int longest = 0;
+            for (Map.Entry<String, Character> entry : cipher.entrySet()) {
+                String key = entry.getKey();
+                if (key.isEmpty()) {
+                    throw new IllegalArgumentException("Il codice vuoto non è ammesso");
+                }
+                int state = ROOT;
+                for (int i = 0; i < key.length(); i++) {
+                    char c = key.charAt(i);
+                    if (c != '0' && c != '1') {
+                        throw new IllegalArgumentException("Codice non binario: \"" + key + "\"");
+                    }
+                    int[] next = c == '0' ? next0 : next1;
+                    if (next[state] == -1) {
+                        next[state] = states++;
+                    }
+                    state = next[state];
+                }
+                length[state] = key.length();
+                symbol[state] = entry.getValue();
+                longest = Math.max(longest, key.length());
+            }
+            maxLength = longest;
+
+            // Visita in ampiezza: i link di fallimento di uno stato dipendono solo da stati meno profondi
+            int[] fail = new int[states];
+            int[] queue = new int[states];
+            int head = 0;
+            int tail = 0;
+            dictionary[ROOT] = -1;
+            for (int[] next : new int[][]{next0, next1}) {
+                if (next[ROOT] == -1) {
+                    next[ROOT] = ROOT;
+                } else {
+                    fail[next[ROOT]] = ROOT;
+                    dictionary[next[ROOT]] = -1;
+                    queue[tail++] = next[ROOT];
+                }
+            }
+            while (head < tail) {
+                int u = queue[head++];
+                for (int[] next : new int[][]{next0, next1}) {
+                    int v = next[u];
+                    if (v == -1) {
+                        next[u] = next[fail[u]];
+                    } else {
+                        int f = next[fail[u]];
+                        fail[v] = f;
+                        dictionary[v] = length[f] > 0 ? f : dictionary[f];
+                        queue[tail++] = v;
+                    }
+                }
+            }
+            next0 = Arrays.copyOf(next0, states);
+            next1 = Arrays.copyOf(next1, states);
+            length = Arrays.copyOf(length, states);
+            symbol = Arrays.copyOf(symbol, states);
+            dictionary = Arrays.copyOf(dictionary, states);
+        }
+
+        /*
+         * Stato dopo aver letto c partendo da state.
+         */
+        public int step(int state, char c) {
+            if (c == '0') {
+                return next0[state];
+            }
+            if (c == '1') {
+                return next1[state];
+            }
+            return ROOT;
+        }
+
+        /*
+         * Primo (il più lungo) codice che termina nello stato state, -1 se nessuno.
+         */
+        public int firstMatch(int state) {
+            return length[state] > 0 ? state : dictionary[state];
+        }
+
+        /*
+         * Codice successivo (più corto) che termina nella stessa posizione di match, -1 se nessuno.
+         */
+        public int nextMatch(int match) {
+            return dictionary[match];
+        }
+
+        public int matchLength(int match) {
+            return length[match];
+        }
+
+        public char matchSymbol(int match) {
+            return symbol[match];
+        }
+
+        /*
+         * Lunghezza del codice più lungo.
+         */
+        public int maxLength() {
+            return maxLength;
+        }
+
+        public int states() {
+            return states;
+        }
+    }
+
+    /*
+     * Decodifiche di code con il cifrario di initializeCipher().
+     */
+    public static List<String> getSequences(String code) {
+        return getSequences(code, new CipherAutomaton(initializeCipher()));
+    }
+
+    /*
+     * Stessa programmazione dinamica di getSequencesSubstrings() (S[i] = decodifiche dei primi i caratteri),
+     * ma i codici che terminano in i vengono trovati facendo avanzare l'automa di un carattere, senza
+     * estrarre sottostringhe: costo O(n * L) per i confronti più la costruzione delle stringhe prodotte.
+     * Le liste S[j] con j < i - L non servono più e vengono rilasciate man mano.
+     * Le decodifiche sono prodotte nello stesso ordine della versione originale.
+     */
+    public static List<String> getSequences(String code, CipherAutomaton automaton) {
+        int n = code.length();
+        int window = automaton.maxLength();
+
+        List<List<String>> seq = new ArrayList<>(Collections.nCopies(n + 1, null));
+        seq.set(0, new ArrayList<>());
+        seq.get(0).add("");
+
+        int state = CipherAutomaton.ROOT;
+        for (int i = 1; i <= n; i++) {
+            List<String> current = new ArrayList<>();
+            seq.set(i, current);
+            state = automaton.step(state, code.charAt(i - 1));
+
+            // Codici che terminano in i, dal più lungo (j più piccolo) al più corto
+            for (int m = automaton.firstMatch(state); m != -1; m = automaton.nextMatch(m)) {
+                char character = automaton.matchSymbol(m);
+                for (String prefix : seq.get(i - automaton.matchLength(m))) {
+                    current.add(prefix + character);
+                }
+            }
+            if (i > window) {
+                seq.set(i - window - 1, null);
+            }
+        }
+
+        return seq.get(n);
+    }
+
     /*
      * Metodo che controlla la presenza di decodifiche alternative per una stringa binaria lunga n (code) .
      *
@@ -43,9 +266,12 @@ public class Esercizio2 {
      * NOTA:
      * Poiché si osserva che la lunghezza massima delle sottostringhe nel cifrario sia 4,
      * potremmo ridurre le iterazioni evitando di verificare se sottostringhe più lunghe di 4 caratteri abbiano una codifica.
+     *
+     * Questa è la versione originale, mantenuta come termine di confronto per benchmarkMatcher():
+     * getSequences() usa CipherAutomaton invece delle sottostringhe.
      */
 
-    public static List<String> getSequences(String code) {
+    static List<String> getSequencesSubstrings(String code) {
 
         HashMap<String, Character> cipherMap = initializeCipher();
         int n = code.length();
@@ -77,6 +303,1321 @@ public class Esercizio2 {
         return seq[n];
     }
 
+    /*
+     * Tutte le decodifiche di code rappresentate senza costruirle: il grafo aciclico che ha per nodi le
+     * posizioni 0..n e un arco i -> i + len etichettato c per ogni codice di lunghezza len (carattere c)
+     * che inizia in i. Ogni decodifica è un cammino da 0 a n, quindi le decodifiche condividono i prefissi
+     * e la memoria è O(n * L) invece della dimensione dell'output.
+     *
+     * Per ogni nodo sono memorizzati gli archi che portano a n (gli altri vengono scartati), ordinati per
+     * carattere, e il numero di cammini verso n (saturato a Long.MAX_VALUE). Se da ogni nodo escono
+     * caratteri distinti (vale sempre se il cifrario associa caratteri distinti a codici distinti)
+     * due cammini diversi danno stringhe diverse e la visita in profondità degli archi in ordine produce
+     * le decodifiche già in ordine lessicografico, senza ordinarle: il costruttore lo verifica e lancia
+     * IllegalArgumentException altrimenti. I conteggi permettono di saltare le prime k decodifiche
+     * scendendo direttamente al cammino k-esimo, in O(n * L) invece di O(k).
+     */
+    public static class DecodingDag {
+        private final int n;
+        // Archi in formato CSR: quelli che escono da i sono in [first[i], first[i + 1])
+        private final int[] first;
+        private final int[] target;
+        private final char[] symbol;
+        private final long[] paths;
+
+        public DecodingDag(String code, CipherAutomaton automaton) {
+            this(code, automaton, new Scratch());
+        }
+
+        /*
+         * Come sopra, con i vettori temporanei della costruzione presi da scratch (riutilizzabile per
+         * grafi successivi dallo stesso thread, non da più thread insieme).
+         */
+        public DecodingDag(String code, CipherAutomaton automaton, Scratch scratch) {
+            n = code.length();
+            scratch.ensure(n, n + n / 2);
+
+            // Archi nell'ordine in cui l'automa li trova (per posizione finale)
+            int edges = 0;
+            int[] outDegree = scratch.outDegree;
+            Arrays.fill(outDegree, 0, n + 2, 0);
+            int state = CipherAutomaton.ROOT;
+            for (int i = 1; i <= n; i++) {
+                state = automaton.step(state, code.charAt(i - 1));
+                for (int m = automaton.firstMatch(state); m != -1; m = automaton.nextMatch(m)) {
+                    if (edges == scratch.from.length) {
+                        scratch.ensure(n, edges * 2);
+                    }
+                    int source = i - automaton.matchLength(m);
+                    scratch.from[edges] = source;
+                    scratch.to[edges] = i;
+                    scratch.label[edges] = automaton.matchSymbol(m);
+                    outDegree[source]++;
+                    edges++;
+                }
+            }
+
+            int[] start = scratch.start;
+            start[0] = 0;
+            for (int i = 0; i <= n; i++) {
+                start[i + 1] = start[i] + outDegree[i];
+            }
+            int[] allTarget = scratch.allTarget;
+            char[] allSymbol = scratch.allSymbol;
+            // outDegree diventa la prossima posizione libera di ogni nodo
+            System.arraycopy(start, 0, outDegree, 0, n + 1);
+            for (int e = 0; e < edges; e++) {
+                int slot = outDegree[scratch.from[e]]++;
+                allTarget[slot] = scratch.to[e];
+                allSymbol[slot] = scratch.label[e];
+            }
+
+            // Cammini verso n da destra a sinistra, tenendo solo gli archi che ci arrivano
+            paths = new long[n + 1];
+            paths[n] = 1;
+            first = new int[n + 2];
+            int kept = edges;
+            for (int i = n; i >= 0; i--) {
+                first[i + 1] = kept;
+                long sum = i == n ? 1 : 0;
+                for (int e = start[i + 1] - 1; e >= start[i]; e--) {
+                    long count = paths[allTarget[e]];
+                    if (count > 0) {
+                        kept--;
+                        allTarget[kept] = allTarget[e];
+                        allSymbol[kept] = allSymbol[e];
+                        sum = sum > Long.MAX_VALUE - count ? Long.MAX_VALUE : sum + count;
+                    }
+                }
+                paths[i] = sum;
+                first[i] = kept;
+                // Pochi archi per nodo (al più L): basta un insertion sort
+                for (int e = kept + 1; e < first[i + 1]; e++) {
+                    int t = allTarget[e];
+                    char c = allSymbol[e];
+                    int j = e - 1;
+                    while (j >= kept && allSymbol[j] > c) {
+                        allTarget[j + 1] = allTarget[j];
+                        allSymbol[j + 1] = allSymbol[j];
+                        j--;
+                    }
+                    if (j >= kept && allSymbol[j] == c) {
+                        throw new IllegalArgumentException("Caratteri ripetuti in posizione " + i
+                                + ": l'ordine lessicografico richiede un cifrario con caratteri distinti");
+                    }
+                    allTarget[j + 1] = t;
+                    allSymbol[j + 1] = c;
+                }
+            }
+            target = Arrays.copyOfRange(allTarget, kept, edges);
+            symbol = Arrays.copyOfRange(allSymbol, kept, edges);
+            for (int i = 0; i <= n + 1; i++) {
+                first[i] -= kept;
+            }
+        }
+
+        public DecodingDag(String code) {
+            this(code, new CipherAutomaton(initializeCipher()));
+        }
+
+        /*
+         * Vettori temporanei per la costruzione del grafo, che crescono solo quando servono.
+         */
+        public static class Scratch {
+            private int[] from = new int[0];
+            private int[] to = new int[0];
+            private char[] label = new char[0];
+            private int[] allTarget = new int[0];
+            private char[] allSymbol = new char[0];
+            private int[] outDegree = new int[0];
+            private int[] start = new int[0];
+
+            void ensure(int n, int edges) {
+                edges = Math.max(16, edges);
+                if (from.length < edges) {
+                    from = Arrays.copyOf(from, edges);
+                    to = Arrays.copyOf(to, edges);
+                    label = Arrays.copyOf(label, edges);
+                    allTarget = new int[edges];
+                    allSymbol = new char[edges];
+                }
+                if (outDegree.length < n + 2) {
+                    outDegree = new int[n + 2];
+                    start = new int[n + 2];
+                }
+            }
+        }
+
+        /*
+         * Numero di decodifiche, saturato a Long.MAX_VALUE (il valore esatto è countSequences()).
+         */
+        public long count() {
+            return paths[0];
+        }
+
+        public int edges() {
+            return target.length;
+        }
+
+        /*
+         * Cursore posizionato prima della decodifica di indice skip (0 = la prima in ordine lessicografico).
+         */
+        public Cursor cursor(long skip) {
+            return new Cursor(skip);
+        }
+
+        public Iterator<String> iterator(long skip) {
+            Cursor cursor = cursor(skip);
+            return new Iterator<String>() {
+                private boolean ready;
+
+                @Override
+                public boolean hasNext() {
+                    if (!ready) {
+                        ready = cursor.advance();
+                    }
+                    return ready;
+                }
+
+                @Override
+                public String next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    ready = false;
+                    return new String(cursor.chars(), 0, cursor.length());
+                }
+            };
+        }
+
+        /*
+         * Le decodifiche in ordine lessicografico, prodotte solo quando vengono richieste.
+         */
+        public Stream<String> stream() {
+            return page(0, Long.MAX_VALUE);
+        }
+
+        /*
+         * Al più take decodifiche a partire da quella di indice skip, senza generare quelle saltate.
+         */
+        public Stream<String> page(long skip, long take) {
+            long size = paths[0] == Long.MAX_VALUE ? -1 : Math.min(take, Math.max(0, paths[0] - skip));
+            int characteristics = Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.SORTED | Spliterator.NONNULL;
+            Spliterator<String> spliterator = size < 0
+                    ? Spliterators.spliteratorUnknownSize(iterator(skip), characteristics)
+                    : Spliterators.spliterator(iterator(skip), size, characteristics);
+            return StreamSupport.stream(spliterator, false).limit(take);
+        }
+
+        /*
+         * Scrive su out al più take decodifiche a partire da quella di indice skip, ciascuna seguita da
+         * suffix, direttamente dal buffer del cursore. Restituisce quante ne ha scritte.
+         */
+        public long write(Writer out, long skip, long take, String suffix) throws IOException {
+            Cursor cursor = cursor(skip);
+            long written = 0;
+            while (written < take && cursor.advance()) {
+                out.write(cursor.chars(), 0, cursor.length());
+                out.write(suffix);
+                written++;
+            }
+            return written;
+        }
+
+        /*
+         * Visita in profondità del grafo con uno stack esplicito: il cammino corrente (nodi, archi scelti
+         * e caratteri) è lungo al più n, quindi la memoria è O(n) qualunque sia il numero di decodifiche.
+         */
+        public class Cursor {
+            private final int[] node = new int[n + 1];
+            private final int[] edge = new int[n + 1];
+            private final char[] chars = new char[n];
+            private int depth;
+            private boolean positioned;
+            private boolean finished;
+
+            private Cursor(long skip) {
+                if (skip < 0) {
+                    throw new IllegalArgumentException("Valore non valido: " + skip);
+                }
+                if (skip >= paths[0]) {
+                    finished = true;
+                    return;
+                }
+                // Discesa al cammino di indice skip: si saltano interi sottoalberi grazie ai conteggi
+                long remaining = skip;
+                int u = 0;
+                while (u != n) {
+                    int e = first[u];
+                    while (remaining >= paths[target[e]]) {
+                        remaining -= paths[target[e]];
+                        e++;
+                    }
+                    push(u, e);
+                    u = target[e];
+                }
+                positioned = true;
+            }
+
+            private void push(int u, int e) {
+                node[depth] = u;
+                edge[depth] = e;
+                chars[depth] = symbol[e];
+                depth++;
+            }
+
+            /*
+             * Passa alla decodifica successiva; false se non ce ne sono altre.
+             */
+            public boolean advance() {
+                if (finished) {
+                    return false;
+                }
+                if (positioned) {
+                    positioned = false;
+                    return true;
+                }
+                // Risale fino al primo nodo con un arco successivo, poi scende sempre sul primo arco
+                while (depth > 0) {
+                    depth--;
+                    int u = node[depth];
+                    int e = edge[depth] + 1;
+                    if (e < first[u + 1]) {
+                        push(u, e);
+                        for (int v = target[e]; v != n; v = target[first[v]]) {
+                            push(v, first[v]);
+                        }
+                        return true;
+                    }
+                }
+                finished = true;
+                return false;
+            }
+
+            public char[] chars() {
+                return chars;
+            }
+
+            public int length() {
+                return depth;
+            }
+        }
+    }
+
+    /*
+     * Decodificatore riutilizzabile per grandi lotti di codici brevi con lo stesso cifrario.
+     *
+     * Il cifrario viene compilato una sola volta in un CipherAutomaton; per ogni codice si costruisce il
+     * DecodingDag (O(n * L) memoria, qualunque sia il numero di decodifiche), memorizzato in una cache LRU
+     * limitata a capacity codici. Le decodifiche non vengono mai raccolte in liste: si enumerano dal grafo
+     * quando servono, come fa main per un solo codice. decodeAll() elabora un lotto in parallelo su un
+     * ForkJoinPool e passa ogni grafo a un sink appena pronto; write() scrive un lotto nell'ordine dei
+     * codici, a blocchi di BLOCK_CODES. Ogni worker riusa il proprio DecodingDag.Scratch. Con metrics = true ogni chiamata di decode() misura la latenza (istogramma
+     * logaritmico, 4 intervalli per ottava) e i byte allocati dal thread, se la JVM lo permette
+     * (com.sun.management.ThreadMXBean); i valori sono riassunti da statistics().
+     *
+     * Le decodifiche sono prodotte in ordine da DecodingDag, che richiede caratteri distinti per codici
+     * distinti: il costruttore rifiuta con IllegalArgumentException i cifrari che non lo rispettano.
+     */
+    public static class Decoder implements AutoCloseable {
+        private static final int LEAF_CODES = 16;
+        private static final int BLOCK_CODES = 1024;
+        private static final com.sun.management.ThreadMXBean THREADS = allocationBean();
+
+        private final CipherAutomaton automaton;
+        private final int capacity;
+        private final LinkedHashMap<String, DecodingDag> entries;
+        private final ThreadLocal<DecodingDag.Scratch> scratch = ThreadLocal.withInitial(DecodingDag.Scratch::new);
+        private final ForkJoinPool pool;
+        private final boolean metrics;
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder allocated = new LongAdder();
+        private final LongAdder allocationSamples = new LongAdder();
+        private final AtomicLongArray latencies = new AtomicLongArray(4 * 64);
+
+        public Decoder(Map<String, Character> cipher, int capacity, int parallelism, boolean metrics) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("La capacità deve essere positiva");
+            }
+            if (new HashSet<>(cipher.values()).size() != cipher.size()) {
+                throw new IllegalArgumentException("Il cifrario associa lo stesso carattere a codici diversi");
+            }
+            this.automaton = new CipherAutomaton(cipher);
+            this.capacity = capacity;
+            this.metrics = metrics;
+            this.pool = new ForkJoinPool(parallelism);
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, DecodingDag> eldest) {
+                    if (size() > Decoder.this.capacity) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        private static com.sun.management.ThreadMXBean allocationBean() {
+            if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+                if (bean.isThreadAllocatedMemorySupported()) {
+                    bean.setThreadAllocatedMemoryEnabled(true);
+                    return bean;
+                }
+            }
+            return null;
+        }
+
+        /*
+         * Grafo delle decodifiche di code (immutabile, condivisibile tra thread), dalla cache se possibile.
+         */
+        public DecodingDag decode(String code) {
+            if (!metrics) {
+                return lookup(code);
+            }
+            long bytes = THREADS != null ? THREADS.getCurrentThreadAllocatedBytes() : 0;
+            long t0 = System.nanoTime();
+            DecodingDag result = lookup(code);
+            long elapsed = System.nanoTime() - t0;
+            if (THREADS != null) {
+                allocated.add(THREADS.getCurrentThreadAllocatedBytes() - bytes);
+                allocationSamples.increment();
+            }
+            latencies.incrementAndGet(bucket(elapsed));
+            return result;
+        }
+
+        private DecodingDag lookup(String code) {
+            synchronized (entries) {
+                DecodingDag cached = entries.get(code);
+                if (cached != null) {
+                    hits.increment();
+                    return cached;
+                }
+            }
+            misses.increment();
+
+            DecodingDag dag = new DecodingDag(code, automaton, scratch.get());
+            synchronized (entries) {
+                entries.put(code, dag);
+            }
+            return dag;
+        }
+
+        /*
+         * Costruisce in parallelo i grafi di tutti i codici del lotto e ritorna quando sono terminati;
+         * ogni grafo viene passato a sink (con l'indice del codice) non appena disponibile, dai thread
+         * del pool e in ordine qualsiasi.
+         */
+        public void decodeAll(List<String> codes, ObjIntConsumer<DecodingDag> sink) {
+            pool.invoke(new DecodeTask(codes, sink, 0, codes.size()));
+        }
+
+        /*
+         * Scrive su out, nell'ordine dei codici, lo stesso output di main per ciascun codice: il numero di
+         * decodifiche e poi le decodifiche, ciascuna seguita da separator ("0" per i codici vuoti o senza
+         * decodifiche). In memoria restano solo i grafi di un blocco di BLOCK_CODES codici.
+         */
+        public void write(Writer out, List<String> codes, String separator) throws IOException {
+            DecodingDag[] block = new DecodingDag[Math.min(BLOCK_CODES, codes.size())];
+            for (int from = 0; from < codes.size(); from += BLOCK_CODES) {
+                int base = from;
+                List<String> part = codes.subList(from, Math.min(from + BLOCK_CODES, codes.size()));
+                decodeAll(part, (dag, i) -> block[i] = dag);
+                for (int i = 0; i < part.size(); i++) {
+                    DecodingDag dag = block[i];
+                    block[i] = null;
+                    String code = codes.get(base + i);
+                    if (code.isEmpty() || dag.count() == 0) {
+                        out.write("0" + System.lineSeparator());
+                        continue;
+                    }
+                    out.write((dag.count() == Long.MAX_VALUE ? countSequences(code).toString() : Long.toString(dag.count())) + separator);
+                    dag.write(out, 0, Long.MAX_VALUE, separator);
+                }
+            }
+        }
+
+        private class DecodeTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final List<String> codes;
+            private final ObjIntConsumer<DecodingDag> sink;
+            private final int from;
+            private final int to;
+
+            DecodeTask(List<String> codes, ObjIntConsumer<DecodingDag> sink, int from, int to) {
+                this.codes = codes;
+                this.sink = sink;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= LEAF_CODES) {
+                    for (int i = from; i < to; i++) {
+                        sink.accept(decode(codes.get(i)), i);
+                    }
+                    return;
+                }
+                int mid = (from + to) >>> 1;
+                invokeAll(new DecodeTask(codes, sink, from, mid), new DecodeTask(codes, sink, mid, to));
+            }
+        }
+
+        /*
+         * Intervallo dell'istogramma per una durata: 4 intervalli per ogni potenza di due.
+         */
+        private static int bucket(long nanos) {
+            if (nanos < 4) {
+                return (int) Math.max(0, nanos);
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            return exponent * 4 + (int) ((nanos >>> (exponent - 2)) & 3);
+        }
+
+        /*
+         * Estremo superiore (in nanosecondi) dell'intervallo che contiene il quantile q delle latenze.
+         */
+        public long latencyPercentile(double q) {
+            long total = 0;
+            for (int i = 0; i < latencies.length(); i++) {
+                total += latencies.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < latencies.length(); i++) {
+                seen += latencies.get(i);
+                if (seen >= Math.max(1, rank)) {
+                    if (i < 4) {
+                        return i;
+                    }
+                    int exponent = i / 4;
+                    return ((4L + (i & 3) + 1) << (exponent - 2)) - 1;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        public void clear() {
+            synchronized (entries) {
+                entries.clear();
+            }
+        }
+
+        public int size() {
+            synchronized (entries) {
+                return entries.size();
+            }
+        }
+
+        public long hits() {
+            return hits.sum();
+        }
+
+        public long misses() {
+            return misses.sum();
+        }
+
+        public long evictions() {
+            return evictions.sum();
+        }
+
+        /*
+         * Byte allocati in media da una chiamata di decode() (-1 se non misurati).
+         */
+        public double allocatedBytesPerDecode() {
+            long samples = allocationSamples.sum();
+            return samples == 0 ? -1 : (double) allocated.sum() / samples;
+        }
+
+        public String statistics() {
+            long h = hits.sum();
+            long total = h + misses.sum();
+            String cache = String.format("voci=%d/%d hit=%d miss=%d hit rate=%.1f%% espulsioni=%d",
+                    size(), capacity, h, total - h, total == 0 ? 0.0 : 100.0 * h / total, evictions.sum());
+            if (!metrics) {
+                return cache;
+            }
+            return cache + String.format(" latenza p50=%.1f us p90=%.1f us p99=%.1f us p99.9=%.1f us allocati=%s",
+                    latencyPercentile(0.5) / 1e3, latencyPercentile(0.9) / 1e3, latencyPercentile(0.99) / 1e3,
+                    latencyPercentile(0.999) / 1e3,
+                    allocationSamples.sum() == 0 ? "n/d" : String.format("%.0f byte/decodifica", allocatedBytesPerDecode()));
+        }
+
+        @Override
+        public void close() {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * Conteggio delle decodifiche senza costruirle, per input di qualunque lunghezza.
+     *
+     * Con S[i] = numero di decodifiche dei primi i caratteri vale
+     *
+     *    S[0] = 1,   S[i] = somma su len = 1..L di S[i - len], se code(i - len : i) è un codice del cifrario
+     *
+     * dove L è la lunghezza massima dei codici (4 in initializeCipher()): ogni carattere costa O(L) e basta
+     * ricordare gli ultimi L+1 valori di S in un buffer circolare. I codici che terminano in i sono quelli
+     * riportati da CipherAutomaton dopo un passo sul carattere letto, senza sottostringhe né lookup nella
+     * HashMap, e possono avere qualunque lunghezza.
+     *
+     * I caratteri arrivano uno alla volta con accept(), quindi l'input può essere letto in streaming.
+     * Con modulus = 0 il conteggio è esatto (BigInteger: la memoria cresce solo con le cifre del risultato,
+     * circa 0.7 bit per carattere letto), altrimenti è calcolato modulo modulus in memoria costante.
+     */
+    public static class SequenceCounter {
+        private final CipherAutomaton automaton;
+        private final int maxLength;
+        private final long modulus;
+        private final BigInteger[] exact;
+        private final long[] modular;
+        private int state;
+        private long length;
+
+        public SequenceCounter(Map<String, Character> cipher, long modulus) {
+            this(new CipherAutomaton(cipher), modulus);
+        }
+
+        public SequenceCounter(CipherAutomaton automaton, long modulus) {
+            if (modulus < 0 || modulus > (1L << 62)) {
+                throw new IllegalArgumentException("Modulo non valido: " + modulus);
+            }
+            int longest = automaton.maxLength();
+            this.automaton = automaton;
+            this.maxLength = longest;
+            this.modulus = modulus;
+            this.exact = modulus == 0 ? new BigInteger[longest + 1] : null;
+            this.modular = modulus == 0 ? null : new long[longest + 1];
+            reset();
+        }
+
+        /*
+         * Ricomincia da una stringa vuota (una sola decodifica, quella vuota).
+         */
+        public void reset() {
+            state = CipherAutomaton.ROOT;
+            length = 0;
+            if (exact != null) {
+                Arrays.fill(exact, BigInteger.ZERO);
+                exact[0] = BigInteger.ONE;
+            } else {
+                Arrays.fill(modular, 0);
+                modular[0] = 1 % Math.max(modulus, 1);
+            }
+        }
+
+        /*
+         * Aggiunge un carattere in coda alla stringa. Un carattere diverso da '0' e '1' non fa parte
+         * di nessun codice: come in getSequences() nessuna decodifica può attraversarlo.
+         */
+        public void accept(char c) {
+            state = automaton.step(state, c);
+            length++;
+            int slots = maxLength + 1;
+            int current = (int) (length % slots);
+            if (exact != null) {
+                BigInteger sum = BigInteger.ZERO;
+                for (int m = automaton.firstMatch(state); m != -1; m = automaton.nextMatch(m)) {
+                    sum = sum.add(exact[(int) ((length - automaton.matchLength(m)) % slots)]);
+                }
+                exact[current] = sum;
+            } else {
+                // Ogni addendo è minore di modulus <= 2^62: ridurre a ogni passo evita l'overflow
+                long sum = 0;
+                for (int m = automaton.firstMatch(state); m != -1; m = automaton.nextMatch(m)) {
+                    sum += modular[(int) ((length - automaton.matchLength(m)) % slots)];
+                    if (sum >= modulus) {
+                        sum -= modulus;
+                    }
+                }
+                modular[current] = sum;
+            }
+        }
+
+        public void accept(CharSequence code) {
+            for (int i = 0; i < code.length(); i++) {
+                accept(code.charAt(i));
+            }
+        }
+
+        /*
+         * Numero esatto di decodifiche della stringa letta finora (solo con modulus = 0).
+         */
+        public BigInteger count() {
+            if (exact == null) {
+                throw new IllegalStateException("Conteggio modulare: usare countModulo()");
+            }
+            return exact[(int) (length % (maxLength + 1))];
+        }
+
+        /*
+         * Numero di decodifiche modulo modulus (con modulus = 0 il conteggio esatto ridotto a long,
+         * se ci sta).
+         */
+        public long countModulo() {
+            if (modular == null) {
+                return count().longValueExact();
+            }
+            return modular[(int) (length % (maxLength + 1))];
+        }
+
+        public long length() {
+            return length;
+        }
+    }
+
+    /*
+     * Conteggio delle decodifiche di stringhe molto lunghe in parallelo su un ForkJoinPool.
+     *
+     * Con L = lunghezza massima dei codici, lo stato della ricorrenza di SequenceCounter dopo i caratteri
+     * code[0..i) è il vettore v(i) = (S[i], S[i-1], ..., S[i-L+1]), e v(i+1) dipende linearmente da v(i)
+     * con coefficienti che dipendono solo dai codici che terminano in i+1. Un blocco code[a..b) è quindi
+     * descritto da una matrice di trasferimento L x L con v(b) = T(a, b) v(a), calcolata facendo avanzare
+     * insieme gli L vettori della base; i codici che terminano nel blocco iniziano al più L caratteri prima
+     * di a, quindi basta far partire l'automa da a - L. I blocchi vengono calcolati in parallelo e combinati
+     * con T(a, c) = T(b, c) T(a, b): il prodotto è associativo, quindi il risultato S[n] = T(0, n)[0][0]
+     * coincide con quello della programmazione dinamica sequenziale.
+     *
+     * Con modulus = 0 il conteggio è esatto (BigInteger), altrimenti modulo modulus.
+     */
+    public static class ParallelCounter implements AutoCloseable {
+        private static final int MIN_CHUNK = 1 << 12;
+
+        private final CipherAutomaton automaton;
+        private final int size;
+        private final long modulus;
+        private final BigInteger bigModulus;
+        private final ForkJoinPool pool;
+
+        public ParallelCounter(CipherAutomaton automaton, long modulus, int parallelism) {
+            if (modulus < 0 || modulus > (1L << 62)) {
+                throw new IllegalArgumentException("Modulo non valido: " + modulus);
+            }
+            this.automaton = automaton;
+            this.size = Math.max(1, automaton.maxLength());
+            this.modulus = modulus;
+            this.bigModulus = BigInteger.valueOf(modulus);
+            this.pool = new ForkJoinPool(parallelism);
+        }
+
+        /*
+         * Numero di decodifiche di code (esatto, oppure modulo modulus): lo stesso valore di SequenceCounter.
+         */
+        public BigInteger count(String code) {
+            return pool.invoke(new CountTask(code));
+        }
+
+        /*
+         * Conta ogni riga come un lavoro separato; le righe vengono distribuite tra i worker e quelle lunghe
+         * sono a loro volta divise in blocchi. I risultati sono nell'ordine delle righe.
+         */
+        public BigInteger[] countLines(List<String> lines) {
+            BigInteger[] results = new BigInteger[lines.size()];
+            pool.invoke(new LinesTask(lines, results, 0, lines.size()));
+            return results;
+        }
+
+        private BigInteger reduce(BigInteger value) {
+            return modulus == 0 ? value : value.mod(bigModulus);
+        }
+
+        private class CountTask extends RecursiveTask<BigInteger> {
+            private static final long serialVersionUID = 1L;
+
+            private final String code;
+
+            CountTask(String code) {
+                this.code = code;
+            }
+
+            @Override
+            protected BigInteger compute() {
+                int chunk = Math.max(MIN_CHUNK, code.length() / (4 * getPool().getParallelism()));
+                Transfer transfer = new TransferTask(code, 0, code.length(), chunk).compute();
+                return transfer.get(0, 0);
+            }
+        }
+
+        private class LinesTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final List<String> lines;
+            private final BigInteger[] results;
+            private final int from;
+            private final int to;
+
+            LinesTask(List<String> lines, BigInteger[] results, int from, int to) {
+                this.lines = lines;
+                this.results = results;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= 1) {
+                    if (from < to) {
+                        results[from] = new CountTask(lines.get(from)).compute();
+                    }
+                    return;
+                }
+                int mid = (from + to) >>> 1;
+                invokeAll(new LinesTask(lines, results, from, mid), new LinesTask(lines, results, mid, to));
+            }
+        }
+
+        private class TransferTask extends RecursiveTask<Transfer> {
+            private static final long serialVersionUID = 1L;
+
+            private final String code;
+            private final int from;
+            private final int to;
+            private final int chunk;
+
+            TransferTask(String code, int from, int to, int chunk) {
+                this.code = code;
+                this.from = from;
+                this.to = to;
+                this.chunk = chunk;
+            }
+
+            @Override
+            protected Transfer compute() {
+                if (to - from <= chunk) {
+                    return transfer(code, from, to);
+                }
+                int mid = (from + to) >>> 1;
+                TransferTask left = new TransferTask(code, from, mid, chunk);
+                left.fork();
+                Transfer right = new TransferTask(code, mid, to, chunk).compute();
+                return right.multiply(left.join());
+            }
+        }
+
+        /*
+         * T(from, to): la colonna j parte da v(from) = e_j e avanza carattere per carattere come in
+         * SequenceCounter.accept(), con un buffer circolare di L + 1 vettori.
+         */
+        private Transfer transfer(String code, int from, int to) {
+            int slots = size + 1;
+            int state = CipherAutomaton.ROOT;
+            for (int i = Math.max(0, from - size); i < from; i++) {
+                state = automaton.step(state, code.charAt(i));
+            }
+            Transfer result = new Transfer();
+            if (modulus == 0) {
+                BigInteger[][] ring = new BigInteger[slots][size];
+                for (BigInteger[] row : ring) {
+                    Arrays.fill(row, BigInteger.ZERO);
+                }
+                // v(from)[k] = S[from - k] nello slot (slots - k) % slots
+                for (int k = 0; k < size; k++) {
+                    ring[(slots - k) % slots][k] = BigInteger.ONE;
+                }
+                for (int i = from + 1; i <= to; i++) {
+                    state = automaton.step(state, code.charAt(i - 1));
+                    BigInteger[] current = ring[(i - from) % slots];
+                    Arrays.fill(current, BigInteger.ZERO);
+                    for (int m = automaton.firstMatch(state); m != -1; m = automaton.nextMatch(m)) {
+                        BigInteger[] previous = ring[(i - from - automaton.matchLength(m) + slots) % slots];
+                        for (int j = 0; j < size; j++) {
+                            current[j] = current[j].add(previous[j]);
+                        }
+                    }
+                }
+                for (int k = 0; k < size; k++) {
+                    result.exact[k] = ring[(to - from - k + slots) % slots].clone();
+                }
+            } else {
+                long[][] ring = new long[slots][size];
+                for (int k = 0; k < size; k++) {
+                    ring[(slots - k) % slots][k] = 1 % modulus;
+                }
+                for (int i = from + 1; i <= to; i++) {
+                    state = automaton.step(state, code.charAt(i - 1));
+                    long[] current = ring[(i - from) % slots];
+                    Arrays.fill(current, 0);
+                    for (int m = automaton.firstMatch(state); m != -1; m = automaton.nextMatch(m)) {
+                        long[] previous = ring[(i - from - automaton.matchLength(m) + slots) % slots];
+                        for (int j = 0; j < size; j++) {
+                            long sum = current[j] + previous[j];
+                            current[j] = sum >= modulus ? sum - modulus : sum;
+                        }
+                    }
+                }
+                for (int k = 0; k < size; k++) {
+                    result.modular[k] = ring[(to - from - k + slots) % slots].clone();
+                }
+            }
+            return result;
+        }
+
+        /*
+         * Matrice di trasferimento L x L, per righe.
+         */
+        private class Transfer {
+            final BigInteger[][] exact = modulus == 0 ? new BigInteger[size][] : null;
+            final long[][] modular = modulus == 0 ? null : new long[size][];
+
+            BigInteger get(int row, int column) {
+                return exact != null ? exact[row][column] : BigInteger.valueOf(modular[row][column]);
+            }
+
+            /*
+             * this * before: prima il blocco before, poi questo.
+             */
+            Transfer multiply(Transfer before) {
+                Transfer result = new Transfer();
+                for (int k = 0; k < size; k++) {
+                    BigInteger[] row = new BigInteger[size];
+                    for (int j = 0; j < size; j++) {
+                        BigInteger sum = BigInteger.ZERO;
+                        for (int t = 0; t < size; t++) {
+                            BigInteger a = get(k, t);
+                            BigInteger b = before.get(t, j);
+                            if (a.signum() != 0 && b.signum() != 0) {
+                                sum = sum.add(a.multiply(b));
+                            }
+                        }
+                        row[j] = reduce(sum);
+                    }
+                    if (exact != null) {
+                        result.exact[k] = row;
+                    } else {
+                        result.modular[k] = new long[size];
+                        for (int j = 0; j < size; j++) {
+                            result.modular[k][j] = row[j].longValue();
+                        }
+                    }
+                }
+                return result;
+            }
+        }
+
+        @Override
+        public void close() {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * Numero esatto di decodifiche di code: lo stesso valore di getSequences(code).size().
+     */
+    public static BigInteger countSequences(String code) {
+        SequenceCounter counter = new SequenceCounter(initializeCipher(), 0);
+        counter.accept(code);
+        return counter.count();
+    }
+
+    /*
+     * Numero di decodifiche di code modulo modulus.
+     */
+    public static long countSequences(String code, long modulus) {
+        SequenceCounter counter = new SequenceCounter(initializeCipher(), modulus);
+        counter.accept(code);
+        return counter.countModulo();
+    }
+
+    /*
+     * Conta le decodifiche dell'ultima riga del file (la stessa letta da readFile()) leggendolo in
+     * streaming a blocchi: il contatore riparte ad ogni nuova riga, quindi il file non viene mai
+     * caricato in memoria.
+     */
+    public static SequenceCounter countFile(String inputFile, long modulus) throws IOException {
+        SequenceCounter counter = new SequenceCounter(initializeCipher(), modulus);
+        try (FileChannel channel = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ)) {
+            byte[] bytes = new byte[1 << 20];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            boolean lineEnded = false;
+            int previous = -1;
+            int r;
+            while ((r = channel.read(buffer.clear())) >= 0) {
+                for (int i = 0; i < r; i++) {
+                    int c = bytes[i];
+                    if (c == '\n' && previous == '\r') {
+                        previous = c;
+                        continue;
+                    }
+                    previous = c;
+                    // Come Scanner.nextLine(): un terminatore in fondo al file non apre una nuova riga vuota
+                    if (lineEnded) {
+                        counter.reset();
+                        lineEnded = false;
+                    }
+                    if (c == '\n' || c == '\r') {
+                        lineEnded = true;
+                    } else {
+                        counter.accept((char) (c & 0xFF));
+                    }
+                }
+            }
+        }
+        return counter;
+    }
+
+    /*
+     * Confronta countSequences() con getSequences(code).size() su stringhe casuali di lunghezza crescente
+     * (finché le decodifiche da costruire restano meno di un milione) e poi misura il solo conteggio,
+     * esatto e modulare, su una stringa di bits caratteri.
+     */
+    public static void benchmarkCount(int bits, long seed) {
+        Random random = new Random(seed);
+        for (int n = 8; ; n += 8) {
+            String code = randomCode(random, n);
+            long t0 = System.nanoTime();
+            BigInteger count = countSequences(code);
+            double counting = (System.nanoTime() - t0) / 1e6;
+            if (count.compareTo(BigInteger.valueOf(1_000_000)) > 0) {
+                System.out.printf("n=%d: countSequences() = %s in %.3f ms, getSequences() non eseguito%n", code.length(), count, counting);
+                break;
+            }
+            t0 = System.nanoTime();
+            int size = getSequences(code).size();
+            double legacy = (System.nanoTime() - t0) / 1e6;
+            System.out.printf("n=%d: getSequences().size() = %d in %.3f ms, countSequences() = %s in %.3f ms%s%n",
+                    code.length(), size, legacy, count, counting, count.equals(BigInteger.valueOf(size)) ? "" : "  ATTENZIONE: diversi");
+        }
+
+        String code = randomCode(random, bits);
+        long t0 = System.nanoTime();
+        BigInteger exact = countSequences(code);
+        System.out.printf("n=%d: conteggio esatto (%d cifre) in %.1f ms%n",
+                bits, exact.toString().length(), (System.nanoTime() - t0) / 1e6);
+        long modulus = 1_000_000_007L;
+        t0 = System.nanoTime();
+        long modular = countSequences(code, modulus);
+        System.out.printf("n=%d: conteggio modulo %d = %d in %.1f ms (esatto mod %d = %s)%n",
+                bits, modulus, modular, (System.nanoTime() - t0) / 1e6, modulus, exact.mod(BigInteger.valueOf(modulus)));
+    }
+
+    /*
+     * Scalabilità di ParallelCounter su una stringa di chars caratteri, esatto e modulo 1e9+7, con 1, 2, 4, ...
+     * worker fino al numero di processori (almeno 4), confrontando ogni risultato con SequenceCounter (sequenziale).
+     */
+    public static void benchmarkParallel(int chars, long seed) {
+        Random random = new Random(seed);
+        CipherAutomaton automaton = new CipherAutomaton(initializeCipher());
+        String code = randomCode(random, chars);
+        // Almeno 4 worker, così il confronto con il sequenziale copre la divisione in blocchi anche su macchine piccole
+        int processors = Math.max(4, Runtime.getRuntime().availableProcessors());
+        for (long modulus : new long[]{0, 1_000_000_007L}) {
+            long t0 = System.nanoTime();
+            SequenceCounter counter = new SequenceCounter(automaton, modulus);
+            counter.accept(code);
+            BigInteger expected = modulus == 0 ? counter.count() : BigInteger.valueOf(counter.countModulo());
+            double sequential = (System.nanoTime() - t0) / 1e6;
+            System.out.printf("n=%d, %s: sequenziale in %.1f ms%n",
+                    code.length(), modulus == 0 ? "esatto" : "modulo " + modulus, sequential);
+            for (int parallelism = 1; ; parallelism = Math.min(parallelism * 2, processors)) {
+                try (ParallelCounter parallel = new ParallelCounter(automaton, modulus, parallelism)) {
+                    parallel.count(code.substring(0, Math.min(code.length(), 1 << 16)));
+                    t0 = System.nanoTime();
+                    BigInteger count = parallel.count(code);
+                    double elapsed = (System.nanoTime() - t0) / 1e6;
+                    System.out.printf("  %d worker: %.1f ms (%.1fx rispetto al sequenziale)%s%n",
+                            parallelism, elapsed, sequential / elapsed, count.equals(expected) ? "" : "  ATTENZIONE: diversi");
+                }
+                if (parallelism == processors) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /*
+     * Decodifica queries codici estratti (con ripetizioni) da distinct codici casuali brevi: prima con
+     * getSequencesSubstrings() e sort per ogni codice, come faceva main, poi con un Decoder chiamato
+     * da un solo thread e infine con decodeAll() su 1, 2, 4, ... worker. Verifica che i risultati
+     * coincidano e stampa le statistiche del decodificatore.
+     */
+    public static void benchmarkDecoder(int queries, int distinct, long seed) {
+        Random random = new Random(seed);
+        String[] pool = new String[distinct];
+        for (int i = 0; i < distinct; i++) {
+            pool[i] = randomCode(random, 8 + random.nextInt(25));
+        }
+        int[] picks = new int[queries];
+        List<String> codes = new ArrayList<>(queries);
+        for (int q = 0; q < queries; q++) {
+            picks[q] = random.nextInt(distinct);
+            codes.add(pool[picks[q]]);
+        }
+        int capacity = Math.max(1, distinct / 2);
+
+        // Si tengono solo i risultati dei codici distinti: quelli di tutte le richieste non starebbero in memoria
+        long t0 = System.nanoTime();
+        List<List<String>> expected = new ArrayList<>(Collections.nCopies(distinct, null));
+        for (int q = 0; q < queries; q++) {
+            List<String> sequences = getSequencesSubstrings(codes.get(q));
+            sequences.sort(null);
+            expected.set(picks[q], sequences);
+        }
+        System.out.printf("getSequencesSubstrings() + sort: %.1f us/codice%n", (System.nanoTime() - t0) / 1e3 / queries);
+
+        try (Decoder decoder = new Decoder(initializeCipher(), capacity, 1, true)) {
+            t0 = System.nanoTime();
+            boolean same = true;
+            for (int q = 0; q < queries; q++) {
+                same &= sameDecodings(decoder.decode(codes.get(q)), expected.get(picks[q]));
+            }
+            System.out.printf("Decoder.decode(): %.1f us/codice%s%n", (System.nanoTime() - t0) / 1e3 / queries,
+                    same ? "" : "  ATTENZIONE: diversi");
+            System.out.println("  " + decoder.statistics());
+        }
+
+        int processors = Math.max(4, Runtime.getRuntime().availableProcessors());
+        for (int parallelism = 1; ; parallelism = Math.min(parallelism * 2, processors)) {
+            try (Decoder decoder = new Decoder(initializeCipher(), capacity, parallelism, false)) {
+                LongAdder different = new LongAdder();
+                t0 = System.nanoTime();
+                decoder.decodeAll(codes, (dag, q) -> {
+                    if (!sameDecodings(dag, expected.get(picks[q]))) {
+                        different.increment();
+                    }
+                });
+                double elapsed = (System.nanoTime() - t0) / 1e3 / queries;
+                boolean same = different.sum() == 0;
+                System.out.printf("decodeAll() con %d worker: %.1f us/codice%s%n", parallelism, elapsed,
+                        same ? "" : "  ATTENZIONE: diversi");
+            }
+            if (parallelism == processors) {
+                break;
+            }
+        }
+    }
+
+    /*
+     * Vero se le decodifiche enumerate da dag sono esattamente expected, nello stesso ordine; le
+     * confronta carattere per carattere dal buffer del cursore, senza creare stringhe.
+     */
+    private static boolean sameDecodings(DecodingDag dag, List<String> expected) {
+        if (dag.count() != expected.size()) {
+            return false;
+        }
+        DecodingDag.Cursor cursor = dag.cursor(0);
+        for (String sequence : expected) {
+            if (!cursor.advance() || cursor.length() != sequence.length()) {
+                return false;
+            }
+            char[] chars = cursor.chars();
+            for (int i = 0; i < sequence.length(); i++) {
+                if (chars[i] != sequence.charAt(i)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Confronta il riconoscimento dei codici della versione originale (sottostringhe cercate nella HashMap)
+     * con CipherAutomaton: entrambi contano i codici che terminano in ogni posizione di una stringa di
+     * chars caratteri, con qualche giro di riscaldamento prima dei giri misurati. Il ciclo originale è
+     * limitato alle sottostringhe lunghe al più L (vedi la NOTA di getSequencesSubstrings()), altrimenti
+     * sarebbe quadratico. Poi verifica su un cifrario casuale con codici lunghi e prefissi comuni che i
+     * due metodi trovino gli stessi codici, e che getSequences() coincida con getSequencesSubstrings().
+     */
+    public static void benchmarkMatcher(int chars, long seed) {
+        Random random = new Random(seed);
+        HashMap<String, Character> cipher = initializeCipher();
+        CipherAutomaton automaton = new CipherAutomaton(cipher);
+        String code = randomCode(random, chars);
+        int warmup = 3;
+        int rounds = 5;
+
+        long substrings = 0;
+        long automatonMatches = 0;
+        double substringTime = Double.MAX_VALUE;
+        double automatonTime = Double.MAX_VALUE;
+        for (int round = 0; round < warmup + rounds; round++) {
+            long t0 = System.nanoTime();
+            substrings = countMatchesSubstrings(code, cipher, automaton.maxLength());
+            double elapsed = (System.nanoTime() - t0) / 1e6;
+            if (round >= warmup) {
+                substringTime = Math.min(substringTime, elapsed);
+            }
+            t0 = System.nanoTime();
+            automatonMatches = countMatches(code, automaton);
+            elapsed = (System.nanoTime() - t0) / 1e6;
+            if (round >= warmup) {
+                automatonTime = Math.min(automatonTime, elapsed);
+            }
+        }
+        System.out.printf("n=%d: sottostringhe %d codici in %.1f ms, automa %d codici in %.1f ms (%.1fx, migliore di %d giri)%s%n",
+                code.length(), substrings, substringTime, automatonMatches, automatonTime, substringTime / automatonTime, rounds,
+                substrings == automatonMatches ? "" : "  ATTENZIONE: diversi");
+
+        // Cifrario casuale: 64 codici lunghi da 1 a 20 caratteri, senza vincoli sui prefissi
+        HashMap<String, Character> randomCipher = new HashMap<>();
+        while (randomCipher.size() < 64) {
+            int length = 1 + random.nextInt(20);
+            StringBuilder key = new StringBuilder(length);
+            for (int i = 0; i < length; i++) {
+                key.append(random.nextBoolean() ? '1' : '0');
+            }
+            randomCipher.put(key.toString(), (char) ('A' + randomCipher.size() % 26));
+        }
+        CipherAutomaton randomAutomaton = new CipherAutomaton(randomCipher);
+        String text = randomCode(random, 100_000);
+        long expected = countMatchesSubstrings(text, randomCipher, randomAutomaton.maxLength());
+        long actual = countMatches(text, randomAutomaton);
+        System.out.printf("cifrario casuale (%d codici, %d stati, L=%d): sottostringhe %d codici, automa %d codici%s%n",
+                randomCipher.size(), randomAutomaton.states(), randomAutomaton.maxLength(), expected, actual,
+                expected == actual ? "" : "  ATTENZIONE: diversi");
+
+        for (int n = 8; n <= 48; n += 8) {
+            String sample = randomCode(random, n);
+            // Come in benchmarkCount(): le decodifiche vengono costruite solo se sono poche
+            BigInteger count = countSequences(sample);
+            if (count.compareTo(BigInteger.valueOf(100_000)) > 0) {
+                System.out.printf("n=%d: %s decodifiche, confronto non eseguito%n", sample.length(), count);
+                continue;
+            }
+            long t0 = System.nanoTime();
+            List<String> legacy = getSequencesSubstrings(sample);
+            double legacyTime = (System.nanoTime() - t0) / 1e6;
+            t0 = System.nanoTime();
+            List<String> sequences = getSequences(sample, automaton);
+            double time = (System.nanoTime() - t0) / 1e6;
+            System.out.printf("n=%d: getSequencesSubstrings() %d decodifiche in %.3f ms, getSequences() in %.3f ms%s%n",
+                    sample.length(), legacy.size(), legacyTime, time, legacy.equals(sequences) ? "" : "  ATTENZIONE: diverse");
+        }
+    }
+
+    /*
+     * Numero di codici del cifrario che terminano in ogni posizione di code (sommati), con il ciclo
+     * originale su sottostringhe e HashMap ristretto alle lunghezze fino a maxLength.
+     */
+    static long countMatchesSubstrings(String code, Map<String, Character> cipher, int maxLength) {
+        long matches = 0;
+        for (int i = 1; i <= code.length(); i++) {
+            for (int j = Math.max(0, i - maxLength); j < i; j++) {
+                if (cipher.containsKey(code.substring(j, i))) {
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+
+    /*
+     * Come countMatchesSubstrings(), con un solo passaggio dell'automa e nessuna allocazione.
+     */
+    static long countMatches(String code, CipherAutomaton automaton) {
+        long matches = 0;
+        int state = CipherAutomaton.ROOT;
+        for (int i = 0; i < code.length(); i++) {
+            state = automaton.step(state, code.charAt(i));
+            for (int m = automaton.firstMatch(state); m != -1; m = automaton.nextMatch(m)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    /*
+     * Confronta DecodingDag con getSequences() ordinata su stringhe casuali di lunghezza crescente (lista
+     * completa e pagine), poi su una stringa di chars caratteri misura costruzione del grafo, discesa a una
+     * pagina a metà delle decodifiche e scrittura di quella pagina, senza mai generare le decodifiche saltate.
+     */
+    public static void benchmarkEnumeration(int chars, long seed) throws IOException {
+        Random random = new Random(seed);
+        CipherAutomaton automaton = new CipherAutomaton(initializeCipher());
+        for (int n = 8; n <= 48; n += 8) {
+            String code = randomCode(random, n);
+            BigInteger count = countSequences(code);
+            if (count.compareTo(BigInteger.valueOf(100_000)) > 0) {
+                System.out.printf("n=%d: %s decodifiche, confronto non eseguito%n", code.length(), count);
+                continue;
+            }
+            long t0 = System.nanoTime();
+            List<String> sorted = getSequences(code, automaton);
+            sorted.sort(null);
+            double legacy = (System.nanoTime() - t0) / 1e6;
+            t0 = System.nanoTime();
+            DecodingDag dag = new DecodingDag(code, automaton);
+            List<String> streamed = dag.stream().collect(Collectors.toList());
+            double lazy = (System.nanoTime() - t0) / 1e6;
+            boolean pages = true;
+            for (int trial = 0; trial < 20 && !sorted.isEmpty(); trial++) {
+                int skip = random.nextInt(sorted.size() + 1);
+                int take = random.nextInt(10);
+                List<String> page = dag.page(skip, take).collect(Collectors.toList());
+                pages &= page.equals(sorted.subList(skip, Math.min(sorted.size(), skip + take)));
+            }
+            System.out.printf("n=%d: %d decodifiche, getSequences() + sort in %.3f ms, DecodingDag in %.3f ms%s%n",
+                    code.length(), sorted.size(), legacy, lazy,
+                    sorted.equals(streamed) && dag.count() == sorted.size() && pages ? "" : "  ATTENZIONE: diverse");
+        }
+
+        String code = randomCode(random, chars);
+        long t0 = System.nanoTime();
+        DecodingDag dag = new DecodingDag(code, automaton);
+        double build = (System.nanoTime() - t0) / 1e6;
+        BigInteger exact = countSequences(code);
+        long skip = exact.shiftRight(1).min(BigInteger.valueOf(Long.MAX_VALUE - 1)).longValue();
+        t0 = System.nanoTime();
+        DecodingDag.Cursor cursor = dag.cursor(skip);
+        double seek = (System.nanoTime() - t0) / 1e6;
+        t0 = System.nanoTime();
+        CharCounter sink = new CharCounter();
+        long written = 0;
+        try (Writer out = new BufferedWriter(sink, 1 << 16)) {
+            for (; written < 1000 && cursor.advance(); written++) {
+                out.write(cursor.chars(), 0, cursor.length());
+                out.write(",\n");
+            }
+        }
+        double page = (System.nanoTime() - t0) / 1e6;
+        System.out.printf("n=%d: grafo con %d archi in %.1f ms, %s decodifiche (conteggio %s), salto a %d in %.1f ms, %d decodifiche (%d caratteri) scritte in %.1f ms%n",
+                chars, dag.edges(), build, exact.bitLength() > 64 ? "~2^" + exact.bitLength() : exact.toString(),
+                dag.count() == Long.MAX_VALUE ? "saturato" : "esatto", skip, seek, written, sink.chars, page);
+    }
+
+    /*
+     * Writer che si limita a contare i caratteri, per misurare la scrittura senza I/O.
+     */
+    static class CharCounter extends Writer {
+        long chars;
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            chars += length;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /*
+     * Concatenazione di codici casuali del cifrario lunga almeno n caratteri (quindi con almeno
+     * una decodifica).
+     */
+    static String randomCode(Random random, int n) {
+        String[] keys = initializeCipher().keySet().toArray(new String[0]);
+        Arrays.sort(keys);
+        StringBuilder code = new StringBuilder(n + 4);
+        while (code.length() < n) {
+            code.append(keys[random.nextInt(keys.length)]);
+        }
+        return code.toString();
+    }
+
     /*
      * Legge la stringa binaria dal file e la restituisce.
      */
@@ -90,10 +1631,92 @@ public class Esercizio2 {
         return code;
     }
 
-    public static void main(String[] args) throws FileNotFoundException {
+    public static void main(String[] args) throws IOException {
+
+        if ((args.length == 2 || args.length == 3) && args[0].equals("--conteggio")) {
+            long modulus = args.length == 3 ? Long.parseLong(args[2]) : 0;
+            SequenceCounter counter = countFile(args[1], modulus);
+            System.out.println(counter.length() == 0 ? "0" : modulus == 0 ? counter.count().toString() : Long.toString(counter.countModulo()));
+            return;
+        }
+
+        if ((args.length == 3 || args.length == 4) && (args[0].equals("--conteggio-parallelo") || args[0].equals("--conteggio-righe"))) {
+            long modulus = args.length == 4 ? Long.parseLong(args[3]) : 0;
+            // Stessa divisione in righe di Scanner.nextLine(); ogni byte è un carattere, come in countFile()
+            List<String> lines = Files.readAllLines(Paths.get(args[1]), StandardCharsets.ISO_8859_1);
+            if (args[0].equals("--conteggio-parallelo")) {
+                lines = lines.isEmpty() ? lines : lines.subList(lines.size() - 1, lines.size());
+            }
+            try (ParallelCounter counter = new ParallelCounter(new CipherAutomaton(initializeCipher()), modulus, Integer.parseInt(args[2]))) {
+                BigInteger[] counts = counter.countLines(lines);
+                for (int i = 0; i < counts.length; i++) {
+                    System.out.println(lines.get(i).isEmpty() ? "0" : counts[i].toString());
+                }
+                if (counts.length == 0) {
+                    System.out.println("0");
+                }
+            }
+            return;
+        }
+
+        if ((args.length == 3 || args.length == 4) && args[0].equals("--lotto")) {
+            // Ogni riga è un codice da decodificare; per ognuna lo stesso output del caso con un solo codice
+            List<String> codes = Files.readAllLines(Paths.get(args[1]), StandardCharsets.ISO_8859_1);
+            int capacity = args.length == 4 ? Integer.parseInt(args[3]) : 1 << 16;
+            try (Decoder decoder = new Decoder(initializeCipher(), capacity, Integer.parseInt(args[2]), true)) {
+                Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+                decoder.write(out, codes, "," + System.lineSeparator());
+                out.flush();
+                System.err.println(decoder.statistics());
+            }
+            return;
+        }
+
+        if (args.length == 4 && args[0].equals("--benchmark-decodificatore")) {
+            benchmarkDecoder(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Long.parseLong(args[3]));
+            return;
+        }
+
+        if (args.length == 3 && args[0].equals("--benchmark-parallelo")) {
+            benchmarkParallel(Integer.parseInt(args[1]), Long.parseLong(args[2]));
+            return;
+        }
+
+        if (args.length == 3 && args[0].equals("--benchmark-conteggio")) {
+            benchmarkCount(Integer.parseInt(args[1]), Long.parseLong(args[2]));
+            return;
+        }
+
+        if (args.length == 3 && args[0].equals("--benchmark-automa")) {
+            benchmarkMatcher(Integer.parseInt(args[1]), Long.parseLong(args[2]));
+            return;
+        }
+
+        if (args.length == 3 && args[0].equals("--benchmark-enumerazione")) {
+            benchmarkEnumeration(Integer.parseInt(args[1]), Long.parseLong(args[2]));
+            return;
+        }
+
+        if (args.length == 4 && args[0].equals("--pagina")) {
+            DecodingDag dag = new DecodingDag(readFile(args[1]));
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+            dag.write(out, Long.parseLong(args[2]), Long.parseLong(args[3]), ",\n");
+            out.flush();
+            return;
+        }
 
         if (args.length != 1) {
             System.err.println("Errore, utilizza il formato: java Esercizio2 <file.txt>");
+            System.err.println("oppure: java Esercizio2 --conteggio <file.txt> [modulo]");
+            System.err.println("oppure: java Esercizio2 --conteggio-parallelo <file.txt> <thread> [modulo]");
+            System.err.println("oppure: java Esercizio2 --conteggio-righe <file.txt> <thread> [modulo]");
+            System.err.println("oppure: java Esercizio2 --lotto <file.txt> <thread> [capacità cache]");
+            System.err.println("oppure: java Esercizio2 --benchmark-conteggio <caratteri> <seme>");
+            System.err.println("oppure: java Esercizio2 --benchmark-decodificatore <codici> <distinti> <seme>");
+            System.err.println("oppure: java Esercizio2 --benchmark-parallelo <caratteri> <seme>");
+            System.err.println("oppure: java Esercizio2 --benchmark-automa <caratteri> <seme>");
+            System.err.println("oppure: java Esercizio2 --benchmark-enumerazione <caratteri> <seme>");
+            System.err.println("oppure: java Esercizio2 --pagina <file.txt> <salta> <prendi>");
             return;
         }
 
@@ -103,19 +1726,19 @@ public class Esercizio2 {
             System.out.println(0);
             return;
         }
-        List<String> sequences = getSequences(code);
-
-        //Viene fatto il sorting solo per rispettare l'output della consegna
-        sequences.sort(null);
+        // Le decodifiche escono dal grafo già ordinate, come richiesto dall'output della consegna,
+        // e vengono scritte una alla volta senza tenerle in memoria
+        DecodingDag dag = new DecodingDag(code);
 
-        if (sequences.isEmpty()) {
-            System.out.println("0");
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        String separator = "," + System.lineSeparator();
+        if (dag.count() == 0) {
+            out.write("0" + System.lineSeparator());
         } else {
-            System.out.println(sequences.size() + ",");
-            for (String seq : sequences) {
-                System.out.println(seq + ",");
-            }
+            out.write((dag.count() == Long.MAX_VALUE ? countSequences(code).toString() : Long.toString(dag.count())) + separator);
+            dag.write(out, 0, Long.MAX_VALUE, separator);
         }
+        out.flush();
     }
 
 
@@ -4,64 +4,455 @@ COGNOME: ZANOLLI
 */
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
 
 public class Esercizio3 {
 
     //public static Random random = new Random(1070505);
 
     /*
-     * Implementazione del grafo attraverso lista di adiacenza.
+     * Implementazione del grafo in formato CSR (compressed sparse row).
      * n è il numero di nodi e m è il numero di archi.
+     *
+     * Gli archi uscenti dal nodo u occupano le posizioni [offsets[u], offsets[u+1]) dei due vettori
+     * paralleli targets (nodo di destinazione) e weights (peso dell'arco).
+     * Rispetto a un ArrayList<Edge> per nodo non viene allocato nessun oggetto per arco: tre soli
+     * vettori primitivi contigui, che riducono l'occupazione di memoria, il lavoro del GC e gli
+     * accessi indiretti nel ciclo di rilassamento di dijkstra().
+     *
+     * I tre vettori sono IntBuffer/DoubleBuffer: per un grafo costruito in memoria avvolgono array
+     * (IntBuffer.wrap), per uno snapshot aperto con GraphSnapshot sono viste sul file mappato, così il
+     * grafo non viene copiato nello heap e le pagine restano condivise tra più JVM. Le viste mappate
+     * sono di sola lettura: setWeight() e removeEdge() copiano prima i pesi nello heap.
+     *
+     * Gli archi aggiunti con addEdge() dopo la costruzione vengono accodati in un buffer e fusi
+     * nel CSR (in O(n+m)) alla prima interrogazione successiva.
      */
     public static class Graph {
         public int n;
         public int m;
-        public ArrayList<Edge>[] adjList;
+        public IntBuffer offsets;
+        public IntBuffer targets;
+        public DoubleBuffer weights;
 
+        // CSR degli archi entranti, costruito su richiesta da buildReverse(): gli archi entranti in v
+        // sono in [revOffsets[v], revOffsets[v+1]), revSources è il nodo di partenza e revEdges
+        // l'indice dell'arco nei vettori diretti (così i pesi non vengono duplicati).
+        public int[] revOffsets;
+        public int[] revSources;
+        public int[] revEdges;
+
+        // Coordinate opzionali dei nodi, usate dalle euristiche di A*
+        public double[] x;
+        public double[] y;
+
+        // Modello delle attese agli incroci (null = attesa costante)
+        private WaitSchedule waits;
+
+        // Incrementato ad ogni modifica che può cambiare i cammini minimi (vedi PathCache)
+        private volatile long version;
+
+        // Archi rimossi con removeEdge() ma ancora presenti nel CSR
+        private int removed;
+
+        // Archi aggiunti dopo la costruzione e non ancora fusi nel CSR
+        private int[] pendingSrc;
+        private int[] pendingDst;
+        private double[] pendingWeight;
+        private int pendingCount;
+
+        /*
+         * Crea un grafo di n nodi senza archi; m è solo una stima del numero di archi che
+         * verranno aggiunti con addEdge().
+         */
         public Graph(int n, int m) {
+            this(n, new int[n + 1], new int[0], new double[0]);
+            int capacity = Math.max(m, 4);
+            this.pendingSrc = new int[capacity];
+            this.pendingDst = new int[capacity];
+            this.pendingWeight = new double[capacity];
+        }
+
+        /*
+         * Crea un grafo a partire da array CSR già costruiti (vedi Builder).
+         */
+        public Graph(int n, int[] offsets, int[] targets, double[] weights) {
+            this(n, IntBuffer.wrap(offsets), IntBuffer.wrap(targets), DoubleBuffer.wrap(weights));
+        }
+
+        /*
+         * Crea un grafo a partire da vettori CSR qualsiasi, per esempio viste su un file mappato
+         * (vedi GraphSnapshot); indici assoluti a partire da 0.
+         */
+        public Graph(int n, IntBuffer offsets, IntBuffer targets, DoubleBuffer weights) {
             this.n = n;
-            this.m = m;
-            this.adjList = new ArrayList[n];
-            for (int i = 0; i < n; i++) {
-                adjList[i] = new ArrayList<>();
-            }
+            this.m = offsets.get(n);
+            this.offsets = offsets;
+            this.targets = targets;
+            this.weights = weights;
+            this.pendingSrc = new int[0];
+            this.pendingDst = new int[0];
+            this.pendingWeight = new double[0];
         }
 
         /*
-         * Edge rappresenta un arco orientato con peso > 0.
+         * Builder che raccoglie gli archi in tre array primitivi e costruisce il CSR in un'unica
+         * passata di counting sort sui nodi sorgente: O(n+m) tempo, nessun oggetto per arco.
+         * L'ordine relativo degli archi uscenti da uno stesso nodo è quello di inserimento.
          */
-        public class Edge {
-            public int src;
-            public int dst;
-            public double weight;
+        public static class Builder {
+            private final int n;
+            private int[] src;
+            private int[] dst;
+            private double[] weight;
+            private int count;
+
+            public Builder(int n, int expectedEdges) {
+                this.n = n;
+                int capacity = Math.max(expectedEdges, 4);
+                this.src = new int[capacity];
+                this.dst = new int[capacity];
+                this.weight = new double[capacity];
+            }
+
+            public Builder addEdge(int src, int dst, double weight) {
+                if (src < 0 || src >= n || dst < 0 || dst >= n) {
+                    throw new IllegalArgumentException("Arco (" + src + ", " + dst + ") fuori dall'intervallo [0, " + n + ")");
+                }
+                if (count == this.src.length) {
+                    int capacity = count + (count >> 1) + 1;
+                    this.src = Arrays.copyOf(this.src, capacity);
+                    this.dst = Arrays.copyOf(this.dst, capacity);
+                    this.weight = Arrays.copyOf(this.weight, capacity);
+                }
+                this.src[count] = src;
+                this.dst[count] = dst;
+                this.weight[count] = weight;
+                count++;
+                return this;
+            }
+
+            public Graph build() {
+                int[] offsets = new int[n + 1];
+                int[] targets = new int[count];
+                double[] weights = new double[count];
+                fillCsr(n, src, dst, weight, count, offsets, targets, weights);
+                return new Graph(n, offsets, targets, weights);
+            }
+        }
 
-            public Edge(int src, int dst, double weight) {
-                this.src = src;
-                this.dst = dst;
-                this.weight = weight;
+        /*
+         * Counting sort degli archi (src[i], dst[i], weight[i]) per nodo sorgente negli array CSR.
+         */
+        private static void fillCsr(int n, int[] src, int[] dst, double[] weight, int count,
+                                    int[] offsets, int[] targets, double[] weights) {
+            for (int i = 0; i < count; i++) {
+                offsets[src[i] + 1]++;
+            }
+            for (int u = 0; u < n; u++) {
+                offsets[u + 1] += offsets[u];
+            }
+            int[] next = Arrays.copyOf(offsets, n);
+            for (int i = 0; i < count; i++) {
+                int e = next[src[i]]++;
+                targets[e] = dst[i];
+                weights[e] = weight[i];
             }
         }
 
         /*
-         * Metodo che aggiunge un arco alla lista di adiacenza del grafo.
+         * Metodo che aggiunge un arco al grafo.
+         * L'arco viene accodato e reso visibile nel CSR alla prossima chiamata di compact().
          */
         public void addEdge(int src, int dst, double weight) {
-            adjList[src].add(new Edge(src, dst, weight));
+            if (src < 0 || src >= n || dst < 0 || dst >= n) {
+                throw new IllegalArgumentException("Arco (" + src + ", " + dst + ") fuori dall'intervallo [0, " + n + ")");
+            }
+            if (pendingCount == pendingSrc.length) {
+                int capacity = pendingCount + (pendingCount >> 1) + 4;
+                pendingSrc = Arrays.copyOf(pendingSrc, capacity);
+                pendingDst = Arrays.copyOf(pendingDst, capacity);
+                pendingWeight = Arrays.copyOf(pendingWeight, capacity);
+            }
+            pendingSrc[pendingCount] = src;
+            pendingDst[pendingCount] = dst;
+            pendingWeight[pendingCount] = weight;
+            pendingCount++;
+            m++;
+            version++;
+        }
+
+        /*
+         * Indice nel CSR del primo arco src -> dst non rimosso, -1 se non esiste.
+         * Gli indici restano validi fino alla successiva compact() che fonde archi nuovi.
+         */
+        public int findEdge(int src, int dst) {
+            compact();
+            for (int e = offsets.get(src); e < offsets.get(src + 1); e++) {
+                if (targets.get(e) == dst && weights.get(e) != Double.POSITIVE_INFINITY) {
+                    return e;
+                }
+            }
+            return -1;
+        }
+
+        /*
+         * Cambia il peso di un arco in O(1), direttamente nel CSR (e quindi anche nel CSR inverso,
+         * che punta agli stessi pesi).
+         */
+        public void setWeight(int edge, double weight) {
+            if (!(weight > 0)) {
+                throw new IllegalArgumentException("Il peso deve essere positivo: " + weight);
+            }
+            writableWeights().put(edge, weight);
+            version++;
+        }
+
+        /*
+         * Rimuove un arco in O(1) impostandone il peso a infinito: nessun rilassamento può più usarlo.
+         * Lo spazio viene recuperato alla successiva compact() che fonde archi nuovi, oppure da purge().
+         */
+        public void removeEdge(int edge) {
+            if (weights.get(edge) != Double.POSITIVE_INFINITY) {
+                removed++;
+            }
+            writableWeights().put(edge, Double.POSITIVE_INFINITY);
+            version++;
+        }
+
+        /*
+         * Archi rimossi ancora presenti nel CSR (e contati in m).
+         */
+        public int removedEdges() {
+            return removed;
+        }
+
+        /*
+         * I pesi, copiati nello heap se erano una vista di sola lettura su uno snapshot mappato.
+         */
+        private DoubleBuffer writableWeights() {
+            if (weights.isReadOnly()) {
+                double[] copy = new double[weights.capacity()];
+                weights.get(0, copy);
+                weights = DoubleBuffer.wrap(copy);
+            }
+            return weights;
+        }
+
+        /*
+         * Versione del grafo: cambia ogni volta che archi o attese vengono modificati.
+         */
+        public long version() {
+            return version;
+        }
+
+        /*
+         * Fonde gli archi in attesa nel CSR. Costa O(n+m) ma solo se ci sono archi nuovi,
+         * quindi più addEdge() consecutivi pagano una sola ricostruzione.
+         * Gli archi rimossi con removeEdge() vengono eliminati definitivamente in questa occasione.
+         */
+        public void compact() {
+            if (pendingCount == 0) {
+                return;
+            }
+            rebuild();
+        }
+
+        /*
+         * Come compact(), ma ricostruisce il CSR anche se ci sono solo archi rimossi da eliminare.
+         */
+        public void purge() {
+            if (pendingCount == 0 && removed == 0) {
+                return;
+            }
+            rebuild();
+        }
+
+        private void rebuild() {
+            int oldEdges = offsets.get(n);
+            int total = oldEdges + pendingCount;
+            int[] src = new int[total];
+            int[] dst = new int[total];
+            double[] weight = new double[total];
+            for (int u = 0; u < n; u++) {
+                for (int e = offsets.get(u); e < offsets.get(u + 1); e++) {
+                    src[e] = u;
+                }
+            }
+            targets.get(0, dst, 0, oldEdges);
+            weights.get(0, weight, 0, oldEdges);
+            System.arraycopy(pendingSrc, 0, src, oldEdges, pendingCount);
+            System.arraycopy(pendingDst, 0, dst, oldEdges, pendingCount);
+            System.arraycopy(pendingWeight, 0, weight, oldEdges, pendingCount);
+
+            int live = 0;
+            for (int i = 0; i < total; i++) {
+                if (weight[i] != Double.POSITIVE_INFINITY) {
+                    src[live] = src[i];
+                    dst[live] = dst[i];
+                    weight[live] = weight[i];
+                    live++;
+                }
+            }
+
+            int[] newOffsets = new int[n + 1];
+            int[] newTargets = new int[live];
+            double[] newWeights = new double[live];
+            fillCsr(n, src, dst, weight, live, newOffsets, newTargets, newWeights);
+            m = live;
+            offsets = IntBuffer.wrap(newOffsets);
+            targets = IntBuffer.wrap(newTargets);
+            weights = DoubleBuffer.wrap(newWeights);
+            pendingSrc = new int[0];
+            pendingDst = new int[0];
+            pendingWeight = new double[0];
+            pendingCount = 0;
+            removed = 0;
+            revOffsets = null;
+            revSources = null;
+            revEdges = null;
+        }
+
+        /*
+         * Costruisce (se non già presente) il CSR degli archi entranti, richiesto dalla ricerca
+         * bidirezionale. Costo O(n+m) con counting sort sui nodi di destinazione.
+         */
+        public void buildReverse() {
+            compact();
+            if (revOffsets != null) {
+                return;
+            }
+            int[] offs = new int[n + 1];
+            int[] sources = new int[m];
+            int[] edges = new int[m];
+            for (int e = 0; e < m; e++) {
+                offs[targets.get(e) + 1]++;
+            }
+            for (int v = 0; v < n; v++) {
+                offs[v + 1] += offs[v];
+            }
+            int[] next = Arrays.copyOf(offs, n);
+            for (int u = 0; u < n; u++) {
+                for (int e = offsets.get(u); e < offsets.get(u + 1); e++) {
+                    int i = next[targets.get(e)]++;
+                    sources[i] = u;
+                    edges[i] = e;
+                }
+            }
+            revSources = sources;
+            revEdges = edges;
+            revOffsets = offs;
+        }
+
+        /*
+         * Associa ad ogni nodo le coordinate (x[i], y[i]) per le euristiche geometriche di A*.
+         */
+        public void setCoordinates(double[] x, double[] y) {
+            if (x.length != n || y.length != n) {
+                throw new IllegalArgumentException("Servono esattamente " + n + " coordinate");
+            }
+            this.x = x;
+            this.y = y;
+        }
+
+        /*
+         * Euristica euclidea: distanza in linea d'aria moltiplicata per il costo minimo per unità
+         * di distanza. E' ammissibile se ogni arco (u, v) pesa almeno costPerUnit * |uv|
+         * (l'attesa agli incroci è non negativa e può solo aumentare il costo reale).
+         */
+        public Heuristic euclideanHeuristic(double costPerUnit) {
+            if (x == null) {
+                throw new IllegalStateException("Coordinate dei nodi non impostate");
+            }
+            double[] cx = x;
+            double[] cy = y;
+            return (node, target) -> Math.hypot(cx[node] - cx[target], cy[node] - cy[target]) * costPerUnit;
+        }
+
+        /*
+         * Stima dell'occupazione di memoria (in byte, JVM a 64 bit con compressed oops) del CSR
+         * confrontata con la vecchia rappresentazione ArrayList<Edge>[] con lo stesso n e m.
+         *
+         * Vecchio layout: per ogni nodo un ArrayList (24 B) con il suo Object[] (16 B + 4 B per
+         * riferimento, capacità minima 10 una volta inserito un elemento); per ogni arco un Edge
+         * (header 12 B + src 4 + dst 4 + weight 8 + riferimento alla classe esterna 4 = 32 B).
+         */
+        public String memoryReport() {
+            compact();
+            long csr = arrayBytes(4, n + 1) + arrayBytes(4, m) + arrayBytes(8, m);
+
+            long legacy = arrayBytes(4, n);
+            for (int u = 0; u < n; u++) {
+                int degree = offsets.get(u + 1) - offsets.get(u);
+                int capacity = degree == 0 ? 0 : Math.max(10, degree);
+                legacy += 24 + arrayBytes(4, capacity) + 32L * degree;
+            }
+
+            return "nodi=" + n + " archi=" + m
+                    + "\nCSR: " + csr + " B (" + String.format("%.1f", (double) csr / Math.max(m, 1)) + " B/arco)"
+                    + "\nArrayList<Edge>[]: " + legacy + " B (" + String.format("%.1f", (double) legacy / Math.max(m, 1)) + " B/arco)"
+                    + "\nRisparmio: " + String.format("%.1f", (double) legacy / Math.max(csr, 1)) + "x";
+        }
+
+        private static long arrayBytes(int elementSize, int length) {
+            return (16L + (long) elementSize * length + 7) & ~7L;
         }
 
         /*
-         * Metodo che restituisce l'attesa ad un incrocio.
+         * Metodo che restituisce l'attesa all'incrocio i per chi vi arriva all'istante t.
+         * Senza un WaitSchedule associato l'attesa è costante (5.0).
          */
         public double attesa(int i, double t) {
-            return 5.0;
+            if (waits == null) {
+                return 5.0;
+            }
+            return waits.wait(i, t);
+        }
+
+        /*
+         * Associa al grafo un modello di attese dipendenti dal tempo (null per tornare all'attesa costante).
+         */
+        public void setWaitSchedule(WaitSchedule waits) {
+            if (waits != null && waits.n != n) {
+                throw new IllegalArgumentException("Il modello di attese è per " + waits.n + " nodi, il grafo ne ha " + n);
+            }
+            this.waits = waits;
+            version++;
+        }
+
+        /*
+         * Vero se attesa() dipende dall'istante di arrivo: in quel caso il costo di un arco non è un
+         * valore fisso e le tecniche che lo precalcolano o lo usano all'indietro (ricerca bidirezionale,
+         * Contraction Hierarchies) non sono applicabili.
+         */
+        public boolean isTimeDependent() {
+            return waits != null;
+        }
 
-        
+        private void requireTimeIndependent(String technique) {
+            if (isTimeDependent()) {
+                throw new IllegalStateException(technique + " richiede attese indipendenti dall'istante di arrivo");
+            }
         }
 
         /*
          * Metodo che implementa una variante dell'algoritmo di Dijkstra per trovare il percorso più breve da 0 a n-1.
-         * Durante il calcolo della distanza aggiunge il risultato dell'invocazione del metodo attesa().
+         * Durante il calcolo della distanza aggiunge il risultato dell'invocazione del metodo attesa()
+         * valutato all'istante di arrivo nel nodo (partenza + dist[u]): dist[] contiene quindi i tempi
+         * di arrivo più rapidi relativi alla partenza. Con attese FIFO (chi arriva prima non riparte
+         * dopo, vedi WaitSchedule) Dijkstra resta corretto anche con attese dipendenti dal tempo.
          * 
          * E' stato scelto questo algoritmo per la sua efficienza nel trovare il cammino di costo minimo e
          * perchè la consegna stabilisce che tutti i pesi (tempo di attraversamento) sono positivi (permettendone
@@ -70,14 +461,70 @@ public class Esercizio3 {
          * L'algoritmo di Dijkstra (se implementato con heap) ha un costo di O( (n+m)*log(n) ) con n = numero nodi
          * e m = numero archi.
          *
-         * E' stata utilizzata la classe PriorityQueue implementata nella JDK (nella documentazione viene detto
-         * che è implementata mediante minheap).
-         *
-         * Il Comparator permette alla PriorityQueue di associare agli interi simboleggianti i nodi le distanze
-         * da usare per il confronto (come priority).
+         * E' stata utilizzata una coda di priorità indicizzata (IndexedMinHeap) con decrease-key:
+         * ogni nodo compare al massimo una volta nella coda, che quindi non supera mai n elementi,
+         * e non viene allocato nessun oggetto durante la visita.
          */
         public void dijkstra(double[] dist, int[] pred, int start) {
+            dijkstra(dist, pred, start, 0, new IndexedMinHeap(n, IndexedMinHeap.DEFAULT_ARITY));
+        }
+
+        /*
+         * Come dijkstra(dist, pred, start) ma usa la coda passata, che può essere riutilizzata
+         * tra più interrogazioni (deve avere capacità >= n; viene svuotata all'inizio).
+         */
+        public void dijkstra(double[] dist, int[] pred, int start, IndexedMinHeap pq) {
+            dijkstra(dist, pred, start, 0, pq);
+        }
+
+        /*
+         * Come dijkstra(dist, pred, start, pq) partendo da start all'istante departure.
+         */
+        public void dijkstra(double[] dist, int[] pred, int start, double departure, IndexedMinHeap pq) {
+
+            compact();
+            Arrays.fill(dist, Double.POSITIVE_INFINITY);
+            Arrays.fill(pred, -1);
+            dist[start] = 0;
+
+            pq.clear();
+            pq.push(start, 0);
+
+            while (!pq.isEmpty()) {
+                int u = pq.poll();
+
+                // Se abbiamo raggiunto il nodo n-1, possiamo terminare l'algoritmo --> non serve
+                // visitare tutti gli archi, la prima estrazione del nodo n-1 indicherà che siamo
+                // già in possesso del cammino di costo minimo.
+
+                if (u == n - 1) {
+                    break;
+                }
 
+
+                for (int e = offsets.get(u); e < offsets.get(u + 1); e++) {
+                    int v = targets.get(e);
+                    double weight = weights.get(e);
+                    double wait = attesa(u, departure + dist[u]);
+
+                    //Considero l'attesa nel controllo della distanza
+                    if (dist[u] + weight + wait < dist[v]) {
+                        dist[v] = dist[u] + weight + wait;
+                        pred[v] = u;
+                        pq.pushOrDecrease(v, dist[v]);
+                    }
+                }
+            }
+        }
+
+        /*
+         * Versione precedente di dijkstra() con PriorityQueue<Integer> e inserimenti duplicati,
+         * mantenuta solo come termine di confronto per benchmarkQueues().
+         * Restituisce il numero di inserimenti effettuati nella coda.
+         */
+        long dijkstraPriorityQueue(double[] dist, int[] pred, int start) {
+
+            compact();
             Arrays.fill(dist, Double.POSITIVE_INFINITY);
             Arrays.fill(pred, -1);
             dist[start] = 0;
@@ -91,32 +538,223 @@ public class Esercizio3 {
             });
 
             pq.add(start);
+            long pushes = 1;
 
             while (!pq.isEmpty()) {
                 int u = pq.poll();
+                if (u == n - 1) {
+                    break;
+                }
+                for (int e = offsets.get(u); e < offsets.get(u + 1); e++) {
+                    int v = targets.get(e);
+                    double weight = weights.get(e);
+                    double wait = attesa(u, dist[u]);
+                    if (dist[u] + weight + wait < dist[v]) {
+                        dist[v] = dist[u] + weight + wait;
+                        pred[v] = u;
+                        pq.add(v);
+                        pushes++;
+                    }
+                }
+            }
+            return pushes;
+        }
 
-                // Se abbiamo raggiunto il nodo n-1, possiamo terminare l'algoritmo --> non serve
-                // visitare tutti gli archi, la prima occorrenza del nodo n-1 indicherà che siamo
-                // già in possesso del cammino di costo minimo.
+        /*
+         * Cammino minimo da source a target usando i buffer di lavoro di scratch, che vengono
+         * riportati allo stato iniziale in O(nodi toccati) invece che con Arrays.fill su tutti gli n.
+         * Restituisce la distanza (infinito se target non è raggiungibile); il cammino si ricava
+         * poi con scratch.path(target). Più thread possono interrogare lo stesso grafo in parallelo
+         * purché ognuno usi il proprio scratch e il grafo non venga modificato nel frattempo.
+         */
+        public double shortestPath(int source, int target, SearchScratch scratch) {
+            return shortestPath(source, target, 0, scratch, SearchMode.DIJKSTRA, Heuristic.ZERO);
+        }
 
-                if (u == n - 1) {
+        public double shortestPath(int source, int target, SearchScratch scratch, SearchMode mode, Heuristic heuristic) {
+            return shortestPath(source, target, 0, scratch, mode, heuristic);
+        }
+
+        /*
+         * Cammino minimo da source a target partendo all'istante departure, con la modalità di ricerca
+         * scelta (vedi SearchMode). heuristic viene usata solo da ASTAR. In tutte le modalità
+         * l'attraversamento di un arco (u, v) costa weight + attesa(u, istante di arrivo in u);
+         * scratch.settled riporta i nodi estratti dalle code. BIDIRECTIONAL richiede attese
+         * indipendenti dal tempo.
+         */
+        public double shortestPath(int source, int target, double departure, SearchScratch scratch,
+                                   SearchMode mode, Heuristic heuristic) {
+            compact();
+            scratch.reset();
+            switch (mode) {
+                case BIDIRECTIONAL:
+                    return bidirectional(source, target, scratch);
+                case ASTAR:
+                    return astar(source, target, departure, scratch, heuristic);
+                default:
+                    return forwardDijkstra(source, target, departure, scratch);
+            }
+        }
+
+        private double forwardDijkstra(int source, int target, double departure, SearchScratch scratch) {
+            double[] dist = scratch.dist;
+            int[] pred = scratch.pred;
+            IndexedMinHeap pq = scratch.heap;
+
+            scratch.touch(source);
+            dist[source] = 0;
+            pq.push(source, 0);
+
+            while (!pq.isEmpty()) {
+                int u = pq.poll();
+                scratch.settled++;
+                if (u == target) {
                     break;
                 }
+                for (int e = offsets.get(u); e < offsets.get(u + 1); e++) {
+                    int v = targets.get(e);
+                    double weight = weights.get(e);
+                    double wait = attesa(u, departure + dist[u]);
+                    double candidate = dist[u] + weight + wait;
+                    if (candidate < dist[v]) {
+                        if (dist[v] == Double.POSITIVE_INFINITY) {
+                            scratch.touch(v);
+                        }
+                        dist[v] = candidate;
+                        pred[v] = u;
+                        pq.pushOrDecrease(v, candidate);
+                    }
+                }
+            }
+            return dist[target];
+        }
 
+        /*
+         * A*: la coda è ordinata per dist[v] + heuristic(v, target). Con un'euristica ammissibile il
+         * primo arrivo di target è ottimo; se l'euristica non è consistente un nodo già estratto può
+         * essere reinserito quando si trova un cammino migliore (pos[] torna a -1 dopo poll()).
+         */
+        private double astar(int source, int target, double departure, SearchScratch scratch, Heuristic heuristic) {
+            double[] dist = scratch.dist;
+            int[] pred = scratch.pred;
+            IndexedMinHeap pq = scratch.heap;
 
-                for (Edge edge : adjList[u]) {
-                    int v = edge.dst;
-                    double weight = edge.weight;
-                    double wait = attesa(u, weight);
+            scratch.touch(source);
+            dist[source] = 0;
+            pq.push(source, heuristic.estimate(source, target));
 
-                    //Considero l'attesa nel controllo della distanza
-                    if (dist[u] + weight + wait < dist[v]) {
-                        dist[v] = dist[u] + weight + wait;
+            while (!pq.isEmpty()) {
+                int u = pq.poll();
+                scratch.settled++;
+                if (u == target) {
+                    break;
+                }
+                for (int e = offsets.get(u); e < offsets.get(u + 1); e++) {
+                    int v = targets.get(e);
+                    double weight = weights.get(e);
+                    double candidate = dist[u] + weight + attesa(u, departure + dist[u]);
+                    if (candidate < dist[v]) {
+                        if (dist[v] == Double.POSITIVE_INFINITY) {
+                            scratch.touch(v);
+                        }
+                        dist[v] = candidate;
                         pred[v] = u;
-                        pq.add(v);
+                        pq.pushOrDecrease(v, candidate + heuristic.estimate(v, target));
+                    }
+                }
+            }
+            return dist[target];
+        }
+
+        /*
+         * Dijkstra bidirezionale: una ricerca in avanti da source sul CSR diretto e una all'indietro
+         * da target sul CSR inverso, avanzando ogni volta quella con la chiave minima in cima.
+         *
+         * best è il costo del miglior cammino visto finora (aggiornato quando un nodo ha distanza finita
+         * in entrambe le ricerche). Ci si ferma quando topAvanti + topIndietro >= best: nessun cammino
+         * non ancora visto può essere più corto. Il costo all'indietro di (u, v) è lo stesso weight +
+         * attesa(u, 0) della ricerca in avanti: all'indietro l'istante di arrivo non è noto, quindi la
+         * modalità è disponibile solo con attese indipendenti dal tempo.
+         *
+         * Alla fine la catena all'indietro dal nodo d'incontro a target viene copiata in pred[] della
+         * ricerca in avanti, così scratch.path(target) funziona come nelle altre modalità.
+         */
+        private double bidirectional(int source, int target, SearchScratch forward) {
+            requireTimeIndependent("La ricerca bidirezionale");
+            buildReverse();
+            SearchScratch backward = forward.backward();
+
+            forward.touch(source);
+            forward.dist[source] = 0;
+            forward.heap.push(source, 0);
+            backward.touch(target);
+            backward.dist[target] = 0;
+            backward.heap.push(target, 0);
+
+            double best = source == target ? 0 : Double.POSITIVE_INFINITY;
+            int meeting = source == target ? source : -1;
+
+            while (!forward.heap.isEmpty() && !backward.heap.isEmpty()
+                    && forward.heap.peekKey() + backward.heap.peekKey() < best) {
+
+                if (forward.heap.peekKey() <= backward.heap.peekKey()) {
+                    int u = forward.heap.poll();
+                    forward.settled++;
+                    for (int e = offsets.get(u); e < offsets.get(u + 1); e++) {
+                        int v = targets.get(e);
+                        double weight = weights.get(e);
+                        double candidate = forward.dist[u] + weight + attesa(u, 0);
+                        if (candidate < forward.dist[v]) {
+                            if (forward.dist[v] == Double.POSITIVE_INFINITY) {
+                                forward.touch(v);
+                            }
+                            forward.dist[v] = candidate;
+                            forward.pred[v] = u;
+                            forward.heap.pushOrDecrease(v, candidate);
+                        }
+                        if (forward.dist[v] + backward.dist[v] < best) {
+                            best = forward.dist[v] + backward.dist[v];
+                            meeting = v;
+                        }
                     }
+                } else {
+                    int v = backward.heap.poll();
+                    backward.settled++;
+                    for (int i = revOffsets[v]; i < revOffsets[v + 1]; i++) {
+                        int u = revSources[i];
+                        double weight = weights.get(revEdges[i]);
+                        double candidate = backward.dist[v] + weight + attesa(u, 0);
+                        if (candidate < backward.dist[u]) {
+                            if (backward.dist[u] == Double.POSITIVE_INFINITY) {
+                                backward.touch(u);
+                            }
+                            backward.dist[u] = candidate;
+                            backward.pred[u] = v;
+                            backward.heap.pushOrDecrease(u, candidate);
+                        }
+                        if (forward.dist[u] + backward.dist[u] < best) {
+                            best = forward.dist[u] + backward.dist[u];
+                            meeting = u;
+                        }
+                    }
+                }
+            }
+            forward.settled += backward.settled;
+
+            if (meeting == -1) {
+                return Double.POSITIVE_INFINITY;
+            }
+            // Ricongiungo i due semialberi: meeting -> ... -> target diventa parte di pred[]
+            for (int u = meeting; u != target; ) {
+                int v = backward.pred[u];
+                if (forward.dist[v] == Double.POSITIVE_INFINITY) {
+                    forward.touch(v);
                 }
+                forward.dist[v] = best - backward.dist[v];
+                forward.pred[v] = u;
+                u = v;
             }
+            return best;
         }
 
         /*
@@ -150,31 +788,2866 @@ public class Esercizio3 {
     }
 
     /*
-     * Legge il grafo dal file di input e restituisce un oggetto Graph.
+     * Modello delle attese agli incroci dipendenti dall'istante di arrivo.
+     *
+     * Ogni nodo può avere:
+     *  - nessun programma: attesa costante defaultWait;
+     *  - un semaforo (ciclo, durata del verde, sfasamento): chi arriva col verde non aspetta,
+     *    chi arriva col rosso aspetta l'inizio del ciclo successivo. Lookup O(1);
+     *  - una funzione lineare a tratti periodica, data dai punti (t_k, attesa_k) con 0 <= t_0 < ... < t_(k-1)
+     *    < periodo e interpolata linearmente (anche tra l'ultimo punto e il primo del periodo successivo).
+     *    Lookup O(log k) con ricerca binaria.
+     *
+     * I parametri di tutti i nodi stanno in un unico double[] (data) a cui si accede tramite first[]:
+     * il lookup non alloca nulla. Tutte le funzioni devono essere FIFO, cioè t + attesa(t) non deve
+     * diminuire al crescere di t (pendenza >= -1), altrimenti Dijkstra non sarebbe più corretto:
+     * i semafori lo sono sempre, le funzioni lineari a tratti vengono controllate all'inserimento.
      */
-    public static Graph readGraph(String fileName) throws FileNotFoundException {
-        Locale.setDefault(Locale.US);
-        Scanner scanner = new Scanner(new File(fileName));
-        int n = scanner.nextInt();
-        int m = scanner.nextInt();
+    public static class WaitSchedule {
+        private static final byte CONSTANT = 0;
+        private static final byte TRAFFIC_LIGHT = 1;
+        private static final byte PIECEWISE_LINEAR = 2;
 
-        Graph graph = new Graph(n, m);
-        // Aggiunge archi al grafo man mano che vengono letti
-        for (int i = 0; i < m; i++) {
-            int src = scanner.nextInt();
-            int dst = scanner.nextInt();
-            double weight = scanner.nextDouble();
-            graph.addEdge(src, dst, weight);
+        public final int n;
+        public final double defaultWait;
+        private final byte[] kind;
+        private final int[] first;
+        private double[] data;
+        private int size;
+
+        public WaitSchedule(int n, double defaultWait) {
+            this.n = n;
+            this.defaultWait = defaultWait;
+            this.kind = new byte[n];
+            this.first = new int[n];
+            this.data = new double[16];
         }
 
-        scanner.close();
-        return graph;
-    }
+        /*
+         * Semaforo al nodo: verde in [offset + k*cycle, offset + k*cycle + green), rosso nel resto del ciclo.
+         */
+        public void setTrafficLight(int node, double cycle, double green, double offset) {
+            if (cycle <= 0 || green < 0 || green > cycle) {
+                throw new IllegalArgumentException("Semaforo non valido al nodo " + node);
+            }
+            first[node] = append(cycle, green, offset);
+            kind[node] = TRAFFIC_LIGHT;
+        }
+
+        /*
+         * Funzione lineare a tratti con periodo period e punti (times[k], waits[k]).
+         */
+        public void setPiecewiseLinear(int node, double period, double[] times, double[] waits) {
+            int k = times.length;
+            if (k == 0 || waits.length != k || period <= 0) {
+                throw new IllegalArgumentException("Funzione di attesa non valida al nodo " + node);
+            }
+            for (int i = 0; i < k; i++) {
+                if (times[i] < 0 || times[i] >= period || (i > 0 && times[i] <= times[i - 1]) || waits[i] < 0) {
+                    throw new IllegalArgumentException("Punti della funzione di attesa non validi al nodo " + node);
+                }
+                // Pendenza del tratto che termina nel punto successivo (l'ultimo si chiude sul primo + periodo)
+                double nextTime = i + 1 < k ? times[i + 1] : times[0] + period;
+                double nextWait = i + 1 < k ? waits[i + 1] : waits[0];
+                if (k > 1 && (nextWait - waits[i]) / (nextTime - times[i]) < -1) {
+                    throw new IllegalArgumentException("Funzione di attesa non FIFO al nodo " + node + " (pendenza < -1)");
+                }
+            }
+            int start = append(period, k);
+            for (int i = 0; i < k; i++) {
+                append(times[i]);
+            }
+            for (int i = 0; i < k; i++) {
+                append(waits[i]);
+            }
+            first[node] = start;
+            kind[node] = PIECEWISE_LINEAR;
+        }
+
+        private int append(double... values) {
+            if (size + values.length > data.length) {
+                data = Arrays.copyOf(data, Math.max(size + values.length, data.length * 2));
+            }
+            int start = size;
+            for (double value : values) {
+                data[size++] = value;
+            }
+            return start;
+        }
 
-    public static void main(String[] args) throws FileNotFoundException {
+        /*
+         * Attesa al nodo per chi arriva all'istante t.
+         */
+        public double wait(int node, double t) {
+            switch (kind[node]) {
+                case TRAFFIC_LIGHT: {
+                    int i = first[node];
+                    double cycle = data[i];
+                    // Math.floor è un intrinseco del JIT, molto più veloce dell'operatore % sui double
+                    double cycles = (t - data[i + 2]) / cycle;
+                    double phase = (cycles - Math.floor(cycles)) * cycle;
+                    return phase < data[i + 1] ? 0 : cycle - phase;
+                }
+                case PIECEWISE_LINEAR: {
+                    int i = first[node];
+                    double period = data[i];
+                    int k = (int) data[i + 1];
+                    int times = i + 2;
+                    int waits = times + k;
+                    double periods = t / period;
+                    double phase = (periods - Math.floor(periods)) * period;
+                    // Ultimo punto con tempo <= phase (se nessuno, l'ultimo del periodo precedente)
+                    int lo = 0;
+                    int hi = k - 1;
+                    int j = -1;
+                    while (lo <= hi) {
+                        int mid = (lo + hi) >>> 1;
+                        if (data[times + mid] <= phase) {
+                            j = mid;
+                            lo = mid + 1;
+                        } else {
+                            hi = mid - 1;
+                        }
+                    }
+                    double t0;
+                    double w0;
+                    double t1;
+                    double w1;
+                    if (j == -1) {
+                        t0 = data[times + k - 1] - period;
+                        w0 = data[waits + k - 1];
+                        t1 = data[times];
+                        w1 = data[waits];
+                    } else if (j == k - 1) {
+                        t0 = data[times + j];
+                        w0 = data[waits + j];
+                        t1 = data[times] + period;
+                        w1 = data[waits];
+                    } else {
+                        t0 = data[times + j];
+                        w0 = data[waits + j];
+                        t1 = data[times + j + 1];
+                        w1 = data[waits + j + 1];
+                    }
+                    return t1 == t0 ? w0 : w0 + (w1 - w0) * (phase - t0) / (t1 - t0);
+                }
+                default:
+                    return defaultWait;
+            }
+        }
+
+        /*
+         * Legge il modello da un file di testo:
+         *   <attesa predefinita> <numero di righe>
+         *   <nodo> 1 <ciclo> <verde> <sfasamento>                   (semaforo)
+         *   <nodo> 2 <periodo> <k> <t_1> <a_1> ... <t_k> <a_k>      (lineare a tratti)
+         */
+        public static WaitSchedule read(String fileName, int n) throws IOException {
+            try (NumberReader reader = new NumberReader(fileName)) {
+                WaitSchedule schedule = new WaitSchedule(n, reader.nextDouble());
+                int rows = reader.nextInt();
+                for (int r = 0; r < rows; r++) {
+                    int node = reader.nextInt();
+                    int type = reader.nextInt();
+                    if (type == TRAFFIC_LIGHT) {
+                        schedule.setTrafficLight(node, reader.nextDouble(), reader.nextDouble(), reader.nextDouble());
+                    } else if (type == PIECEWISE_LINEAR) {
+                        double period = reader.nextDouble();
+                        int k = reader.nextInt();
+                        double[] times = new double[k];
+                        double[] waits = new double[k];
+                        for (int i = 0; i < k; i++) {
+                            times[i] = reader.nextDouble();
+                            waits[i] = reader.nextDouble();
+                        }
+                        schedule.setPiecewiseLinear(node, period, times, waits);
+                    } else {
+                        throw new IOException(fileName + ": tipo di attesa sconosciuto " + type + " al nodo " + node);
+                    }
+                }
+                return schedule;
+            }
+        }
+    }
+
+    /*
+     * Micro-benchmark del lookup delle attese: dopo una fase di riscaldamento misura il tempo medio di
+     * graph.attesa(nodo, t) su nodi e istanti pseudo-casuali precalcolati. La somma dei risultati
+     * viene stampata per impedire al JIT di eliminare le chiamate.
+     */
+    public static void benchmarkWaits(Graph graph, int iterations) {
+        int samples = 1 << 16;
+        int[] nodes = new int[samples];
+        double[] times = new double[samples];
+        Random random = new Random(1070505);
+        for (int i = 0; i < samples; i++) {
+            nodes[i] = random.nextInt(graph.n);
+            times[i] = random.nextDouble() * 3600;
+        }
+        double sink = 0;
+        for (int round = 0; round < 5; round++) {
+            long t0 = System.nanoTime();
+            for (int it = 0; it < iterations; it++) {
+                int i = it & (samples - 1);
+                sink += graph.attesa(nodes[i], times[i]);
+            }
+            double ns = (double) (System.nanoTime() - t0) / iterations;
+            System.out.printf("%s giro %d: %.2f ns/lookup%n", round < 2 ? "riscaldamento" : "misura", round, ns);
+        }
+        System.out.println("(controllo: " + sink + ")");
+    }
+
+    /*
+     * Min-heap d-ario indicizzato sugli id dei nodi (0..capacity-1) con priorità double.
+     *
+     * heap[] contiene i nodi in ordine di heap, pos[v] è la posizione di v in heap[] (-1 se v non è
+     * nella coda) e key[v] la sua priorità. Grazie a pos[] decreaseKey() aggiorna l'elemento in
+     * posizione invece di inserire un duplicato, quindi la coda contiene al più capacity elementi.
+     *
+     * Con arietà d l'altezza è log_d(n): push e decreaseKey costano O(log_d n) confronti, poll
+     * O(d*log_d n). Con d = 4 o 8 i figli di un nodo stanno nella stessa linea di cache.
+     * Nessuna operazione alloca memoria.
+     */
+    public static class IndexedMinHeap {
+        public static final int DEFAULT_ARITY = 4;
+
+        private final int arity;
+        private final int[] heap;
+        private final int[] pos;
+        private final double[] key;
+        private int size;
+
+        // Contatori delle operazioni eseguite dall'ultima resetCounters()
+        public long pushes;
+        public long pops;
+        public long decreaseKeys;
+        public int maxSize;
+
+        public IndexedMinHeap(int capacity, int arity) {
+            if (arity != 2 && arity != 4 && arity != 8) {
+                throw new IllegalArgumentException("Arietà non supportata: " + arity + " (ammesse 2, 4, 8)");
+            }
+            this.arity = arity;
+            this.heap = new int[capacity];
+            this.pos = new int[capacity];
+            this.key = new double[capacity];
+            Arrays.fill(pos, -1);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public boolean contains(int node) {
+            return pos[node] >= 0;
+        }
+
+        public double peekKey() {
+            return key[heap[0]];
+        }
+
+        public int peek() {
+            return heap[0];
+        }
+
+        /*
+         * Inserisce node con priorità k; il nodo non deve essere già presente.
+         */
+        public void push(int node, double k) {
+            key[node] = k;
+            heap[size] = node;
+            pos[node] = size;
+            size++;
+            pushes++;
+            if (size > maxSize) {
+                maxSize = size;
+            }
+            siftUp(size - 1);
+        }
+
+        /*
+         * Abbassa la priorità di un nodo già presente; k deve essere <= della priorità attuale.
+         */
+        public void decreaseKey(int node, double k) {
+            key[node] = k;
+            decreaseKeys++;
+            siftUp(pos[node]);
+        }
+
+        /*
+         * Inserisce node se assente, altrimenti ne abbassa la priorità.
+         */
+        public void pushOrDecrease(int node, double k) {
+            if (pos[node] >= 0) {
+                decreaseKey(node, k);
+            } else {
+                push(node, k);
+            }
+        }
+
+        /*
+         * Estrae e restituisce il nodo con priorità minima.
+         */
+        public int poll() {
+            int top = heap[0];
+            pos[top] = -1;
+            size--;
+            pops++;
+            if (size > 0) {
+                int last = heap[size];
+                heap[0] = last;
+                pos[last] = 0;
+                siftDown(0);
+            }
+            return top;
+        }
+
+        /*
+         * Svuota la coda in O(size) azzerando solo le posizioni dei nodi ancora presenti.
+         */
+        public void clear() {
+            for (int i = 0; i < size; i++) {
+                pos[heap[i]] = -1;
+            }
+            size = 0;
+        }
+
+        public void resetCounters() {
+            pushes = 0;
+            pops = 0;
+            decreaseKeys = 0;
+            maxSize = size;
+        }
+
+        public String statistics() {
+            return "arietà=" + arity + " push=" + pushes + " pop=" + pops
+                    + " decreaseKey=" + decreaseKeys + " dimensioneMassima=" + maxSize;
+        }
+
+        private void siftUp(int i) {
+            int node = heap[i];
+            double k = key[node];
+            while (i > 0) {
+                int parent = (i - 1) / arity;
+                int p = heap[parent];
+                if (key[p] <= k) {
+                    break;
+                }
+                heap[i] = p;
+                pos[p] = i;
+                i = parent;
+            }
+            heap[i] = node;
+            pos[node] = i;
+        }
+
+        private void siftDown(int i) {
+            int node = heap[i];
+            double k = key[node];
+            while (true) {
+                int first = i * arity + 1;
+                if (first >= size) {
+                    break;
+                }
+                int last = Math.min(first + arity, size);
+                int best = first;
+                double bestKey = key[heap[first]];
+                for (int c = first + 1; c < last; c++) {
+                    double ck = key[heap[c]];
+                    if (ck < bestKey) {
+                        best = c;
+                        bestKey = ck;
+                    }
+                }
+                if (bestKey >= k) {
+                    break;
+                }
+                int child = heap[best];
+                heap[i] = child;
+                pos[child] = i;
+                i = best;
+            }
+            heap[i] = node;
+            pos[node] = i;
+        }
+    }
+
+    /*
+     * Confronta la vecchia PriorityQueue<Integer> con IndexedMinHeap di arietà 2, 4 e 8 eseguendo
+     * runs volte dijkstra() dal nodo 0, e stampa tempo medio per interrogazione e contatori della coda.
+     */
+    public static void benchmarkQueues(Graph graph, int runs) {
+        double[] dist = new double[graph.n];
+        int[] pred = new int[graph.n];
+        graph.compact();
+
+        // Riscaldamento del JIT
+        for (int r = 0; r < Math.min(runs, 5); r++) {
+            graph.dijkstraPriorityQueue(dist, pred, 0);
+            graph.dijkstra(dist, pred, 0);
+        }
+
+        long pushes = 0;
+        long t0 = System.nanoTime();
+        for (int r = 0; r < runs; r++) {
+            pushes = graph.dijkstraPriorityQueue(dist, pred, 0);
+        }
+        long elapsed = System.nanoTime() - t0;
+        System.out.printf("PriorityQueue<Integer>: %.3f ms/interrogazione, push=%d%n",
+                elapsed / 1e6 / runs, pushes);
+
+        for (int arity : new int[]{2, 4, 8}) {
+            IndexedMinHeap heap = new IndexedMinHeap(graph.n, arity);
+            t0 = System.nanoTime();
+            for (int r = 0; r < runs; r++) {
+                heap.resetCounters();
+                graph.dijkstra(dist, pred, 0, heap);
+            }
+            elapsed = System.nanoTime() - t0;
+            System.out.printf("IndexedMinHeap: %.3f ms/interrogazione, %s%n",
+                    elapsed / 1e6 / runs, heap.statistics());
+        }
+    }
+
+    /*
+     * Modalità di ricerca punto-punto supportate da Graph.shortestPath().
+     * DIJKSTRA: ricerca in avanti fino all'estrazione di target.
+     * BIDIRECTIONAL: due ricerche, da source e da target sul grafo inverso, che si incontrano a metà.
+     * ASTAR: ricerca in avanti guidata da un'euristica ammissibile (stima per difetto del costo residuo).
+     */
+    public enum SearchMode {
+        DIJKSTRA, BIDIRECTIONAL, ASTAR
+    }
+
+    /*
+     * Stima per difetto del costo minimo da node a target, usata da A*.
+     */
+    public interface Heuristic {
+        Heuristic ZERO = (node, target) -> 0;
+
+        double estimate(int node, int target);
+    }
+
+    /*
+     * Buffer di lavoro riutilizzabili per una singola ricerca di cammino minimo.
+     *
+     * dist[] e pred[] vengono inizializzati una sola volta; ogni ricerca registra in touched[] i nodi
+     * di cui modifica la distanza e reset() ripristina solo quelli, per cui il costo di preparazione
+     * di una interrogazione è proporzionale alla porzione di grafo esplorata e non a n.
+     * Un'istanza non è thread-safe: ogni thread deve usare la propria.
+     */
+    public static class SearchScratch {
+        public final double[] dist;
+        public final int[] pred;
+        public final IndexedMinHeap heap;
+        private int[] touched;
+        private int touchedCount;
+        public long settled;
+        private SearchScratch backward;
+
+        public SearchScratch(int n) {
+            this.dist = new double[n];
+            this.pred = new int[n];
+            this.heap = new IndexedMinHeap(n, IndexedMinHeap.DEFAULT_ARITY);
+            this.touched = new int[Math.min(n, 1024)];
+            Arrays.fill(dist, Double.POSITIVE_INFINITY);
+            Arrays.fill(pred, -1);
+        }
+
+        /*
+         * Registra un nodo la cui distanza sta per passare da infinito a un valore finito.
+         */
+        public void touch(int node) {
+            if (touchedCount == touched.length) {
+                touched = Arrays.copyOf(touched, Math.min(dist.length, touchedCount * 2));
+            }
+            touched[touchedCount++] = node;
+        }
+
+        public void reset() {
+            for (int i = 0; i < touchedCount; i++) {
+                int node = touched[i];
+                dist[node] = Double.POSITIVE_INFINITY;
+                pred[node] = -1;
+            }
+            touchedCount = 0;
+            heap.clear();
+            settled = 0;
+            if (backward != null) {
+                backward.reset();
+            }
+        }
+
+        /*
+         * Buffer della ricerca all'indietro (modalità bidirezionale), creati alla prima richiesta.
+         */
+        public SearchScratch backward() {
+            if (backward == null) {
+                backward = new SearchScratch(dist.length);
+            }
+            return backward;
+        }
+
+        public int touchedCount() {
+            return touchedCount;
+        }
+
+        /*
+         * Ricostruisce il cammino fino a target seguendo pred[], null se target non è stato raggiunto.
+         */
+        public int[] path(int target) {
+            if (dist[target] == Double.POSITIVE_INFINITY) {
+                return null;
+            }
+            int length = 0;
+            for (int i = target; i != -1; i = pred[i]) {
+                length++;
+            }
+            int[] path = new int[length];
+            for (int i = target; i != -1; i = pred[i]) {
+                path[--length] = i;
+            }
+            return path;
+        }
+    }
+
+    /*
+     * Risultato di una interrogazione (source, target): distanza e cammino come array di nodi
+     * (path == null se target non è raggiungibile). index è la posizione della coppia nel lotto.
+     */
+    public static class PathResult {
+        public final int index;
+        public final int source;
+        public final int target;
+        public final double distance;
+        public final int[] path;
+
+        public PathResult(int index, int source, int target, double distance, int[] path) {
+            this.index = index;
+            this.source = source;
+            this.target = target;
+            this.distance = distance;
+            this.path = path;
+        }
+
+        public boolean isReachable() {
+            return path != null;
+        }
+
+        @Override
+        public String toString() {
+            if (path == null) {
+                return source + " -> " + target + ": non raggiungibile";
+            }
+            StringBuilder s = new StringBuilder();
+            s.append(source).append(" -> ").append(target).append(": ").append(distance).append(" [");
+            for (int i = 0; i < path.length; i++) {
+                if (i > 0) {
+                    s.append(' ');
+                }
+                s.append(path[i]);
+            }
+            return s.append(']').toString();
+        }
+    }
+
+    /*
+     * Risolve lotti di interrogazioni (source[i], target[i]) sullo stesso grafo in parallelo
+     * su un ForkJoinPool.
+     *
+     * Il lotto viene diviso ricorsivamente in blocchi (work stealing tra i worker); ogni worker ha un
+     * proprio SearchScratch, creato alla prima interrogazione e poi riutilizzato per tutte le successive.
+     * I risultati vengono consegnati al sink appena calcolati, dal thread che li ha prodotti e quindi
+     * in ordine arbitrario: il sink deve essere thread-safe.
+     * Il grafo non deve essere modificato mentre un lotto è in esecuzione.
+     */
+    public static class BatchRouter implements AutoCloseable {
+        private static final int LEAF_QUERIES = 8;
+
+        private final Graph graph;
+        private final ForkJoinPool pool;
+        private final ThreadLocal<SearchScratch> scratch;
+        private final SearchMode mode;
+        private final Heuristic heuristic;
+
+        public BatchRouter(Graph graph, int parallelism) {
+            this(graph, parallelism, SearchMode.DIJKSTRA, Heuristic.ZERO);
+        }
+
+        public BatchRouter(Graph graph, int parallelism, SearchMode mode, Heuristic heuristic) {
+            this.graph = graph;
+            this.mode = mode;
+            this.heuristic = heuristic;
+            this.pool = new ForkJoinPool(parallelism);
+            this.scratch = ThreadLocal.withInitial(() -> new SearchScratch(graph.n));
+        }
+
+        /*
+         * Esegue tutte le interrogazioni e ritorna quando sono terminate; ogni risultato viene
+         * passato a sink non appena disponibile.
+         */
+        public void solve(int[] sources, int[] targets, Consumer<PathResult> sink) {
+            if (sources.length != targets.length) {
+                throw new IllegalArgumentException("sources e targets devono avere la stessa lunghezza");
+            }
+            // Il CSR (e l'eventuale inverso) va consolidato prima che i worker lo leggano in parallelo
+            graph.compact();
+            if (mode == SearchMode.BIDIRECTIONAL) {
+                graph.buildReverse();
+            }
+            pool.invoke(new QueryTask(sources, targets, 0, sources.length, sink));
+        }
+
+        /*
+         * Come solve() ma raccoglie i risultati in un array nell'ordine delle coppie.
+         */
+        public PathResult[] solveAll(int[] sources, int[] targets) {
+            PathResult[] results = new PathResult[sources.length];
+            solve(sources, targets, result -> results[result.index] = result);
+            return results;
+        }
+
+        private PathResult query(int index, int source, int target) {
+            SearchScratch s = scratch.get();
+            double distance = graph.shortestPath(source, target, s, mode, heuristic);
+            return new PathResult(index, source, target, distance, s.path(target));
+        }
+
+        private class QueryTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final int[] sources;
+            private final int[] targets;
+            private final int from;
+            private final int to;
+            private final Consumer<PathResult> sink;
+
+            QueryTask(int[] sources, int[] targets, int from, int to, Consumer<PathResult> sink) {
+                this.sources = sources;
+                this.targets = targets;
+                this.from = from;
+                this.to = to;
+                this.sink = sink;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= LEAF_QUERIES) {
+                    for (int i = from; i < to; i++) {
+                        sink.accept(query(i, sources[i], targets[i]));
+                    }
+                    return;
+                }
+                int mid = (from + to) >>> 1;
+                invokeAll(new QueryTask(sources, targets, from, mid, sink),
+                        new QueryTask(sources, targets, mid, to, sink));
+            }
+        }
+
+        @Override
+        public void close() {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * Cache limitata dei risultati di Graph.shortestPath() (partenza all'istante 0, modalità DIJKSTRA)
+     * indicizzata dalla coppia (source, target) compressa in un long.
+     *
+     * Le voci sono tenute in una LinkedHashMap in ordine di accesso: superata la capacità viene
+     * eliminata quella usata meno di recente (LRU). Ogni risultato ricorda la versione del grafo con cui
+     * è stato calcolato; se il grafo cambia (addEdge, nuove attese, ...) la cache si svuota da sola
+     * alla prima interrogazione successiva.
+     *
+     * E' thread-safe: la mappa è protetta da un lock tenuto solo per lookup e inserimento, mentre la
+     * ricerca vera e propria avviene fuori dal lock con uno SearchScratch per thread. Due thread che
+     * chiedono contemporaneamente la stessa coppia possono calcolarla entrambi; il risultato è lo stesso.
+     * Gli archi in attesa vengono fusi nel CSR (Graph.compact()) sotto lo stesso lock, prima che parta
+     * qualunque ricerca: compact() non è thread-safe e le ricerche concorrenti lo troverebbero a metà.
+     * Le modifiche al grafo (addEdge, setWeight, ...) non devono avvenire mentre get() è in esecuzione.
+     * Gli array path restituiti sono condivisi con la cache e non vanno modificati.
+     */
+    public static class PathCache {
+        private final Graph graph;
+        private final int capacity;
+        private final LinkedHashMap<Long, PathResult> entries;
+        private final ThreadLocal<SearchScratch> scratch;
+        private long cachedVersion;
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder invalidations = new LongAdder();
+
+        public PathCache(Graph graph, int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("La capacità deve essere positiva");
+            }
+            this.graph = graph;
+            this.capacity = capacity;
+            this.cachedVersion = graph.version();
+            this.scratch = ThreadLocal.withInitial(() -> new SearchScratch(graph.n));
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, PathResult> eldest) {
+                    if (size() > PathCache.this.capacity) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        /*
+         * Distanza e cammino da source a target, dalla cache se possibile.
+         */
+        public PathResult get(int source, int target) {
+            long key = ((long) source << 32) | (target & 0xFFFFFFFFL);
+            long version = graph.version();
+            synchronized (entries) {
+                // Dopo un addEdge() il primo thread che entra ricostruisce il CSR; gli altri lo trovano
+                // già compatto e, grazie al lock, ne vedono i nuovi array
+                graph.compact();
+                if (version != cachedVersion) {
+                    entries.clear();
+                    cachedVersion = version;
+                    invalidations.increment();
+                }
+                PathResult cached = entries.get(key);
+                if (cached != null) {
+                    hits.increment();
+                    return cached;
+                }
+            }
+            misses.increment();
+
+            SearchScratch s = scratch.get();
+            double distance = graph.shortestPath(source, target, s);
+            PathResult result = new PathResult(0, source, target, distance, s.path(target));
+            synchronized (entries) {
+                // Se nel frattempo il grafo è cambiato il risultato non va memorizzato
+                if (version == cachedVersion && graph.version() == version) {
+                    entries.put(key, result);
+                }
+            }
+            return result;
+        }
+
+        public void clear() {
+            synchronized (entries) {
+                entries.clear();
+            }
+        }
+
+        public int size() {
+            synchronized (entries) {
+                return entries.size();
+            }
+        }
+
+        public long hits() {
+            return hits.sum();
+        }
+
+        public long misses() {
+            return misses.sum();
+        }
+
+        public long evictions() {
+            return evictions.sum();
+        }
+
+        public long invalidations() {
+            return invalidations.sum();
+        }
+
+        public String statistics() {
+            long h = hits.sum();
+            long total = h + misses.sum();
+            return String.format("voci=%d/%d hit=%d miss=%d hit rate=%.1f%% espulsioni=%d invalidazioni=%d",
+                    size(), capacity, h, total - h, total == 0 ? 0.0 : 100.0 * h / total,
+                    evictions.sum(), invalidations.sum());
+        }
+    }
+
+    /*
+     * Interroga la cache con queries richieste estratte da un insieme di distinct coppie casuali
+     * (quindi con ripetizioni) e stampa il tempo medio e le statistiche della cache.
+     */
+    public static void benchmarkCache(Graph graph, int queries, int distinct, int capacity) {
+        Random random = new Random(1070505);
+        int[] sources = new int[distinct];
+        int[] targets = new int[distinct];
+        for (int i = 0; i < distinct; i++) {
+            sources[i] = random.nextInt(graph.n);
+            targets[i] = random.nextInt(graph.n);
+        }
+        PathCache cache = new PathCache(graph, capacity);
+        long t0 = System.nanoTime();
+        for (int q = 0; q < queries; q++) {
+            int i = random.nextInt(distinct);
+            cache.get(sources[i], targets[i]);
+        }
+        System.out.printf("%.1f us/interrogazione%n", (System.nanoTime() - t0) / 1e3 / queries);
+        System.out.println(cache.statistics());
+    }
+
+    /*
+     * Misura il throughput (interrogazioni al secondo) di BatchRouter con 1, 2, 4, ... fino al numero
+     * di core disponibili, su queries coppie (source, target) casuali ma riproducibili.
+     */
+    public static void benchmarkBatch(Graph graph, int queries) {
+        Random random = new Random(1070505);
+        int[] sources = new int[queries];
+        int[] targets = new int[queries];
+        for (int i = 0; i < queries; i++) {
+            sources[i] = random.nextInt(graph.n);
+            targets[i] = random.nextInt(graph.n);
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        LongAdder reached = new LongAdder();
+        for (int p = 1; ; p = Math.min(p * 2, cores)) {
+            try (BatchRouter router = new BatchRouter(graph, p)) {
+                // Riscaldamento del JIT e creazione degli scratch dei worker
+                router.solve(Arrays.copyOf(sources, Math.min(queries, 4 * p)),
+                        Arrays.copyOf(targets, Math.min(queries, 4 * p)), result -> { });
+
+                reached.reset();
+                long t0 = System.nanoTime();
+                router.solve(sources, targets, result -> {
+                    if (result.isReachable()) {
+                        reached.increment();
+                    }
+                });
+                double seconds = (System.nanoTime() - t0) / 1e9;
+                System.out.printf("thread=%d: %.1f interrogazioni/s (%d raggiungibili su %d)%n",
+                        p, queries / seconds, reached.sum(), queries);
+            }
+            if (p == cores) {
+                break;
+            }
+        }
+    }
+
+    /*
+     * Confronta le modalità di ricerca sulle stesse queries coppie casuali: tempo medio, numero medio
+     * di nodi estratti (settled) e numero di distanze diverse da quelle di DIJKSTRA.
+     */
+    public static void benchmarkModes(Graph graph, int queries, Heuristic heuristic) {
+        Random random = new Random(1070505);
+        int[] sources = new int[queries];
+        int[] targets = new int[queries];
+        for (int i = 0; i < queries; i++) {
+            sources[i] = random.nextInt(graph.n);
+            targets[i] = random.nextInt(graph.n);
+        }
+        graph.buildReverse();
+
+        SearchScratch scratch = new SearchScratch(graph.n);
+        double[] reference = new double[queries];
+        for (SearchMode mode : SearchMode.values()) {
+            long settled = 0;
+            int mismatches = 0;
+            long t0 = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                double d = graph.shortestPath(sources[i], targets[i], scratch, mode, heuristic);
+                settled += scratch.settled;
+                if (mode == SearchMode.DIJKSTRA) {
+                    reference[i] = d;
+                } else if (Math.abs(d - reference[i]) > 1e-9 * Math.max(1, reference[i])
+                        && !(Double.isInfinite(d) && Double.isInfinite(reference[i]))) {
+                    mismatches++;
+                }
+            }
+            double ms = (System.nanoTime() - t0) / 1e6 / queries;
+            System.out.printf("%-13s %.3f ms/interrogazione, %.1f nodi estratti in media, %d distanze diverse%n",
+                    mode, ms, (double) settled / queries, mismatches);
+        }
+    }
+
+    /*
+     * Contraction Hierarchies (CH) per interrogazioni punto-punto ripetute su un grafo statico.
+     *
+     * Preprocessing: i nodi vengono "contratti" uno alla volta in ordine di importanza crescente.
+     * Contrarre v significa rimuoverlo dal grafo residuo aggiungendo una scorciatoia u -> w (con nodo
+     * intermedio v) per ogni coppia di vicini u -> v -> w per cui la ricerca di un testimone (un Dijkstra
+     * limitato da u che evita v) non trova un cammino alternativo lungo al più quanto u -> v -> w.
+     * L'ordine è scelto con una coda di priorità sulla differenza tra scorciatoie aggiunte e archi
+     * rimossi più il numero di vicini già contratti, con aggiornamento pigro: il nodo estratto viene
+     * rivalutato e, se la sua priorità è ancora la minima, contratto con le scorciatoie trovate in quella
+     * stessa valutazione (le ricerche dei testimoni si fanno una volta sola per contrazione).
+     *
+     * La ricerca dei testimoni è limitata a WITNESS_HOP_LIMIT archi e al costo massimo u -> v -> w, e
+     * si ferma appena tutti i vicini w sono stati estratti. Le liste di adiacenza del grafo residuo hanno
+     * un indice hash, quindi aggiungere o rimuovere un arco costa O(1) anche sui nodi di grado alto.
+     *
+     * Il costo di ogni arco include già l'attesa all'incrocio: c(u, v) = weight + attesa(u, 0),
+     * quindi le scorciatoie sommano anche le attese dei nodi intermedi. Per questo la gerarchia si
+     * può costruire solo se le attese non dipendono dall'istante di arrivo.
+     *
+     * Interrogazione: Dijkstra bidirezionale che usa solo archi verso nodi di rango maggiore
+     * (upOffsets/upTargets in avanti, downOffsets/downSources all'indietro); i due coni si incontrano
+     * nel nodo più importante del cammino ottimo. Con lo stall-on-demand (vedi stalled()) non vengono
+     * espansi i nodi raggiunti con una distanza che un vicino di rango maggiore già migliora.
+     * Gli archi hanno un id unico (prima quelli verso l'alto,
+     * poi quelli verso il basso) e ogni scorciatoia memorizza nodo intermedio e id dei due archi che
+     * sostituisce (middles, firstHalves, secondHalves), così il cammino trovato si espande fino agli
+     * archi originali in tempo proporzionale alla sua lunghezza, senza cercare gli archi.
+     *
+     * Le ricerche limitate del preprocessing possono solo aggiungere scorciatoie superflue, mai
+     * renderne errato il risultato. La gerarchia conviene sui grafi con separatori piccoli (reti stradali,
+     * griglie); su grafi casuali la parte alta diventa quasi completa e le scorciatoie esplodono
+     * qualunque sia l'ordine di contrazione.
+     */
+    public static class ContractionHierarchy {
+        private static final int WITNESS_HOP_LIMIT = 5;
+
+        public final int n;
+        public final int[] rank;
+        // Archi u -> w con rank[w] > rank[u], memorizzati presso u (id = posizione)
+        public final int[] upOffsets;
+        public final int[] upTargets;
+        public final double[] upCosts;
+        // Archi u -> w con rank[u] > rank[w], memorizzati presso w (id = upOffsets[n] + posizione)
+        public final int[] downOffsets;
+        public final int[] downSources;
+        public final double[] downCosts;
+        // Per id di arco: nodo intermedio e archi sostituiti (-1 per gli archi originali)
+        public final int[] middles;
+        public final int[] firstHalves;
+        public final int[] secondHalves;
+
+        private ContractionHierarchy(int n, int[] rank,
+                                     int[] upOffsets, int[] upTargets, double[] upCosts,
+                                     int[] downOffsets, int[] downSources, double[] downCosts,
+                                     int[] middles, int[] firstHalves, int[] secondHalves) {
+            this.n = n;
+            this.rank = rank;
+            this.upOffsets = upOffsets;
+            this.upTargets = upTargets;
+            this.upCosts = upCosts;
+            this.downOffsets = downOffsets;
+            this.downSources = downSources;
+            this.downCosts = downCosts;
+            this.middles = middles;
+            this.firstHalves = firstHalves;
+            this.secondHalves = secondHalves;
+        }
+
+        public int edgeCount() {
+            return upOffsets[n] + downOffsets[n];
+        }
+
+        /*
+         * Buffer di lavoro di query() e path(): le due ricerche, l'arco con cui ciascun nodo è stato
+         * raggiunto e il nodo d'incontro dell'ultima interrogazione. Come SearchScratch, un'istanza
+         * non è thread-safe.
+         */
+        public static class QueryScratch {
+            public final SearchScratch forward;
+            public final SearchScratch backward;
+            private final int[] forwardEdge;
+            private final int[] backwardEdge;
+            public int meeting = -1;
+            public long settled;
+
+            public QueryScratch(int n) {
+                this.forward = new SearchScratch(n);
+                this.backward = new SearchScratch(n);
+                this.forwardEdge = new int[n];
+                this.backwardEdge = new int[n];
+            }
+
+            void reset() {
+                forward.reset();
+                backward.reset();
+                meeting = -1;
+                settled = 0;
+            }
+        }
+
+        /*
+         * Liste di adiacenza modificabili (array primitivi per nodo) usate durante la contrazione, con
+         * un indice hash (u, v) -> posizione di v nella lista di u (indirizzamento aperto, scansione
+         * lineare, cancellazione per spostamento all'indietro): put() e remove() costano O(1) attesi
+         * invece di una scansione della lista. Gli archi paralleli vengono fusi tenendo quello di costo
+         * minore; per le scorciatoie si tengono nodo intermedio e archi sostituiti.
+         */
+        private static class DynamicAdjacency {
+            private static final long EMPTY = -1;
+
+            final int[][] node;
+            final double[][] cost;
+            final int[][] middle;
+            final int[][] firstHalf;
+            final int[][] secondHalf;
+            final int[] size;
+            private long[] keys;
+            private int[] slots;
+            private int used;
+
+            DynamicAdjacency(int n, int expectedEdges) {
+                node = new int[n][];
+                cost = new double[n][];
+                middle = new int[n][];
+                firstHalf = new int[n][];
+                secondHalf = new int[n][];
+                size = new int[n];
+                for (int i = 0; i < n; i++) {
+                    node[i] = new int[2];
+                    cost[i] = new double[2];
+                    middle[i] = new int[2];
+                    firstHalf[i] = new int[2];
+                    secondHalf[i] = new int[2];
+                }
+                int capacity = Integer.highestOneBit(Math.max(16, expectedEdges) * 2 - 1) * 2;
+                keys = new long[capacity];
+                slots = new int[capacity];
+                Arrays.fill(keys, EMPTY);
+            }
+
+            private static long key(int u, int v) {
+                return ((long) u << 32) | v;
+            }
+
+            private int home(long key) {
+                return Long.hashCode(key * 0x9E3779B97F4A7C15L) & (keys.length - 1);
+            }
+
+            /*
+             * Cella dell'indice che contiene (u, v), oppure la cella vuota in cui andrebbe inserito.
+             */
+            private int find(int u, int v) {
+                long key = key(u, v);
+                int mask = keys.length - 1;
+                int cell = home(key);
+                while (keys[cell] != EMPTY && keys[cell] != key) {
+                    cell = (cell + 1) & mask;
+                }
+                return cell;
+            }
+
+            void put(int u, int v, double c, int mid, int first, int second) {
+                int cell = find(u, v);
+                if (keys[cell] != EMPTY) {
+                    int i = slots[cell];
+                    if (c < cost[u][i]) {
+                        cost[u][i] = c;
+                        middle[u][i] = mid;
+                        firstHalf[u][i] = first;
+                        secondHalf[u][i] = second;
+                    }
+                    return;
+                }
+                if (size[u] == node[u].length) {
+                    int capacity = size[u] * 2;
+                    node[u] = Arrays.copyOf(node[u], capacity);
+                    cost[u] = Arrays.copyOf(cost[u], capacity);
+                    middle[u] = Arrays.copyOf(middle[u], capacity);
+                    firstHalf[u] = Arrays.copyOf(firstHalf[u], capacity);
+                    secondHalf[u] = Arrays.copyOf(secondHalf[u], capacity);
+                }
+                int i = size[u]++;
+                node[u][i] = v;
+                cost[u][i] = c;
+                middle[u][i] = mid;
+                firstHalf[u][i] = first;
+                secondHalf[u][i] = second;
+                keys[cell] = key(u, v);
+                slots[cell] = i;
+                if (++used * 2 > keys.length) {
+                    rehash(keys.length * 2);
+                }
+            }
+
+            void remove(int u, int v) {
+                int cell = find(u, v);
+                if (keys[cell] == EMPTY) {
+                    return;
+                }
+                int i = slots[cell];
+                delete(cell);
+                int last = --size[u];
+                if (i != last) {
+                    node[u][i] = node[u][last];
+                    cost[u][i] = cost[u][last];
+                    middle[u][i] = middle[u][last];
+                    firstHalf[u][i] = firstHalf[u][last];
+                    secondHalf[u][i] = secondHalf[u][last];
+                    slots[find(u, node[u][i])] = i;
+                }
+            }
+
+            /*
+             * Svuota la lista di u (e le relative voci dell'indice).
+             */
+            void clear(int u) {
+                for (int i = 0; i < size[u]; i++) {
+                    delete(find(u, node[u][i]));
+                }
+                size[u] = 0;
+            }
+
+            private void delete(int cell) {
+                int mask = keys.length - 1;
+                int hole = cell;
+                for (int next = (cell + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+                    // La voce in next può riempire il buco solo se la sua cella naturale non è tra hole e next
+                    if (((next - home(keys[next])) & mask) >= ((next - hole) & mask)) {
+                        keys[hole] = keys[next];
+                        slots[hole] = slots[next];
+                        hole = next;
+                    }
+                }
+                keys[hole] = EMPTY;
+                used--;
+            }
+
+            private void rehash(int capacity) {
+                long[] oldKeys = keys;
+                int[] oldSlots = slots;
+                keys = new long[capacity];
+                slots = new int[capacity];
+                Arrays.fill(keys, EMPTY);
+                for (int c = 0; c < oldKeys.length; c++) {
+                    if (oldKeys[c] != EMPTY) {
+                        int cell = home(oldKeys[c]);
+                        while (keys[cell] != EMPTY) {
+                            cell = (cell + 1) & (capacity - 1);
+                        }
+                        keys[cell] = oldKeys[c];
+                        slots[cell] = oldSlots[c];
+                    }
+                }
+            }
+        }
+
+        /*
+         * Stato del preprocessing: grafo residuo, ricerca dei testimoni, scorciatoie trovate dall'ultima
+         * evaluate() e archi definitivi della gerarchia (indicizzati per ordine di emissione).
+         */
+        private static class Contractor {
+            final DynamicAdjacency out;
+            final DynamicAdjacency in;
+            final SearchScratch witness;
+            final int[] hops;
+            // Vicini w di v ancora da decidere nella ricerca corrente e costo limite di u -> v -> w
+            final boolean[] pending;
+            final double[] limit;
+            final int[] deletedNeighbors;
+
+            // Scorciatoie dell'ultima valutazione: posizione di u in in[v], di w in out[v] e costo
+            int[] shortcutIn = new int[16];
+            int[] shortcutOut = new int[16];
+            double[] shortcutCost = new double[16];
+            int shortcutCount;
+
+            int[] edgeSrc;
+            int[] edgeDst;
+            double[] edgeCost;
+            int[] edgeMid;
+            int[] edgeFirst;
+            int[] edgeSecond;
+            int edgeCount;
+
+            Contractor(Graph graph) {
+                int n = graph.n;
+                out = new DynamicAdjacency(n, graph.m);
+                in = new DynamicAdjacency(n, graph.m);
+                for (int u = 0; u < n; u++) {
+                    for (int e = graph.offsets.get(u); e < graph.offsets.get(u + 1); e++) {
+                        int v = graph.targets.get(e);
+                        if (v != u) {
+                            double c = graph.weights.get(e) + graph.attesa(u, 0);
+                            out.put(u, v, c, -1, -1, -1);
+                            in.put(v, u, c, -1, -1, -1);
+                        }
+                    }
+                }
+                witness = new SearchScratch(n);
+                hops = new int[n];
+                pending = new boolean[n];
+                limit = new double[n];
+                deletedNeighbors = new int[n];
+                int capacity = Math.max(graph.m, 4);
+                edgeSrc = new int[capacity];
+                edgeDst = new int[capacity];
+                edgeCost = new double[capacity];
+                edgeMid = new int[capacity];
+                edgeFirst = new int[capacity];
+                edgeSecond = new int[capacity];
+            }
+
+            /*
+             * Trova le scorciatoie necessarie per contrarre v (senza aggiungerle) e restituisce la
+             * priorità di v: scorciatoie - archi rimossi + vicini già contratti.
+             */
+            double evaluate(int v) {
+                shortcutCount = 0;
+                for (int i = 0; i < in.size[v]; i++) {
+                    int u = in.node[v][i];
+                    double costUV = in.cost[v][i];
+                    int targets = 0;
+                    double maxCost = 0;
+                    for (int j = 0; j < out.size[v]; j++) {
+                        int w = out.node[v][j];
+                        if (w != u) {
+                            pending[w] = true;
+                            limit[w] = costUV + out.cost[v][j];
+                            maxCost = Math.max(maxCost, limit[w]);
+                            targets++;
+                        }
+                    }
+                    if (targets > 0) {
+                        witnessSearch(u, v, maxCost, targets);
+                    }
+                    for (int j = 0; j < out.size[v]; j++) {
+                        int w = out.node[v][j];
+                        if (w == u) {
+                            continue;
+                        }
+                        pending[w] = false;
+                        double viaV = limit[w];
+                        if (witness.dist[w] > viaV) {
+                            if (shortcutCount == shortcutIn.length) {
+                                int capacity = shortcutCount * 2;
+                                shortcutIn = Arrays.copyOf(shortcutIn, capacity);
+                                shortcutOut = Arrays.copyOf(shortcutOut, capacity);
+                                shortcutCost = Arrays.copyOf(shortcutCost, capacity);
+                            }
+                            shortcutIn[shortcutCount] = i;
+                            shortcutOut[shortcutCount] = j;
+                            shortcutCost[shortcutCount] = viaV;
+                            shortcutCount++;
+                        }
+                    }
+                }
+                return shortcutCount - out.size[v] - in.size[v] + deletedNeighbors[v];
+            }
+
+            /*
+             * Dijkstra da u sul grafo residuo che evita v, fermato oltre maxCost, senza espandere i nodi
+             * a WITNESS_HOP_LIMIT archi da u e appena tutti i targets vicini marcati in pending sono decisi:
+             * un vicino è deciso quando viene estratto oppure quando la sua distanza provvisoria scende
+             * entro limit[w] (testimone trovato). Le distanze restano in witness.dist.
+             */
+            private void witnessSearch(int u, int v, double maxCost, int targets) {
+                witness.reset();
+                witness.touch(u);
+                witness.dist[u] = 0;
+                hops[u] = 0;
+                witness.heap.push(u, 0);
+                while (!witness.heap.isEmpty() && witness.heap.peekKey() <= maxCost) {
+                    int x = witness.heap.poll();
+                    if (pending[x]) {
+                        pending[x] = false;
+                        if (--targets == 0) {
+                            return;
+                        }
+                    }
+                    if (hops[x] == WITNESS_HOP_LIMIT) {
+                        continue;
+                    }
+                    for (int i = 0; i < out.size[x]; i++) {
+                        int y = out.node[x][i];
+                        if (y == v) {
+                            continue;
+                        }
+                        double candidate = witness.dist[x] + out.cost[x][i];
+                        if (candidate < witness.dist[y]) {
+                            if (witness.dist[y] == Double.POSITIVE_INFINITY) {
+                                witness.touch(y);
+                            }
+                            witness.dist[y] = candidate;
+                            hops[y] = hops[x] + 1;
+                            witness.heap.pushOrDecrease(y, candidate);
+                            if (pending[y] && candidate <= limit[y]) {
+                                pending[y] = false;
+                                if (--targets == 0) {
+                                    return;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+
+            /*
+             * Contrae v con le scorciatoie trovate dall'ultima evaluate(v): gli archi di v diventano
+             * definitivi e le scorciatoie puntano ai loro id.
+             */
+            void contract(int v) {
+                int needed = edgeCount + out.size[v] + in.size[v];
+                if (needed > edgeSrc.length) {
+                    int capacity = Math.max(needed, edgeSrc.length + (edgeSrc.length >> 1));
+                    edgeSrc = Arrays.copyOf(edgeSrc, capacity);
+                    edgeDst = Arrays.copyOf(edgeDst, capacity);
+                    edgeCost = Arrays.copyOf(edgeCost, capacity);
+                    edgeMid = Arrays.copyOf(edgeMid, capacity);
+                    edgeFirst = Arrays.copyOf(edgeFirst, capacity);
+                    edgeSecond = Arrays.copyOf(edgeSecond, capacity);
+                }
+                int outBase = edgeCount;
+                for (int j = 0; j < out.size[v]; j++) {
+                    emit(v, out.node[v][j], out.cost[v][j], out.middle[v][j], out.firstHalf[v][j], out.secondHalf[v][j]);
+                }
+                int inBase = edgeCount;
+                for (int i = 0; i < in.size[v]; i++) {
+                    emit(in.node[v][i], v, in.cost[v][i], in.middle[v][i], in.firstHalf[v][i], in.secondHalf[v][i]);
+                }
+                for (int s = 0; s < shortcutCount; s++) {
+                    int u = in.node[v][shortcutIn[s]];
+                    int w = out.node[v][shortcutOut[s]];
+                    int first = inBase + shortcutIn[s];
+                    int second = outBase + shortcutOut[s];
+                    out.put(u, w, shortcutCost[s], v, first, second);
+                    in.put(w, u, shortcutCost[s], v, first, second);
+                }
+                for (int j = 0; j < out.size[v]; j++) {
+                    int w = out.node[v][j];
+                    in.remove(w, v);
+                    deletedNeighbors[w]++;
+                }
+                for (int i = 0; i < in.size[v]; i++) {
+                    int u = in.node[v][i];
+                    out.remove(u, v);
+                    deletedNeighbors[u]++;
+                }
+                out.clear(v);
+                in.clear(v);
+            }
+
+            private void emit(int src, int dst, double cost, int mid, int first, int second) {
+                edgeSrc[edgeCount] = src;
+                edgeDst[edgeCount] = dst;
+                edgeCost[edgeCount] = cost;
+                edgeMid[edgeCount] = mid;
+                edgeFirst[edgeCount] = first;
+                edgeSecond[edgeCount] = second;
+                edgeCount++;
+            }
+        }
+
+        /*
+         * Costruisce la gerarchia a partire dal grafo (preprocessing offline).
+         */
+        public static ContractionHierarchy build(Graph graph) {
+            graph.requireTimeIndependent("La costruzione delle Contraction Hierarchies");
+            graph.compact();
+            int n = graph.n;
+            Contractor contractor = new Contractor(graph);
+            IndexedMinHeap order = new IndexedMinHeap(n, IndexedMinHeap.DEFAULT_ARITY);
+            for (int v = 0; v < n; v++) {
+                order.push(v, contractor.evaluate(v));
+            }
+
+            int[] rank = new int[n];
+            int next = 0;
+            while (!order.isEmpty()) {
+                int v = order.poll();
+                // Aggiornamento pigro: se la priorità è peggiorata v torna in coda
+                double p = contractor.evaluate(v);
+                if (!order.isEmpty() && p > order.peekKey()) {
+                    order.push(v, p);
+                    continue;
+                }
+                rank[v] = next++;
+                contractor.contract(v);
+            }
+
+            // Divido gli archi in "verso l'alto" (presso la sorgente) e "verso il basso" (presso la
+            // destinazione) e assegno a ciascuno l'id definitivo
+            int edgeCount = contractor.edgeCount;
+            int[] edgeSrc = contractor.edgeSrc;
+            int[] edgeDst = contractor.edgeDst;
+            int[] upOffsets = new int[n + 1];
+            int[] downOffsets = new int[n + 1];
+            for (int i = 0; i < edgeCount; i++) {
+                if (rank[edgeSrc[i]] < rank[edgeDst[i]]) {
+                    upOffsets[edgeSrc[i] + 1]++;
+                } else {
+                    downOffsets[edgeDst[i] + 1]++;
+                }
+            }
+            for (int v = 0; v < n; v++) {
+                upOffsets[v + 1] += upOffsets[v];
+                downOffsets[v + 1] += downOffsets[v];
+            }
+            int up = upOffsets[n];
+            int[] upTargets = new int[up];
+            double[] upCosts = new double[up];
+            int[] downSources = new int[downOffsets[n]];
+            double[] downCosts = new double[downOffsets[n]];
+            int[] upNext = Arrays.copyOf(upOffsets, n);
+            int[] downNext = Arrays.copyOf(downOffsets, n);
+            int[] id = new int[edgeCount];
+            for (int i = 0; i < edgeCount; i++) {
+                if (rank[edgeSrc[i]] < rank[edgeDst[i]]) {
+                    int e = upNext[edgeSrc[i]]++;
+                    upTargets[e] = edgeDst[i];
+                    upCosts[e] = contractor.edgeCost[i];
+                    id[i] = e;
+                } else {
+                    int e = downNext[edgeDst[i]]++;
+                    downSources[e] = edgeSrc[i];
+                    downCosts[e] = contractor.edgeCost[i];
+                    id[i] = up + e;
+                }
+            }
+            int[] middles = new int[edgeCount];
+            int[] firstHalves = new int[edgeCount];
+            int[] secondHalves = new int[edgeCount];
+            for (int i = 0; i < edgeCount; i++) {
+                middles[id[i]] = contractor.edgeMid[i];
+                firstHalves[id[i]] = contractor.edgeFirst[i] == -1 ? -1 : id[contractor.edgeFirst[i]];
+                secondHalves[id[i]] = contractor.edgeSecond[i] == -1 ? -1 : id[contractor.edgeSecond[i]];
+            }
+            return new ContractionHierarchy(n, rank, upOffsets, upTargets, upCosts,
+                    downOffsets, downSources, downCosts, middles, firstHalves, secondHalves);
+        }
+
+        /*
+         * Interrogazione bidirezionale verso l'alto. Ogni direzione si ferma quando la sua chiave minima
+         * supera il miglior costo trovato; il nodo d'incontro viene salvato in scratch per path().
+         * scratch deve essere stato creato con n nodi; scratch.settled conta i nodi estratti.
+         */
+        public double query(int source, int target, QueryScratch scratch) {
+            scratch.reset();
+            SearchScratch forward = scratch.forward;
+            SearchScratch backward = scratch.backward;
+            forward.touch(source);
+            forward.dist[source] = 0;
+            forward.heap.push(source, 0);
+            backward.touch(target);
+            backward.dist[target] = 0;
+            backward.heap.push(target, 0);
+
+            int up = upOffsets[n];
+            double best = Double.POSITIVE_INFINITY;
+            int meeting = -1;
+            while (true) {
+                boolean forwardActive = !forward.heap.isEmpty() && forward.heap.peekKey() < best;
+                boolean backwardActive = !backward.heap.isEmpty() && backward.heap.peekKey() < best;
+                if (!forwardActive && !backwardActive) {
+                    break;
+                }
+                if (forwardActive && (!backwardActive || forward.heap.peekKey() <= backward.heap.peekKey())) {
+                    int u = forward.heap.poll();
+                    forward.settled++;
+                    if (forward.dist[u] + backward.dist[u] < best) {
+                        best = forward.dist[u] + backward.dist[u];
+                        meeting = u;
+                    }
+                    if (stalled(forward, u, downOffsets, downSources, downCosts)) {
+                        continue;
+                    }
+                    for (int e = upOffsets[u]; e < upOffsets[u + 1]; e++) {
+                        relax(forward, scratch.forwardEdge, u, upTargets[e], upCosts[e], e);
+                    }
+                } else {
+                    int u = backward.heap.poll();
+                    backward.settled++;
+                    if (forward.dist[u] + backward.dist[u] < best) {
+                        best = forward.dist[u] + backward.dist[u];
+                        meeting = u;
+                    }
+                    if (stalled(backward, u, upOffsets, upTargets, upCosts)) {
+                        continue;
+                    }
+                    for (int e = downOffsets[u]; e < downOffsets[u + 1]; e++) {
+                        relax(backward, scratch.backwardEdge, u, downSources[e], downCosts[e], up + e);
+                    }
+                }
+            }
+            scratch.settled = forward.settled + backward.settled;
+            scratch.meeting = meeting;
+            return best;
+        }
+
+        /*
+         * Stall-on-demand: u non viene espanso se un vicino x di rango maggiore, già raggiunto dalla
+         * stessa ricerca, offre un cammino più corto fino a u passando per l'arco x -> u (in avanti) o
+         * u -> x (all'indietro), cioè un arco che questa direzione non usa. Un cammino minimo non
+         * passa mai per u con la distanza attuale, quindi espanderlo sarebbe inutile.
+         */
+        private static boolean stalled(SearchScratch s, int u, int[] offsets, int[] others, double[] costs) {
+            for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+                if (s.dist[others[e]] + costs[e] < s.dist[u]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static void relax(SearchScratch s, int[] predEdge, int u, int v, double cost, int edge) {
+            double candidate = s.dist[u] + cost;
+            if (candidate < s.dist[v]) {
+                if (s.dist[v] == Double.POSITIVE_INFINITY) {
+                    s.touch(v);
+                }
+                s.dist[v] = candidate;
+                s.pred[v] = u;
+                predEdge[v] = edge;
+                s.heap.pushOrDecrease(v, candidate);
+            }
+        }
+
+        /*
+         * Cammino (nodi del grafo originale) trovato dall'ultima query() su scratch, con tutte le
+         * scorciatoie espanse; null se target non è raggiungibile.
+         */
+        public int[] path(int target, QueryScratch scratch) {
+            int meeting = scratch.meeting;
+            if (meeting == -1) {
+                return null;
+            }
+            SearchScratch forward = scratch.forward;
+            SearchScratch backward = scratch.backward;
+            // Archi della gerarchia lungo il cammino, in ordine: prima il semicammino in avanti (a ritroso
+            // da meeting), poi quello all'indietro; heads[i] è il nodo d'arrivo di edges[i]
+            int forwardHops = 0;
+            for (int u = meeting; forward.pred[u] != -1; u = forward.pred[u]) {
+                forwardHops++;
+            }
+            int backwardHops = 0;
+            for (int u = meeting; u != target; u = backward.pred[u]) {
+                backwardHops++;
+            }
+            int[] edges = new int[forwardHops + backwardHops];
+            int[] heads = new int[edges.length];
+            int k = forwardHops - 1;
+            int start = meeting;
+            for (int u = meeting; forward.pred[u] != -1; u = forward.pred[u]) {
+                edges[k] = scratch.forwardEdge[u];
+                heads[k--] = u;
+                start = forward.pred[u];
+            }
+            k = forwardHops;
+            for (int u = meeting; u != target; k++) {
+                edges[k] = scratch.backwardEdge[u];
+                u = backward.pred[u];
+                heads[k] = u;
+            }
+
+            int[] result = new int[16];
+            int size = 0;
+            result[size++] = start;
+            int[] stack = new int[16];
+            for (int i = 0; i < edges.length; i++) {
+                // Espansione iterativa dell'arco edges[i]: sulla pila coppie (nodo d'arrivo, id)
+                int top = 0;
+                stack[top++] = heads[i];
+                stack[top++] = edges[i];
+                while (top > 0) {
+                    int edge = stack[--top];
+                    int head = stack[--top];
+                    int middle = middles[edge];
+                    if (middle == -1) {
+                        if (size == result.length) {
+                            result = Arrays.copyOf(result, size * 2);
+                        }
+                        result[size++] = head;
+                    } else {
+                        if (top + 4 > stack.length) {
+                            stack = Arrays.copyOf(stack, stack.length * 2);
+                        }
+                        // La seconda metà (middle -> head) va espansa dopo la prima
+                        stack[top++] = head;
+                        stack[top++] = secondHalves[edge];
+                        stack[top++] = middle;
+                        stack[top++] = firstHalves[edge];
+                    }
+                }
+            }
+            return Arrays.copyOf(result, size);
+        }
+
+        /*
+         * Riempie dist[] e pred[] come graph.dijkstra() per il solo cammino source -> target, in modo
+         * che graph.printPath() stampi lo stesso risultato. Le distanze lungo il cammino vengono
+         * risommate arco per arco sul grafo originale nello stesso ordine di dijkstra(), così anche
+         * gli arrotondamenti in virgola mobile coincidono.
+         */
+        public void route(Graph graph, double[] dist, int[] pred, int source, int target) {
+            graph.compact();
+            Arrays.fill(dist, Double.POSITIVE_INFINITY);
+            Arrays.fill(pred, -1);
+            QueryScratch scratch = new QueryScratch(n);
+            query(source, target, scratch);
+            int[] path = path(target, scratch);
+            if (path == null) {
+                return;
+            }
+            dist[source] = 0;
+            for (int i = 1; i < path.length; i++) {
+                int u = path[i - 1];
+                int v = path[i];
+                for (int e = graph.offsets.get(u); e < graph.offsets.get(u + 1); e++) {
+                    if (graph.targets.get(e) == v) {
+                        double weight = graph.weights.get(e);
+                        double wait = graph.attesa(u, dist[u]);
+                        if (dist[u] + weight + wait < dist[v]) {
+                            dist[v] = dist[u] + weight + wait;
+                        }
+                    }
+                }
+                pred[v] = u;
+            }
+        }
+
+        /*
+         * Formato binario della gerarchia, con lo stesso schema di intestazione di GraphSnapshot
+         * (little endian):
+         *   0  long  magic "E3CHIER" + versione del formato nell'ultimo byte
+         *   8  int   n
+         *   12 int   archi verso l'alto (up)
+         *   16 int   archi verso il basso (down)
+         *   20 int   0
+         *   24 long  CRC32 di tutti i byte dalla posizione 32 alla fine
+         *   32 int[n] rank, int[n+1] upOffsets, int[up] upTargets, int[n+1] downOffsets,
+         *      int[down] downSources, int[up+down] middles, firstHalves, secondHalves,
+         *      eventuale padding a multiplo di 8, double[up] upCosts, double[down] downCosts
+         */
+        private static final long MAGIC_PREFIX = 0x4533434849455200L; // "E3CHIER\0"
+        private static final int VERSION = 1;
+        private static final int HEADER_SIZE = 32;
+
+        private static long fileSize(int n, int up, int down) {
+            long ints = n + 2L * (n + 1) + 4L * up + 4L * down;
+            return ((HEADER_SIZE + 4 * ints + 7) & ~7L) + 8L * up + 8L * down;
+        }
+
+        public void save(String fileName) throws IOException {
+            int up = upOffsets[n];
+            int down = downOffsets[n];
+            CRC32 crc = new CRC32();
+            try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.position(HEADER_SIZE);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+                long written = HEADER_SIZE;
+                for (int[] values : new int[][]{rank, upOffsets, upTargets, downOffsets, downSources,
+                        middles, firstHalves, secondHalves}) {
+                    for (int value : values) {
+                        written += GraphSnapshot.putInt(channel, buffer, crc, value);
+                    }
+                }
+                while (written % 8 != 0) {
+                    written += GraphSnapshot.putInt(channel, buffer, crc, 0);
+                }
+                for (double[] values : new double[][]{upCosts, downCosts}) {
+                    for (double value : values) {
+                        GraphSnapshot.putDouble(channel, buffer, crc, value);
+                    }
+                }
+                GraphSnapshot.flush(channel, buffer, crc);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putLong(MAGIC_PREFIX | VERSION).putInt(n).putInt(up).putInt(down).putInt(0)
+                        .putLong(crc.getValue()).flip();
+                channel.position(0);
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+            }
+        }
+
+        /*
+         * Legge una gerarchia salvata con save() controllando intestazione, versione, dimensione del
+         * file e CRC32 (il file viene comunque letto per intero), poi che offset, nodi e id degli archi
+         * siano negli intervalli validi, così un file danneggiato non può far uscire le visite dai vettori.
+         */
+        public static ContractionHierarchy load(String fileName) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < HEADER_SIZE) {
+                    throw new IOException(fileName + ": file troppo corto per una gerarchia");
+                }
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                long magic = header.getLong(0);
+                if ((magic & ~0xFFL) != MAGIC_PREFIX) {
+                    throw new IOException(fileName + " non è un file di Contraction Hierarchies");
+                }
+                if ((int) (magic & 0xFF) != VERSION) {
+                    throw new IOException(fileName + ": versione " + (magic & 0xFF) + " non supportata (attesa " + VERSION + ")");
+                }
+                int n = header.getInt(8);
+                int up = header.getInt(12);
+                int down = header.getInt(16);
+                if (n < 0 || up < 0 || down < 0 || (long) up + down > Integer.MAX_VALUE || size != fileSize(n, up, down)) {
+                    throw new IOException(fileName + ": dimensione del file incoerente con n=" + n + ", archi=" + up + "+" + down);
+                }
+                if (GraphSnapshot.checksum(channel, HEADER_SIZE, size) != header.getLong(24)) {
+                    throw new IOException(fileName + ": checksum errato, gerarchia danneggiata");
+                }
+
+                int[][] ints = {new int[n], new int[n + 1], new int[up], new int[n + 1], new int[down],
+                        new int[up + down], new int[up + down], new int[up + down]};
+                long position = HEADER_SIZE;
+                for (int[] values : ints) {
+                    GraphSnapshot.readInts(channel, position, values);
+                    position += 4L * values.length;
+                }
+                position = (position + 7) & ~7L;
+                double[] upCosts = new double[up];
+                double[] downCosts = new double[down];
+                GraphSnapshot.readDoubles(channel, position, upCosts);
+                GraphSnapshot.readDoubles(channel, position + 8L * up, downCosts);
+
+                int[] upOffsets = ints[1];
+                int[] downOffsets = ints[3];
+                checkOffsets(fileName, upOffsets, up);
+                checkOffsets(fileName, downOffsets, down);
+                checkRange(fileName, "rank", ints[0], 0, n);
+                checkRange(fileName, "upTargets", ints[2], 0, n);
+                checkRange(fileName, "downSources", ints[4], 0, n);
+                checkRange(fileName, "middles", ints[5], -1, n);
+                checkRange(fileName, "firstHalves", ints[6], -1, up + down);
+                checkRange(fileName, "secondHalves", ints[7], -1, up + down);
+                return new ContractionHierarchy(n, ints[0], upOffsets, ints[2], upCosts,
+                        downOffsets, ints[4], downCosts, ints[5], ints[6], ints[7]);
+            }
+        }
+
+        private static void checkOffsets(String fileName, int[] offsets, int count) throws IOException {
+            if (offsets[0] != 0 || offsets[offsets.length - 1] != count) {
+                throw new IOException(fileName + ": offsets della gerarchia non validi");
+            }
+            for (int u = 0; u + 1 < offsets.length; u++) {
+                if (offsets[u] > offsets[u + 1]) {
+                    throw new IOException(fileName + ": offsets della gerarchia non validi (nodo " + u + ")");
+                }
+            }
+        }
+
+        private static void checkRange(String fileName, String name, int[] values, int min, int max) throws IOException {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] < min || values[i] >= max) {
+                    throw new IOException(fileName + ": " + name + "[" + i + "] = " + values[i] + " fuori dall'intervallo [" + min + ", " + max + ")");
+                }
+            }
+        }
+    }
+
+    /*
+     * Albero dei cammini minimi da una sorgente fissa mantenuto incrementalmente mentre il grafo cambia
+     * (inserimenti, rimozioni, aumenti e diminuzioni di peso), nello stile di Ramalingam-Reps.
+     *
+     * dist[] e pred[] hanno lo stesso significato di Graph.dijkstra() ma sono calcolati per tutti i nodi.
+     * I figli di ogni nodo nell'albero sono tenuti in liste doppiamente concatenate (firstChild,
+     * nextSibling, prevSibling) per poter trovare in tempo lineare il sottoalbero di un nodo.
+     *
+     * - Diminuzione o inserimento di (u, v): se dist[u] + c(u, v) < dist[v] si riparte con Dijkstra da v,
+     *   e vengono toccati solo i nodi la cui distanza migliora.
+     * - Aumento o rimozione di (u, v): se l'arco è nell'albero (pred[v] == u e nessun arco parallelo
+     *   ha lo stesso costo) le distanze possono peggiorare solo nel sottoalbero S di v. Ogni nodo di S
+     *   riceve la miglior distanza tramite archi entranti da nodi fuori da S, poi Dijkstra ristretto
+     *   completa il calcolo. I nodi fuori da S non vengono toccati.
+     *
+     * Gli archi inseriti non passano subito per il CSR del grafo (ricostruirlo costa O(n+m)): restano in
+     * un piccolo insieme di archi aggiuntivi con liste per nodo, in uscita e in entrata, che le visite
+     * scorrono insieme al CSR diretto e inverso. Quando archi aggiuntivi e archi rimossi superano
+     * una frazione di m (vedi flush()) vengono riversati nel grafo con un'unica ricostruzione, quindi il
+     * costo ammortizzato per inserimento è costante. Fino ad allora graph non contiene gli archi
+     * aggiuntivi: chi lo usa direttamente deve prima chiamare flush().
+     *
+     * Il costo di un arco è weight + attesa(u, 0), quindi servono attese indipendenti dal tempo.
+     */
+    public static class DynamicShortestPaths {
+        private static final int MIN_BATCH = 64;
+
+        public final Graph graph;
+        public final int source;
+        public final double[] dist;
+        public final int[] pred;
+        private final int[] firstChild;
+        private final int[] nextSibling;
+        private final int[] prevSibling;
+        private final IndexedMinHeap heap;
+        private final boolean[] affected;
+        private int[] stack;
+
+        // Archi aggiuntivi: l'arco i va da extraSrc[i] a extraDst[i] (peso infinito se rimosso); le liste
+        // per nodo partono da outHead[u] / inHead[v] e proseguono con outNext[i] / inNext[i]
+        private final int[] outHead;
+        private final int[] inHead;
+        private int[] extraSrc;
+        private int[] extraDst;
+        private double[] extraWeight;
+        private int[] outNext;
+        private int[] inNext;
+        private int extraCount;
+
+        // Nodi la cui distanza è stata ricalcolata dall'ultima operazione
+        public long lastTouched;
+
+        public DynamicShortestPaths(Graph graph, int source) {
+            graph.requireTimeIndependent("L'aggiornamento incrementale dei cammini minimi");
+            graph.buildReverse();
+            int n = graph.n;
+            this.graph = graph;
+            this.source = source;
+            this.dist = new double[n];
+            this.pred = new int[n];
+            this.firstChild = new int[n];
+            this.nextSibling = new int[n];
+            this.prevSibling = new int[n];
+            this.heap = new IndexedMinHeap(n, IndexedMinHeap.DEFAULT_ARITY);
+            this.affected = new boolean[n];
+            this.stack = new int[16];
+            this.outHead = new int[n];
+            this.inHead = new int[n];
+            this.extraSrc = new int[16];
+            this.extraDst = new int[16];
+            this.extraWeight = new double[16];
+            this.outNext = new int[16];
+            this.inNext = new int[16];
+            Arrays.fill(outHead, -1);
+            Arrays.fill(inHead, -1);
+            Arrays.fill(dist, Double.POSITIVE_INFINITY);
+            Arrays.fill(pred, -1);
+            Arrays.fill(firstChild, -1);
+            Arrays.fill(nextSibling, -1);
+            Arrays.fill(prevSibling, -1);
+            dist[source] = 0;
+            heap.push(source, 0);
+            lastTouched = propagate();
+        }
+
+        private double cost(int u, int edge) {
+            double weight = graph.weights.get(edge);
+            return weight + graph.attesa(u, 0);
+        }
+
+        private double extraCost(int u, int extra) {
+            return extraWeight[extra] + graph.attesa(u, 0);
+        }
+
+        /*
+         * Costo minimo tra gli archi paralleli u -> v, nel CSR e aggiuntivi (infinito se non ce ne sono).
+         */
+        private double bestCost(int u, int v) {
+            double best = Double.POSITIVE_INFINITY;
+            for (int e = graph.offsets.get(u); e < graph.offsets.get(u + 1); e++) {
+                if (graph.targets.get(e) == v) {
+                    best = Math.min(best, cost(u, e));
+                }
+            }
+            for (int i = outHead[u]; i != -1; i = outNext[i]) {
+                if (extraDst[i] == v) {
+                    best = Math.min(best, extraCost(u, i));
+                }
+            }
+            return best;
+        }
+
+        /*
+         * Primo arco aggiuntivo u -> v non rimosso, -1 se non esiste. Le liste sono in ordine inverso di
+         * inserimento, quindi si tiene l'ultimo trovato (lo stesso ordine che avrebbe nel CSR).
+         */
+        private int findExtra(int u, int v) {
+            int found = -1;
+            for (int i = outHead[u]; i != -1; i = outNext[i]) {
+                if (extraDst[i] == v && extraWeight[i] != Double.POSITIVE_INFINITY) {
+                    found = i;
+                }
+            }
+            return found;
+        }
+
+        private void setParent(int v, int parent) {
+            int old = pred[v];
+            if (old == parent) {
+                return;
+            }
+            if (old != -1) {
+                if (prevSibling[v] != -1) {
+                    nextSibling[prevSibling[v]] = nextSibling[v];
+                } else {
+                    firstChild[old] = nextSibling[v];
+                }
+                if (nextSibling[v] != -1) {
+                    prevSibling[nextSibling[v]] = prevSibling[v];
+                }
+            }
+            pred[v] = parent;
+            prevSibling[v] = -1;
+            nextSibling[v] = -1;
+            if (parent != -1) {
+                int head = firstChild[parent];
+                nextSibling[v] = head;
+                if (head != -1) {
+                    prevSibling[head] = v;
+                }
+                firstChild[parent] = v;
+            }
+        }
+
+        /*
+         * Dijkstra a partire dai nodi già in coda; restituisce il numero di nodi estratti.
+         */
+        private long propagate() {
+            long settled = 0;
+            while (!heap.isEmpty()) {
+                int u = heap.poll();
+                settled++;
+                for (int e = graph.offsets.get(u); e < graph.offsets.get(u + 1); e++) {
+                    relax(u, graph.targets.get(e), dist[u] + cost(u, e));
+                }
+                for (int i = outHead[u]; i != -1; i = outNext[i]) {
+                    relax(u, extraDst[i], dist[u] + extraCost(u, i));
+                }
+            }
+            return settled;
+        }
+
+        private void relax(int u, int v, double candidate) {
+            if (candidate < dist[v]) {
+                dist[v] = candidate;
+                setParent(v, u);
+                heap.pushOrDecrease(v, candidate);
+            }
+        }
+
+        public void insertEdge(int u, int v, double weight) {
+            if (u < 0 || u >= graph.n || v < 0 || v >= graph.n) {
+                throw new IllegalArgumentException("Arco (" + u + ", " + v + ") fuori dall'intervallo [0, " + graph.n + ")");
+            }
+            if (extraCount == extraSrc.length) {
+                int capacity = extraCount * 2;
+                extraSrc = Arrays.copyOf(extraSrc, capacity);
+                extraDst = Arrays.copyOf(extraDst, capacity);
+                extraWeight = Arrays.copyOf(extraWeight, capacity);
+                outNext = Arrays.copyOf(outNext, capacity);
+                inNext = Arrays.copyOf(inNext, capacity);
+            }
+            int i = extraCount++;
+            extraSrc[i] = u;
+            extraDst[i] = v;
+            extraWeight[i] = weight;
+            outNext[i] = outHead[u];
+            outHead[u] = i;
+            inNext[i] = inHead[v];
+            inHead[v] = i;
+            decreased(u, v);
+            flushIfLarge();
+        }
+
+        public void deleteEdge(int u, int v) {
+            int edge = graph.findEdge(u, v);
+            if (edge != -1) {
+                graph.removeEdge(edge);
+            } else {
+                int extra = findExtra(u, v);
+                if (extra == -1) {
+                    throw new IllegalArgumentException("Arco " + u + " -> " + v + " inesistente");
+                }
+                extraWeight[extra] = Double.POSITIVE_INFINITY;
+            }
+            increased(u, v);
+            flushIfLarge();
+        }
+
+        public void updateWeight(int u, int v, double weight) {
+            if (!(weight > 0)) {
+                throw new IllegalArgumentException("Il peso deve essere positivo: " + weight);
+            }
+            int edge = graph.findEdge(u, v);
+            double old;
+            if (edge != -1) {
+                old = graph.weights.get(edge);
+                graph.setWeight(edge, weight);
+            } else {
+                int extra = findExtra(u, v);
+                if (extra == -1) {
+                    throw new IllegalArgumentException("Arco " + u + " -> " + v + " inesistente");
+                }
+                old = extraWeight[extra];
+                extraWeight[extra] = weight;
+            }
+            if (weight < old) {
+                decreased(u, v);
+            } else if (weight > old) {
+                increased(u, v);
+            }
+        }
+
+        /*
+         * Peso del primo arco u -> v non rimosso (prima nel CSR, poi tra gli aggiuntivi), NaN se non esiste.
+         */
+        public double weight(int u, int v) {
+            int edge = graph.findEdge(u, v);
+            if (edge != -1) {
+                return graph.weights.get(edge);
+            }
+            int extra = findExtra(u, v);
+            return extra == -1 ? Double.NaN : extraWeight[extra];
+        }
+
+        /*
+         * Archi aggiuntivi (inseriti e non ancora riversati nel grafo, compresi quelli rimossi).
+         */
+        public int pendingEdges() {
+            return extraCount;
+        }
+
+        private void flushIfLarge() {
+            if (extraCount + graph.removedEdges() > Math.max(MIN_BATCH, graph.m / 16)) {
+                flush();
+            }
+        }
+
+        /*
+         * Riversa gli archi aggiuntivi ancora presenti nel grafo ed elimina dal CSR quelli rimossi, con una
+         * sola ricostruzione O(n+m) (compreso il CSR inverso). dist[] e pred[] non cambiano.
+         */
+        public void flush() {
+            for (int i = 0; i < extraCount; i++) {
+                if (extraWeight[i] != Double.POSITIVE_INFINITY) {
+                    graph.addEdge(extraSrc[i], extraDst[i], extraWeight[i]);
+                }
+            }
+            extraCount = 0;
+            Arrays.fill(outHead, -1);
+            Arrays.fill(inHead, -1);
+            graph.purge();
+            graph.buildReverse();
+        }
+
+        private void decreased(int u, int v) {
+            lastTouched = 0;
+            double candidate = dist[u] + bestCost(u, v);
+            if (candidate < dist[v]) {
+                dist[v] = candidate;
+                setParent(v, u);
+                heap.push(v, candidate);
+                lastTouched = propagate();
+            }
+        }
+
+        private void increased(int u, int v) {
+            lastTouched = 0;
+            if (pred[v] != u || dist[u] + bestCost(u, v) == dist[v]) {
+                return;
+            }
+
+            // Raccolgo il sottoalbero S di v (visita iterativa tramite le liste dei figli)
+            int count = 0;
+            int top = 0;
+            stack[top++] = v;
+            int[] members = new int[16];
+            while (top > 0) {
+                int x = stack[--top];
+                if (count == members.length) {
+                    members = Arrays.copyOf(members, count * 2);
+                }
+                members[count++] = x;
+                affected[x] = true;
+                for (int c = firstChild[x]; c != -1; c = nextSibling[c]) {
+                    if (top == stack.length) {
+                        stack = Arrays.copyOf(stack, top * 2);
+                    }
+                    stack[top++] = c;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                int x = members[i];
+                dist[x] = Double.POSITIVE_INFINITY;
+                setParent(x, -1);
+            }
+
+            // Miglior distanza di ciascun nodo di S tramite archi entranti da nodi fuori da S
+            for (int i = 0; i < count; i++) {
+                int x = members[i];
+                for (int r = graph.revOffsets[x]; r < graph.revOffsets[x + 1]; r++) {
+                    int y = graph.revSources[r];
+                    if (!affected[y]) {
+                        entering(x, y, dist[y] + cost(y, graph.revEdges[r]));
+                    }
+                }
+                for (int e = inHead[x]; e != -1; e = inNext[e]) {
+                    int y = extraSrc[e];
+                    if (!affected[y]) {
+                        entering(x, y, dist[y] + extraCost(y, e));
+                    }
+                }
+                if (dist[x] != Double.POSITIVE_INFINITY) {
+                    heap.push(x, dist[x]);
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                affected[members[i]] = false;
+            }
+            lastTouched = count + propagate();
+        }
+
+        private void entering(int x, int y, double candidate) {
+            if (candidate < dist[x]) {
+                dist[x] = candidate;
+                setParent(x, y);
+            }
+        }
+    }
+
+    /*
+     * Confronto casuale tra aggiornamento incrementale e Dijkstra: applica operations modifiche casuali
+     * (inserimenti, rimozioni, aumenti e diminuzioni di peso) sia a DynamicShortestPaths sia a una copia
+     * indipendente del grafo, e dopo ciascuna confronta dist[] con Graph.shortestPath() sulla copia
+     * per un campione di destinazioni. Stampa errori e tempi medi.
+     */
+    public static void verifyDynamic(Graph graph, int operations, long seed) {
+        final int samples = 16;
+        Random random = new Random(seed);
+        graph.compact();
+        int[] offsets = new int[graph.n + 1];
+        int[] targets = new int[graph.m];
+        double[] weights = new double[graph.m];
+        graph.offsets.get(0, offsets);
+        graph.targets.get(0, targets);
+        graph.weights.get(0, weights);
+        Graph reference = new Graph(graph.n, offsets, targets, weights);
+        SearchScratch scratch = new SearchScratch(graph.n);
+
+        DynamicShortestPaths dynamic = new DynamicShortestPaths(graph, 0);
+        int errors = 0;
+        long incrementalNanos = 0;
+        long dijkstraNanos = 0;
+        long touched = 0;
+        for (int op = 0; op < operations; op++) {
+            int kind = random.nextInt(4);
+            int u = random.nextInt(graph.n);
+            // Gli archi esistenti si scelgono sulla copia, che contiene anche quelli non ancora riversati
+            reference.compact();
+            long t0 = System.nanoTime();
+            if (kind == 0 || reference.offsets.get(u) == reference.offsets.get(u + 1)) {
+                int v = random.nextInt(graph.n);
+                double weight = 1 + random.nextDouble() * 19;
+                t0 = System.nanoTime();
+                dynamic.insertEdge(u, v, weight);
+                incrementalNanos += System.nanoTime() - t0;
+                reference.addEdge(u, v, weight);
+            } else {
+                int edge = reference.offsets.get(u) + random.nextInt(reference.offsets.get(u + 1) - reference.offsets.get(u));
+                int v = reference.targets.get(edge);
+                int first = reference.findEdge(u, v);
+                if (first == -1) {
+                    continue;
+                }
+                if (kind == 1) {
+                    t0 = System.nanoTime();
+                    dynamic.deleteEdge(u, v);
+                    incrementalNanos += System.nanoTime() - t0;
+                    reference.removeEdge(first);
+                } else {
+                    double old = reference.weights.get(first);
+                    double weight = kind == 2 ? old * (1 + random.nextDouble() * 3) : old * (0.25 + random.nextDouble() * 0.75);
+                    t0 = System.nanoTime();
+                    dynamic.updateWeight(u, v, weight);
+                    incrementalNanos += System.nanoTime() - t0;
+                    reference.setWeight(first, weight);
+                }
+            }
+            touched += dynamic.lastTouched;
+
+            for (int s = 0; s < samples; s++) {
+                int target = random.nextInt(graph.n);
+                t0 = System.nanoTime();
+                double b = reference.shortestPath(0, target, scratch);
+                dijkstraNanos += System.nanoTime() - t0;
+                double a = dynamic.dist[target];
+                if (Double.isInfinite(a) != Double.isInfinite(b) || (!Double.isInfinite(a) && Math.abs(a - b) > 1e-9 * Math.max(1, b))) {
+                    errors++;
+                    break;
+                }
+            }
+        }
+        System.out.printf("Incrementale: %.1f us/operazione, %.1f nodi ricalcolati in media, %d archi in attesa di ricostruzione%n",
+                incrementalNanos / 1e3 / operations, (double) touched / operations, dynamic.pendingEdges());
+        System.out.printf("Dijkstra:     %.1f us/interrogazione%n", dijkstraNanos / 1e3 / operations / samples);
+        System.out.println("Operazioni con distanze diverse: " + errors + " su " + operations);
+    }
+
+    /*
+     * Costruisce la gerarchia del grafo e la confronta con Dijkstra su queries coppie casuali:
+     * distanze uguali, cammini espansi validi (costo ricalcolato sugli archi originali) e
+     * latenza media delle due ricerche.
+     */
+    public static void verifyContractionHierarchy(Graph graph, int queries) {
+        long t0 = System.nanoTime();
+        ContractionHierarchy ch = ContractionHierarchy.build(graph);
+        System.out.printf("Preprocessing: %.1f s, archi della gerarchia=%d (originali=%d)%n",
+                (System.nanoTime() - t0) / 1e9, ch.edgeCount(), graph.m);
+
+        Random random = new Random(1070505);
+        SearchScratch dijkstraScratch = new SearchScratch(graph.n);
+        ContractionHierarchy.QueryScratch chScratch = new ContractionHierarchy.QueryScratch(graph.n);
+        long dijkstraNanos = 0;
+        long chNanos = 0;
+        long chSettled = 0;
+        int errors = 0;
+        for (int q = 0; q < queries; q++) {
+            int source = random.nextInt(graph.n);
+            int target = random.nextInt(graph.n);
+
+            long start = System.nanoTime();
+            double expected = graph.shortestPath(source, target, dijkstraScratch);
+            dijkstraNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            double actual = ch.query(source, target, chScratch);
+            int[] path = ch.path(target, chScratch);
+            chNanos += System.nanoTime() - start;
+            chSettled += chScratch.settled;
+
+            if (Double.isInfinite(expected) || Double.isInfinite(actual)) {
+                if (expected != actual || path != null) {
+                    errors++;
+                }
+            } else if (Math.abs(expected - actual) > 1e-9 * Math.max(1, expected)
+                    || path == null || path[0] != source || path[path.length - 1] != target
+                    || Math.abs(pathCost(graph, path) - expected) > 1e-9 * Math.max(1, expected)) {
+                errors++;
+            }
+        }
+        System.out.printf("Dijkstra: %.1f us/interrogazione%n", dijkstraNanos / 1e3 / queries);
+        System.out.printf("CH: %.1f us/interrogazione, %.1f nodi estratti in media%n",
+                chNanos / 1e3 / queries, (double) chSettled / queries);
+        System.out.println("Interrogazioni con risultato diverso: " + errors + " su " + queries);
+    }
+
+    /*
+     * Costo di un cammino sul grafo originale partendo all'istante 0 (arco più economico tra nodi
+     * consecutivi, attese valutate all'istante di arrivo in ciascun nodo).
+     */
+    private static double pathCost(Graph graph, int[] path) {
+        double cost = 0;
+        for (int i = 0; i + 1 < path.length; i++) {
+            int u = path[i];
+            double best = Double.POSITIVE_INFINITY;
+            for (int e = graph.offsets.get(u); e < graph.offsets.get(u + 1); e++) {
+                if (graph.targets.get(e) == path[i + 1]) {
+                    best = Math.min(best, graph.weights.get(e) + graph.attesa(u, cost));
+                }
+            }
+            cost += best;
+        }
+        return cost;
+    }
+
+    /*
+     * Lettore di numeri in formato testo su FileChannel, alternativo a Scanner.
+     *
+     * Il file viene letto a blocchi in un buffer da 1 MB e interi e double vengono analizzati byte per
+     * byte senza espressioni regolari e senza creare oggetti per token. I double con al più 15 cifre
+     * significative ed esponente decimale entro 22 sono convertiti con una sola moltiplicazione o
+     * divisione per una potenza di 10 esatta (risultato correttamente arrotondato, come
+     * Double.parseDouble); gli altri casi, rari, ricadono su Double.parseDouble.
+     * Il separatore decimale è sempre il punto, indipendentemente dal Locale.
+     */
+    public static class NumberReader implements Closeable {
+        private static final int BUFFER_SIZE = 1 << 20;
+        private static final double[] POWERS_OF_TEN = {
+                1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+                1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+        };
+
+        private final FileChannel channel;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private final ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+        private int position;
+        private int limit;
+        private long bytesRead;
+        // Copia del token corrente, usata solo per il ripiego su Double.parseDouble (cresce se serve)
+        private char[] token = new char[64];
+
+        public NumberReader(String fileName) throws IOException {
+            this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        }
+
+        public long bytesRead() {
+            return bytesRead;
+        }
+
+        private int read() throws IOException {
+            if (position == limit) {
+                wrapper.clear();
+                int r;
+                do {
+                    r = channel.read(wrapper);
+                } while (r == 0);
+                if (r < 0) {
+                    return -1;
+                }
+                bytesRead += r;
+                position = 0;
+                limit = r;
+            }
+            return buffer[position++];
+        }
+
+        private int skipWhitespace() throws IOException {
+            int c = read();
+            while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                c = read();
+            }
+            if (c == -1) {
+                throw new EOFException("Fine del file inattesa");
+            }
+            return c;
+        }
+
+        public int nextInt() throws IOException {
+            int c = skipWhitespace();
+            boolean negative = c == '-';
+            if (negative || c == '+') {
+                c = read();
+            }
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("Intero atteso, trovato '" + (char) c + "'");
+            }
+            long value = 0;
+            while (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (value > Integer.MAX_VALUE + 1L) {
+                    throw new NumberFormatException("Intero fuori intervallo");
+                }
+                c = read();
+            }
+            value = negative ? -value : value;
+            if (value > Integer.MAX_VALUE) {
+                throw new NumberFormatException("Intero fuori intervallo");
+            }
+            return (int) value;
+        }
+
+        public double nextDouble() throws IOException {
+            int c = skipWhitespace();
+            int length = 0;
+            boolean negative = c == '-';
+            if (negative || c == '+') {
+                length = append(length, c);
+                c = read();
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int exponent = 0;
+            boolean any = false;
+            while (c >= '0' && c <= '9') {
+                length = append(length, c);
+                any = true;
+                if (mantissa != 0 || c != '0') {
+                    digits++;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                c = read();
+            }
+            if (c == '.') {
+                length = append(length, c);
+                c = read();
+                while (c >= '0' && c <= '9') {
+                    length = append(length, c);
+                    any = true;
+                    if (mantissa != 0 || c != '0') {
+                        digits++;
+                    }
+                    mantissa = mantissa * 10 + (c - '0');
+                    exponent--;
+                    c = read();
+                }
+            }
+            if (!any) {
+                // NaN, Infinity e le altre forme accettate da Scanner.nextDouble()
+                return parseToken(length, c);
+            }
+            if (c == 'e' || c == 'E') {
+                length = append(length, c);
+                c = read();
+                boolean negativeExponent = c == '-';
+                if (negativeExponent || c == '+') {
+                    length = append(length, c);
+                    c = read();
+                }
+                if (c < '0' || c > '9') {
+                    // "1e", "1e+", "1e-": esponente senza cifre, Double.parseDouble lo rifiuta
+                    return parseToken(length, c);
+                }
+                int e = 0;
+                while (c >= '0' && c <= '9') {
+                    length = append(length, c);
+                    e = Math.min(e * 10 + (c - '0'), 100000);
+                    c = read();
+                }
+                exponent += negativeExponent ? -e : e;
+            }
+
+            if (!isDelimiter(c) || digits > 15 || exponent < -22 || exponent > 22) {
+                return parseToken(length, c);
+            }
+            double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+            return negative ? -value : value;
+        }
+
+        /*
+         * Ripiego per i token che il percorso veloce non gestisce (troppe cifre, esponenti grandi, NaN,
+         * Infinity, ...): completa il token fino al prossimo spazio e lo passa a Double.parseDouble.
+         */
+        private double parseToken(int length, int c) throws IOException {
+            while (!isDelimiter(c)) {
+                length = append(length, c);
+                c = read();
+            }
+            return Double.parseDouble(new String(token, 0, length));
+        }
+
+        private static boolean isDelimiter(int c) {
+            return c == -1 || c == ' ' || c == '\n' || c == '\r' || c == '\t';
+        }
+
+        /*
+         * Copia il carattere nel token (per il ripiego), allargandolo se serve.
+         */
+        private int append(int length, int c) {
+            if (length == token.length) {
+                token = Arrays.copyOf(token, length * 2);
+            }
+            token[length] = (char) c;
+            return length + 1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /*
+     * Formato binario del grafo (snapshot), scritto una volta e poi riaperto con FileChannel.map.
+     *
+     * Layout (little endian):
+     *   0  long  magic "E3GRAPH" + versione del formato nell'ultimo byte
+     *   8  int   n
+     *   12 int   m
+     *   16 long  CRC32 di tutti i byte dalla posizione 24 alla fine
+     *   24 int[n+1] offsets, int[m] targets, eventuale padding a multiplo di 8, double[m] weights
+     *
+     * Il file viene mappato in memoria e il CSR del grafo è fatto direttamente di viste (IntBuffer,
+     * DoubleBuffer) sulle tre sezioni: l'apertura non copia né analizza i dati, le pagine vengono lette
+     * solo quando servono e restano condivise nella page cache tra più JVM. Una sezione può essere
+     * mappata solo se non supera i 2 GB (limite di FileChannel.map): le sezioni più grandi vengono
+     * copiate nello heap a finestre di 1 GB.
+     *
+     * Il CRC32 richiede di leggere tutto il file ed è quindi facoltativo (verifyChecksum); senza, read()
+     * controlla comunque che offsets sia non decrescente da 0 a m e che ogni target sia in [0, n),
+     * così un file danneggiato non può far uscire le visite dai vettori.
+     */
+    public static class GraphSnapshot {
+        private static final long MAGIC_PREFIX = 0x4533475241504800L; // "E3GRAPH\0"
+        private static final int VERSION = 1;
+        private static final int HEADER_SIZE = 24;
+        private static final int WINDOW = 1 << 30;
+
+        /*
+         * Vero se il file inizia con l'intestazione di uno snapshot (di qualunque versione).
+         */
+        public static boolean isSnapshot(String fileName) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                while (header.hasRemaining() && channel.read(header) >= 0) {
+                }
+                return !header.hasRemaining() && (header.getLong(0) & ~0xFFL) == MAGIC_PREFIX;
+            }
+        }
+
+        public static void write(Graph graph, String fileName) throws IOException {
+            graph.compact();
+            int n = graph.n;
+            int m = graph.m;
+            CRC32 crc = new CRC32();
+            try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.position(HEADER_SIZE);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+                long written = HEADER_SIZE;
+                for (int i = 0; i <= n; i++) {
+                    written += putInt(channel, buffer, crc, graph.offsets.get(i));
+                }
+                for (int e = 0; e < m; e++) {
+                    written += putInt(channel, buffer, crc, graph.targets.get(e));
+                }
+                while (written % 8 != 0) {
+                    written += putInt(channel, buffer, crc, 0);
+                }
+                for (int e = 0; e < m; e++) {
+                    putDouble(channel, buffer, crc, graph.weights.get(e));
+                }
+                flush(channel, buffer, crc);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putLong(MAGIC_PREFIX | VERSION).putInt(n).putInt(m).putLong(crc.getValue()).flip();
+                channel.position(0);
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+            }
+        }
+
+        private static int putInt(FileChannel channel, ByteBuffer buffer, CRC32 crc, int value) throws IOException {
+            if (buffer.remaining() < 4) {
+                flush(channel, buffer, crc);
+            }
+            buffer.putInt(value);
+            return 4;
+        }
+
+        private static void putDouble(FileChannel channel, ByteBuffer buffer, CRC32 crc, double value) throws IOException {
+            if (buffer.remaining() < 8) {
+                flush(channel, buffer, crc);
+            }
+            buffer.putDouble(value);
+        }
+
+        private static void flush(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /*
+         * Apre uno snapshot controllando intestazione, versione, dimensione del file, la coerenza del CSR
+         * e (se verifyChecksum) il CRC32 del contenuto.
+         */
+        public static Graph read(String fileName, boolean verifyChecksum) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < HEADER_SIZE) {
+                    throw new IOException(fileName + ": file troppo corto per uno snapshot");
+                }
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                long magic = header.getLong(0);
+                if ((magic & ~0xFFL) != MAGIC_PREFIX) {
+                    throw new IOException(fileName + ": non è uno snapshot di grafo");
+                }
+                if ((int) (magic & 0xFF) != VERSION) {
+                    throw new IOException(fileName + ": versione " + (magic & 0xFF) + " non supportata (attesa " + VERSION + ")");
+                }
+                int n = header.getInt(8);
+                int m = header.getInt(12);
+                long checksum = header.getLong(16);
+
+                long offsetsPos = HEADER_SIZE;
+                long targetsPos = offsetsPos + 4L * (n + 1);
+                long weightsPos = (targetsPos + 4L * m + 7) & ~7L;
+                if (n < 0 || m < 0 || size != weightsPos + 8L * m) {
+                    throw new IOException(fileName + ": dimensione del file incoerente con n=" + n + ", m=" + m);
+                }
+
+                if (verifyChecksum) {
+                    if (checksum(channel, HEADER_SIZE, size) != checksum) {
+                        throw new IOException(fileName + ": checksum errato, snapshot danneggiato");
+                    }
+                }
+
+                IntBuffer offsets = mapInts(channel, offsetsPos, n + 1);
+                IntBuffer targets = mapInts(channel, targetsPos, m);
+                DoubleBuffer weights = mapDoubles(channel, weightsPos, m);
+
+                if (offsets.get(0) != 0 || offsets.get(n) != m) {
+                    throw new IOException(fileName + ": offsets del CSR non validi");
+                }
+                for (int u = 0; u < n; u++) {
+                    if (offsets.get(u) > offsets.get(u + 1)) {
+                        throw new IOException(fileName + ": offsets del CSR non validi (nodo " + u + ")");
+                    }
+                }
+                for (int e = 0; e < m; e++) {
+                    int v = targets.get(e);
+                    if (v < 0 || v >= n) {
+                        throw new IOException(fileName + ": arco " + e + " verso il nodo " + v + " fuori dall'intervallo [0, " + n + ")");
+                    }
+                }
+                return new Graph(n, offsets, targets, weights);
+            }
+        }
+
+        /*
+         * Vista sulla sezione di count interi che inizia in position, oppure una copia nello heap se
+         * la sezione supera i 2 GB.
+         */
+        private static IntBuffer mapInts(FileChannel channel, long position, int count) throws IOException {
+            if (4L * count <= Integer.MAX_VALUE) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * count)
+                        .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            }
+            int[] values = new int[count];
+            readInts(channel, position, values);
+            return IntBuffer.wrap(values);
+        }
+
+        private static DoubleBuffer mapDoubles(FileChannel channel, long position, int count) throws IOException {
+            if (8L * count <= Integer.MAX_VALUE) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, position, 8L * count)
+                        .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            }
+            double[] values = new double[count];
+            readDoubles(channel, position, values);
+            return DoubleBuffer.wrap(values);
+        }
+
+        /*
+         * CRC32 dei byte del file da from a size, letti a finestre di 1 GB.
+         */
+        private static long checksum(FileChannel channel, long from, long size) throws IOException {
+            CRC32 crc = new CRC32();
+            for (long pos = from; pos < size; pos += WINDOW) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW, size - pos)));
+            }
+            return crc.getValue();
+        }
+
+        private static void readInts(FileChannel channel, long position, int[] values) throws IOException {
+            for (int done = 0; done < values.length; ) {
+                int count = Math.min(values.length - done, WINDOW / 4);
+                channel.map(FileChannel.MapMode.READ_ONLY, position + 4L * done, 4L * count)
+                        .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(values, done, count);
+                done += count;
+            }
+        }
+
+        private static void readDoubles(FileChannel channel, long position, double[] values) throws IOException {
+            for (int done = 0; done < values.length; ) {
+                int count = Math.min(values.length - done, WINDOW / 8);
+                channel.map(FileChannel.MapMode.READ_ONLY, position + 8L * done, 8L * count)
+                        .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(values, done, count);
+                done += count;
+            }
+        }
+    }
+
+    /*
+     * Legge il grafo dal file di input e restituisce un oggetto Graph.
+     * Gli archi vengono passati al Builder man mano che vengono letti da NumberReader.
+     * Se il file è uno snapshot binario (vedi GraphSnapshot) viene mappato direttamente, senza
+     * verificarne il CRC32 (vedi readGraph(fileName, true)).
+     */
+    public static Graph readGraph(String fileName) throws IOException {
+        return readGraph(fileName, false);
+    }
+
+    public static Graph readGraph(String fileName, boolean verifyChecksum) throws IOException {
+        if (GraphSnapshot.isSnapshot(fileName)) {
+            return GraphSnapshot.read(fileName, verifyChecksum);
+        }
+        try (NumberReader reader = new NumberReader(fileName)) {
+            int n = reader.nextInt();
+            int m = reader.nextInt();
+
+            Graph.Builder builder = new Graph.Builder(n, m);
+            for (int i = 0; i < m; i++) {
+                int src = reader.nextInt();
+                int dst = reader.nextInt();
+                double weight = reader.nextDouble();
+                builder.addEdge(src, dst, weight);
+            }
+            return builder.build();
+        }
+    }
+
+    /*
+     * Versione precedente di readGraph() basata su Scanner, mantenuta come termine di confronto
+     * per benchmarkLoaders().
+     */
+    static Graph readGraphScanner(String fileName) throws FileNotFoundException {
+        Locale.setDefault(Locale.US);
+        Scanner scanner = new Scanner(new File(fileName));
+        int n = scanner.nextInt();
+        int m = scanner.nextInt();
+
+        Graph.Builder builder = new Graph.Builder(n, m);
+        // Aggiunge archi al builder man mano che vengono letti, il CSR viene costruito alla fine
+        for (int i = 0; i < m; i++) {
+            int src = scanner.nextInt();
+            int dst = scanner.nextInt();
+            double weight = scanner.nextDouble();
+            builder.addEdge(src, dst, weight);
+        }
+
+        scanner.close();
+        return builder.build();
+    }
+
+    /*
+     * Carica lo stesso file con Scanner e con NumberReader, stampa i byte al secondo di ciascuno e
+     * controlla che i due grafi ottenuti siano identici.
+     */
+    public static void benchmarkLoaders(String fileName, int runs) throws IOException {
+        long size = new File(fileName).length();
+        Graph expected = null;
+        Graph actual = null;
+
+        long t0 = System.nanoTime();
+        for (int r = 0; r < runs; r++) {
+            expected = readGraphScanner(fileName);
+        }
+        double seconds = (System.nanoTime() - t0) / 1e9 / runs;
+        System.out.printf("Scanner:      %.3f s, %.1f MB/s%n", seconds, size / seconds / 1e6);
+
+        t0 = System.nanoTime();
+        for (int r = 0; r < runs; r++) {
+            actual = readGraph(fileName);
+        }
+        seconds = (System.nanoTime() - t0) / 1e9 / runs;
+        System.out.printf("NumberReader: %.3f s, %.1f MB/s%n", seconds, size / seconds / 1e6);
+
+        boolean same = expected.n == actual.n
+                && expected.offsets.equals(actual.offsets)
+                && expected.targets.equals(actual.targets)
+                && expected.weights.equals(actual.weights);
+        System.out.println(same ? "Grafi identici" : "ATTENZIONE: i grafi letti sono diversi");
+    }
+
+    /*
+     * Legge le coordinate dei nodi da un file con una riga "x y" per ciascuno degli n nodi
+     * e le associa al grafo.
+     */
+    public static void readCoordinates(Graph graph, String fileName) throws IOException {
+        try (NumberReader reader = new NumberReader(fileName)) {
+            double[] x = new double[graph.n];
+            double[] y = new double[graph.n];
+            for (int i = 0; i < graph.n; i++) {
+                x[i] = reader.nextDouble();
+                y[i] = reader.nextDouble();
+            }
+            graph.setCoordinates(x, y);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length == 2 && args[0].equals("--memoria")) {
+            System.out.println(readGraph(args[1]).memoryReport());
+            return;
+        }
+
+        if (args.length == 3 && args[0].equals("--benchmark-coda")) {
+            benchmarkQueues(readGraph(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+
+        if (args.length == 3 && args[0].equals("--benchmark-lotto")) {
+            benchmarkBatch(readGraph(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+
+        if ((args.length == 3 || args.length == 5) && args[0].equals("--modalita")) {
+            Graph graph = readGraph(args[1]);
+            Heuristic heuristic = Heuristic.ZERO;
+            if (args.length == 5) {
+                readCoordinates(graph, args[3]);
+                heuristic = graph.euclideanHeuristic(Double.parseDouble(args[4]));
+            }
+            benchmarkModes(graph, Integer.parseInt(args[2]), heuristic);
+            return;
+        }
+
+        if (args.length == 4 && args[0].equals("--attese")) {
+            Graph graph = readGraph(args[1]);
+            graph.setWaitSchedule(WaitSchedule.read(args[2], graph.n));
+            double[] dist = new double[graph.n];
+            int[] pred = new int[graph.n];
+            graph.dijkstra(dist, pred, 0, Double.parseDouble(args[3]), new IndexedMinHeap(graph.n, IndexedMinHeap.DEFAULT_ARITY));
+            graph.printPath(dist, pred);
+            return;
+        }
+
+        if (args.length == 4 && args[0].equals("--benchmark-attese")) {
+            Graph graph = readGraph(args[1]);
+            graph.setWaitSchedule(WaitSchedule.read(args[2], graph.n));
+            benchmarkWaits(graph, Integer.parseInt(args[3]));
+            return;
+        }
+
+        if (args.length == 5 && args[0].equals("--cache")) {
+            benchmarkCache(readGraph(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+            return;
+        }
+
+        if (args.length == 3 && args[0].equals("--dinamico")) {
+            verifyDynamic(readGraph(args[1]), Integer.parseInt(args[2]), 1070505);
+            return;
+        }
+
+        if (args.length == 3 && args[0].equals("--snapshot")) {
+            long t0 = System.nanoTime();
+            Graph graph = readGraph(args[1]);
+            GraphSnapshot.write(graph, args[2]);
+            // Una prima apertura non misurata, così i tempi non includono il caricamento delle classi
+            GraphSnapshot.read(args[2], false);
+            long t1 = System.nanoTime();
+            GraphSnapshot.read(args[2], false);
+            long t2 = System.nanoTime();
+            GraphSnapshot.read(args[2], true);
+            long t3 = System.nanoTime();
+            System.out.printf("Snapshot scritto in %.3f s, riaperto in %.3f s (%.3f s con la verifica del CRC32)%n",
+                    (t1 - t0) / 1e9, (t2 - t1) / 1e9, (t3 - t2) / 1e9);
+            return;
+        }
+
+        if (args.length == 3 && args[0].equals("--benchmark-lettura")) {
+            benchmarkLoaders(args[1], Integer.parseInt(args[2]));
+            return;
+        }
+
+        if (args.length == 3 && args[0].equals("--ch-prepara")) {
+            Graph graph = readGraph(args[1]);
+            ContractionHierarchy ch = ContractionHierarchy.build(graph);
+            ch.save(args[2]);
+            System.out.println("Gerarchia salvata: " + ch.edgeCount() + " archi (originali " + graph.m + ")");
+            return;
+        }
+
+        if (args.length == 3 && args[0].equals("--ch")) {
+            Graph graph = readGraph(args[1]);
+            ContractionHierarchy ch = ContractionHierarchy.load(args[2]);
+            if (ch.n != graph.n) {
+                System.out.println("Errore, la gerarchia non corrisponde al grafo");
+                return;
+            }
+            double[] dist = new double[graph.n];
+            int[] pred = new int[graph.n];
+            ch.route(graph, dist, pred, 0, graph.n - 1);
+            graph.printPath(dist, pred);
+            return;
+        }
+
+        if (args.length == 3 && args[0].equals("--ch-verifica")) {
+            verifyContractionHierarchy(readGraph(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
 
         if (args.length != 1) {
             System.out.println("Errore, utilizza il formato: java Esercizio3 <file.txt>");
+            System.out.println("oppure: java Esercizio3 --memoria <file.txt>");
+            System.out.println("oppure: java Esercizio3 --benchmark-coda <file.txt> <ripetizioni>");
+            System.out.println("oppure: java Esercizio3 --benchmark-lotto <file.txt> <interrogazioni>");
+            System.out.println("oppure: java Esercizio3 --modalita <file.txt> <interrogazioni> [<coordinate.txt> <costo per unità>]");
+            System.out.println("oppure: java Esercizio3 --ch-prepara <file.txt> <ch.bin>");
+            System.out.println("oppure: java Esercizio3 --ch <file.txt> <ch.bin>");
+            System.out.println("oppure: java Esercizio3 --ch-verifica <file.txt> <interrogazioni>");
+            System.out.println("oppure: java Esercizio3 --benchmark-lettura <file.txt> <ripetizioni>");
+            System.out.println("oppure: java Esercizio3 --snapshot <file.txt> <file.bin>");
+            System.out.println("oppure: java Esercizio3 --attese <file.txt> <attese.txt> <istante di partenza>");
+            System.out.println("oppure: java Esercizio3 --benchmark-attese <file.txt> <attese.txt> <iterazioni>");
+            System.out.println("oppure: java Esercizio3 --cache <file.txt> <interrogazioni> <coppie distinte> <capacità>");
+            System.out.println("oppure: java Esercizio3 --dinamico <file.txt> <operazioni>");
             return;
         }
 